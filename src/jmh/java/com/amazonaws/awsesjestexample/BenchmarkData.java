@@ -0,0 +1,98 @@
+/*
+ * Copyright 2018 Joarder Kamal. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"). You may
+ * not use this file except in compliance with the License. A copy of the
+ * License is located at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazonaws.awsesjestexample;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import io.searchbox.core.Bulk;
+import io.searchbox.core.Index;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Test data shared by the benchmarks
+ */
+final class BenchmarkData {
+    private BenchmarkData() {
+    }
+
+    /**
+     * @return a Note whose text is padded to roughly the given length
+     */
+    static Note note(final int i, final int length) {
+        StringBuilder text = new StringBuilder(length);
+        text.append("Note ").append(i).append(' ');
+        while (text.length() < length)
+            text.append("lorem ipsum ");
+        return new Note("user" + (i % 100), text.toString());
+    }
+
+    /**
+     * @return a search response body carrying the given number of Note hits
+     */
+    static String searchResponse(final Gson gson, final int hits) {
+        JsonArray hitArray = new JsonArray();
+        for (int i = 0; i < hits; i++) {
+            Note note = note(i, 100);
+            JsonObject hit = new JsonObject();
+            hit.addProperty("_index", Args.indexName);
+            hit.addProperty("_type", Args.typeName);
+            hit.addProperty("_id", Integer.toString(i));
+            hit.addProperty("_score", 1.0);
+            hit.add("_source", gson.toJsonTree(note));
+            JsonArray sort = new JsonArray();
+            sort.add(note.getCreatedOn());
+            sort.add(Integer.toString(i));
+            hit.add("sort", sort);
+            hitArray.add(hit);
+        }
+
+        JsonObject hitsObject = new JsonObject();
+        hitsObject.addProperty("total", hits);
+        hitsObject.addProperty("max_score", 1.0);
+        hitsObject.add("hits", hitArray);
+
+        JsonObject response = new JsonObject();
+        response.addProperty("took", 1);
+        response.addProperty("timed_out", false);
+        response.add("hits", hitsObject);
+        return response.toString();
+    }
+
+    /**
+     * @return the given number of Notes
+     */
+    static List<Note> notes(final int count, final int noteLength) {
+        List<Note> notes = new ArrayList<>(count);
+        for (int i = 0; i < count; i++)
+            notes.add(note(i, noteLength));
+        return notes;
+    }
+
+    /**
+     * @return a bulk request indexing the given number of Notes
+     */
+    static Bulk bulk(final int actions, final int noteLength) {
+        Bulk.Builder builder = new Bulk.Builder()
+                .defaultIndex(Args.indexName)
+                .defaultType(Args.typeName);
+        for (int i = 0; i < actions; i++)
+            builder.addAction(new Index.Builder(note(i, noteLength)).build());
+        return builder.build();
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright 2018 Joarder Kamal. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"). You may
+ * not use this file except in compliance with the License. A copy of the
+ * License is located at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazonaws.awsesjestexample;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import io.searchbox.client.AbstractJestClient;
+import io.searchbox.core.Bulk;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures building Bulk requests and rendering their NDJSON payload,
+ * which is what the Jest client does for every bulk request it sends,
+ * against writing the same payload with NoteCodec into a reused buffer.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class BulkBuilderBenchmark {
+    private final Gson gson = new GsonBuilder().setDateFormat(AbstractJestClient.ELASTIC_SEARCH_DATE_FORMAT).create();
+
+    @Param({"1000", "10000"})
+    int actions;
+
+    @Param({"200"})
+    int noteLength;
+
+    private final StringBuilder buffer = new StringBuilder();
+
+    private Bulk bulk;
+    private List<Note> notes;
+
+    @Setup
+    public void setup() {
+        bulk = BenchmarkData.bulk(actions, noteLength);
+        notes = BenchmarkData.notes(actions, noteLength);
+    }
+
+    @Benchmark
+    public Bulk build() {
+        return BenchmarkData.bulk(actions, noteLength);
+    }
+
+    @Benchmark
+    public String payload() {
+        return bulk.getData(gson);
+    }
+
+    @Benchmark
+    public String buildAndPayload() {
+        return BenchmarkData.bulk(actions, noteLength).getData(gson);
+    }
+
+    @Benchmark
+    public String codecPayload() {
+        buffer.setLength(0);
+        for (Note note : notes)
+            NoteCodec.writeSource(NoteCodec.writeIndexAction(buffer, note.getId()), note).append('\n');
+        return new NoteBulk(Args.indexName, Args.typeName, buffer.toString()).getData(gson);
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright 2018 Joarder Kamal. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"). You may
+ * not use this file except in compliance with the License. A copy of the
+ * License is located at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazonaws.awsesjestexample;
+
+import io.searchbox.client.JestClient;
+import io.searchbox.core.Bulk;
+import io.searchbox.core.BulkResult;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures end-to-end bulk indexing throughput, in documents per second,
+ * through the signed Jest client against a local stub endpoint. This covers
+ * serialization, signing, the connection pool and response parsing.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class BulkThroughputBenchmark {
+    private static final int DOCS = 10000;
+    private static final int ACTIONS = 1000;
+
+    @Param({"false", "true"})
+    boolean cachedSigner;
+
+    private StubElasticsearch stub;
+    private JestClient jestClient;
+    private Bulk bulk;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        stub = new StubElasticsearch(4);
+
+        // Picked up by the default credentials provider chain
+        System.setProperty("aws.accessKeyId", "AKIDEXAMPLE");
+        System.setProperty("aws.secretKey", "wJalrXUtnFEMI/K7MDENG+bPxRfiCYEXAMPLEKEY");
+
+        Args.domainEndpoint = stub.getEndpoint();
+        Args.cachedSigner = cachedSigner;
+        Args.bulkActions = ACTIONS;
+        Args.bulkLingerMillis = 5;
+        jestClient = AWSESActions.jestClientBuilder();
+
+        bulk = BenchmarkData.bulk(ACTIONS, 200);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        jestClient.close();
+        stub.close();
+    }
+
+    /**
+     * Sends a single bulk request from each benchmark thread
+     */
+    @Benchmark
+    @OperationsPerInvocation(ACTIONS)
+    public BulkResult bulkRequest() throws Exception {
+        BulkResult result = jestClient.execute(bulk);
+        if (!result.isSucceeded())
+            throw new IllegalStateException(result.getErrorMessage());
+        return result;
+    }
+
+    /**
+     * Feeds documents through a BulkIngestor, which batches and sends them concurrently
+     */
+    @Benchmark
+    @OperationsPerInvocation(DOCS)
+    public long bulkIngestor() throws Exception {
+        BulkIngestor ingestor = BulkIngestor.fromArgs(jestClient);
+        for (int i = 0; i < DOCS; i++)
+            ingestor.add(BenchmarkData.note(i, 200));
+        ingestor.close();
+
+        if (ingestor.getFailed() > 0)
+            throw new IllegalStateException(ingestor.getFailed() + " documents failed");
+        return ingestor.getSucceeded();
+    }
+}
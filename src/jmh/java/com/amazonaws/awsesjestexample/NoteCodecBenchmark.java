@@ -0,0 +1,109 @@
+/*
+ * Copyright 2018 Joarder Kamal. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"). You may
+ * not use this file except in compliance with the License. A copy of the
+ * License is located at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazonaws.awsesjestexample;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonParser;
+import io.searchbox.client.AbstractJestClient;
+import io.searchbox.core.SearchResult;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures Note serialization with Gson against NoteCodec, deserialization
+ * with Gson, and decoding of search responses through Jest against the
+ * streaming NoteDecoder.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class NoteCodecBenchmark {
+    private final Gson gson = new GsonBuilder().setDateFormat(AbstractJestClient.ELASTIC_SEARCH_DATE_FORMAT).create();
+
+    @Param({"100"})
+    int hits;
+
+    private final StringBuilder buffer = new StringBuilder();
+
+    private Note note;
+    private String noteJson;
+    private String searchResponse;
+
+    @Setup
+    public void setup() {
+        note = new Note("user", "Lorem ipsum dolor sit amet, consectetur adipiscing elit, sed do eiusmod tempor.");
+        noteJson = gson.toJson(note);
+        searchResponse = BenchmarkData.searchResponse(gson, hits);
+    }
+
+    @Benchmark
+    public String serialize() {
+        return gson.toJson(note);
+    }
+
+    @Benchmark
+    public String encode() {
+        return NoteCodec.encode(note);
+    }
+
+    @Benchmark
+    public int encodeReusingBuffer() {
+        buffer.setLength(0);
+        return NoteCodec.writeSource(buffer, note).length();
+    }
+
+    @Benchmark
+    public Note deserialize() {
+        return gson.fromJson(noteJson, Note.class);
+    }
+
+    @Benchmark
+    public List<Note> decodeWithJest() {
+        SearchResult result = new SearchResult(gson);
+        result.setJsonString(searchResponse);
+        result.setJsonObject(new JsonParser().parse(searchResponse).getAsJsonObject());
+        result.setPathToResult("hits/hits/_source");
+        result.setSucceeded(true);
+        return result.getSourceAsObjectList(Note.class, false);
+    }
+
+    @Benchmark
+    public List<Note> decodePage() throws Exception {
+        return NoteDecoder.decodePage(searchResponse).notes;
+    }
+
+    @Benchmark
+    public int forEachHit(final Blackhole blackhole) throws Exception {
+        return NoteDecoder.forEachHit(searchResponse, new Note(), blackhole::consume);
+    }
+}
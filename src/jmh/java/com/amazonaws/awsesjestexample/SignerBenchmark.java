@@ -0,0 +1,105 @@
+/*
+ * Copyright 2018 Joarder Kamal. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"). You may
+ * not use this file except in compliance with the License. A copy of the
+ * License is located at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazonaws.awsesjestexample;
+
+import com.amazonaws.auth.AWS4Signer;
+import com.amazonaws.auth.AWSCredentialsProvider;
+import com.amazonaws.auth.AWSStaticCredentialsProvider;
+import com.amazonaws.auth.BasicAWSCredentials;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.message.BasicHttpEntityEnclosingRequest;
+import org.apache.http.protocol.BasicHttpContext;
+import org.apache.http.protocol.HttpContext;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import static org.apache.http.protocol.HttpCoreContext.HTTP_TARGET_HOST;
+
+/**
+ * Measures AWSSignerInterceptor.process for bulk request bodies of
+ * different sizes, with the AWS SDK signer and with the caching signer.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class SignerBenchmark {
+    private static final String SERVICE = "es";
+    private static final String REGION = "us-east-1";
+
+    @Param({"1024", "65536", "1048576"})
+    int bodySize;
+
+    @Param({"aws4", "caching", "unsigned"})
+    String signer;
+
+    private byte[] body;
+    private AWSSignerInterceptor interceptor;
+    private HttpContext context;
+
+    @Setup
+    public void setup() {
+        body = new byte[bodySize];
+        Arrays.fill(body, (byte) 'x');
+
+        AWSCredentialsProvider credentials = new AWSStaticCredentialsProvider(
+                new BasicAWSCredentials("AKIDEXAMPLE", "wJalrXUtnFEMI/K7MDENG+bPxRfiCYEXAMPLEKEY"));
+
+        switch (signer) {
+            case "aws4":
+                AWS4Signer aws4Signer = new AWS4Signer();
+                aws4Signer.setServiceName(SERVICE);
+                aws4Signer.setRegionName(REGION);
+                interceptor = new AWSSignerInterceptor(SERVICE, aws4Signer, credentials);
+                break;
+            case "caching":
+                interceptor = new AWSSignerInterceptor(SERVICE, new CachingAWS4Signer(SERVICE, REGION), credentials);
+                break;
+            default:
+                interceptor = new AWSSignerInterceptor(SERVICE,
+                        new CachingAWS4Signer(SERVICE, REGION, PayloadSigning.UNSIGNED, 64 * 1024), credentials);
+        }
+
+        context = new BasicHttpContext();
+        context.setAttribute(HTTP_TARGET_HOST, new HttpHost("search-notes.us-east-1.es.amazonaws.com", 443, "https"));
+    }
+
+    @Benchmark
+    public HttpRequest process() throws Exception {
+        BasicHttpEntityEnclosingRequest request = new BasicHttpEntityEnclosingRequest("POST", "/notes/_bulk");
+        request.setHeader("Host", "search-notes.us-east-1.es.amazonaws.com");
+        request.setEntity(new ByteArrayEntity(body, ContentType.APPLICATION_JSON));
+        interceptor.process(request, context);
+        return request;
+    }
+}
@@ -22,65 +22,233 @@ import com.amazonaws.auth.DefaultAWSCredentialsProviderChain;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 
+import io.searchbox.action.Action;
 import io.searchbox.client.JestClient;
 import io.searchbox.client.JestClientFactory;
 import io.searchbox.client.JestResult;
-import io.searchbox.client.JestResultHandler;
 import io.searchbox.client.config.HttpClientConfig;
-import io.searchbox.core.Bulk;
+import io.searchbox.client.http.JestHttpClient;
+import io.searchbox.core.DocumentResult;
 import io.searchbox.core.Index;
-import io.searchbox.core.Search;
 import io.searchbox.indices.CreateIndex;
 import io.searchbox.indices.DeleteIndex;
+import io.searchbox.indices.IndicesExists;
 
+import org.apache.http.Header;
+import org.apache.http.HttpHeaders;
 import org.apache.http.HttpRequestInterceptor;
+import org.apache.http.HttpResponseInterceptor;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.conn.HttpClientConnectionManager;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
 import org.apache.http.impl.client.DefaultHttpRequestRetryHandler;
 import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
 import org.apache.http.impl.nio.client.HttpAsyncClientBuilder;
+import org.apache.http.impl.nio.conn.PoolingNHttpClientConnectionManager;
+import org.apache.http.nio.conn.NHttpClientConnectionManager;
+import org.apache.http.pool.ConnPoolControl;
+import org.apache.http.pool.PoolStats;
+import org.apache.http.protocol.HttpContext;
+import org.elasticsearch.index.query.QueryBuilder;
 import org.elasticsearch.index.query.QueryBuilders;
 import org.elasticsearch.search.builder.SearchSourceBuilder;
 
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+import java.util.function.ToIntFunction;
+import java.util.stream.Stream;
 
 class AWSESActions {
     private static final String SERVICE_NAME = "es";
     private static final boolean REQUEST_SENT_RETRY_ENABLED = true;
     private static final int RETRY_COUNT = 3;
+    private static final Gson PRETTY_GSON = new GsonBuilder().setPrettyPrinting().create();
+
+    // Keeps connections alive as long as the server allows, capped by --keep-alive-ms
+    private static final ConnectionKeepAliveStrategy KEEP_ALIVE_STRATEGY = (response, context) -> {
+        long serverKeepAlive = DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response, context);
+        return serverKeepAlive > 0 ? Math.min(serverKeepAlive, Args.keepAliveMillis) : Args.keepAliveMillis;
+    };
+
+    // Counts the bytes of requests and responses whose length is known, before any decompression
+    private static final HttpRequestInterceptor SENT_BYTES_INTERCEPTOR =
+            (request, context) -> countBytes("http.bytes.sent", request.getFirstHeader(HttpHeaders.CONTENT_LENGTH));
+    private static final HttpResponseInterceptor RECEIVED_BYTES_INTERCEPTOR =
+            (response, context) -> countBytes("http.bytes.received", response.getFirstHeader(HttpHeaders.CONTENT_LENGTH));
+
+    // Connection pools of every endpoint's client, by endpoint URL
+    private static final Map<String, PoolingHttpClientConnectionManager> connectionPools = new ConcurrentHashMap<>();
+    private static final Map<String, PoolingNHttpClientConnectionManager> asyncConnectionPools = new ConcurrentHashMap<>();
+
+    // Connection pools of the client the factory created last
+    private static volatile PoolingHttpClientConnectionManager connectionPool;
+    private static volatile PoolingNHttpClientConnectionManager asyncConnectionPool;
+
+    private static volatile SearchCache searchCache;
+    private static volatile LoadBalancingJestClient loadBalancer;
+
+    // Completes the futures of all asynchronous requests, shut down along with the client
+    private static ExecutorService callbackExecutor;
 
     static JestClient jestClientBuilder() {
-        AWS4Signer signer = new AWS4Signer();
+        return jestClientBuilder(new DefaultAWSCredentialsProviderChain());
+    }
+
+    /**
+     * @param credentialsProvider source of the credentials requests are signed with
+     * @return the client stack configured from the command line arguments, or null if it could not be created
+     */
+    static JestClient jestClientBuilder(final AWSCredentialsProvider credentialsProvider) {
+        // Requests are signed with credentials held in memory rather than fetched while signing
+        AWSCredentialsProvider refreshingProvider = RefreshingCredentialsProvider.fromArgs(credentialsProvider);
+        AWSCredentialsProvider signingCredentials = refreshingProvider != null ? refreshingProvider : credentialsProvider;
+        HttpRequestInterceptor requestInterceptor;
+
+        if (Args.cachedSigner || Args.payloadSigning != PayloadSigning.FULL) {
+            CachingAWS4Signer signer = new CachingAWS4Signer(SERVICE_NAME, Args.awsRegion,
+                    Args.payloadSigning, Args.streamingChunkSize);
+            requestInterceptor = new AWSSignerInterceptor(SERVICE_NAME, signer, signingCredentials);
+        } else {
+            AWS4Signer signer = new AWS4Signer();
 
-        signer.setServiceName(SERVICE_NAME);
-        signer.setRegionName(Args.awsRegion);
+            signer.setServiceName(SERVICE_NAME);
+            signer.setRegionName(Args.awsRegion);
 
-        AWSCredentialsProvider credentialsProvider = new DefaultAWSCredentialsProviderChain();
-        HttpRequestInterceptor requestInterceptor = new AWSSignerInterceptor(SERVICE_NAME, signer, credentialsProvider);
+            requestInterceptor = new AWSSignerInterceptor(SERVICE_NAME, signer, signingCredentials);
+        }
+
+        final boolean metrics = Metrics.isEnabled();
+        if (metrics) {
+            final HttpRequestInterceptor untimedInterceptor = requestInterceptor;
+            requestInterceptor = (request, context) -> {
+                long start = System.nanoTime();
+                try {
+                    untimedInterceptor.process(request, context);
+                } finally {
+                    Metrics.get().recordLatency("aws.sign", System.nanoTime() - start);
+                }
+            };
+        }
+        final HttpRequestInterceptor signingInterceptor = requestInterceptor;
 
         final JestClientFactory factory = new JestClientFactory() {
             @Override
             protected HttpClientBuilder configureHttpClient(final HttpClientBuilder builder) {
-                builder.addInterceptorLast(requestInterceptor);
-                builder.setRetryHandler(new DefaultHttpRequestRetryHandler(RETRY_COUNT, REQUEST_SENT_RETRY_ENABLED));
+                builder.addInterceptorLast(signingInterceptor);
+                builder.setRetryHandler(new DefaultHttpRequestRetryHandler(RETRY_COUNT, REQUEST_SENT_RETRY_ENABLED) {
+                    @Override
+                    public boolean retryRequest(final IOException exception, final int executionCount,
+                                                final HttpContext context) {
+                        boolean retry = super.retryRequest(exception, executionCount, context);
+                        if (retry)
+                            Metrics.get().increment("http.retries", 1);
+                        return retry;
+                    }
+                });
+                builder.setKeepAliveStrategy(KEEP_ALIVE_STRATEGY);
+                if (metrics) {
+                    builder.addInterceptorLast(SENT_BYTES_INTERCEPTOR);
+                    // Runs before the response is decompressed and its Content-Length removed
+                    builder.addInterceptorFirst(RECEIVED_BYTES_INTERCEPTOR);
+                }
                 return builder;
             }
 
             @Override
             protected HttpAsyncClientBuilder configureHttpClient(final HttpAsyncClientBuilder builder) {
-                builder.addInterceptorLast(requestInterceptor);
+                // Requests are signed by SigningHttpAsyncClient instead, before their entity is captured
+                builder.setKeepAliveStrategy(KEEP_ALIVE_STRATEGY);
+                if (metrics) {
+                    builder.addInterceptorLast(SENT_BYTES_INTERCEPTOR);
+                    builder.addInterceptorFirst(RECEIVED_BYTES_INTERCEPTOR);
+                }
                 return builder;
             }
 
+            @Override
+            protected HttpClientConnectionManager getConnectionManager() {
+                HttpClientConnectionManager manager = super.getConnectionManager();
+                if (manager instanceof PoolingHttpClientConnectionManager)
+                    connectionPool = (PoolingHttpClientConnectionManager) manager;
+                return manager;
+            }
+
+            @Override
+            protected NHttpClientConnectionManager getAsyncConnectionManager() {
+                NHttpClientConnectionManager manager = super.getAsyncConnectionManager();
+                if (manager instanceof PoolingNHttpClientConnectionManager)
+                    asyncConnectionPool = (PoolingNHttpClientConnectionManager) manager;
+                return manager;
+            }
         };
 
-        factory.setHttpClientConfig(new HttpClientConfig
-                .Builder(Args.domainEndpoint)
-                .multiThreaded(true)
-                .build());
+        // Creates a client of its own, with its own connection pools, for every endpoint
+        final Function<String, JestClient> clientFactory = endpoint -> {
+            synchronized (factory) {
+                factory.setHttpClientConfig(new HttpClientConfig
+                        .Builder(endpoint)
+                        .multiThreaded(true)
+                        .maxTotalConnection(Args.maxTotalConnections)
+                        .defaultMaxTotalConnectionPerRoute(Args.maxConnectionsPerRoute)
+                        .connTimeout(Args.connectTimeoutMillis)
+                        .readTimeout(Args.readTimeoutMillis)
+                        .maxConnectionIdleTime(Args.maxIdleMillis, TimeUnit.MILLISECONDS)
+                        // Asynchronous requests are compressed into a buffer by SigningHttpAsyncClient
+                        .requestCompressionEnabled(Args.requestGzip)
+                        .build());
+
+                JestClient client = factory.getObject();
+                if (client instanceof JestHttpClient) {
+                    JestHttpClient httpClient = (JestHttpClient) client;
+                    httpClient.setAsyncClient(new SigningHttpAsyncClient(httpClient.getAsyncClient(), signingInterceptor));
+                }
+                if (connectionPool != null)
+                    connectionPools.put(endpoint, connectionPool);
+                if (asyncConnectionPool != null)
+                    asyncConnectionPools.put(endpoint, asyncConnectionPool);
+                return client;
+            }
+        };
 
         JestClient jestClient = null;
 
         try {
-            jestClient = factory.getObject();
+            loadBalancer = LoadBalancingJestClient.fromArgs(clientFactory);
+            jestClient = loadBalancer != null ? loadBalancer : clientFactory.apply(Args.domainEndpoint);
+
+            // Below coalescing and caching, so a search shared by several callers is hedged only once
+            HedgingJestClient hedgingClient = HedgingJestClient.fromArgs(jestClient);
+            if (hedgingClient != null)
+                jestClient = hedgingClient;
+
+            if (Args.coalesceSearches)
+                jestClient = new CoalescingJestClient(jestClient);
+
+            searchCache = SearchCache.fromArgs();
+            if (searchCache != null)
+                jestClient = new CachingJestClient(jestClient, searchCache);
+
+            if (metrics) {
+                registerPoolGauges(Metrics.get());
+                jestClient = new InstrumentedJestClient(jestClient);
+            }
         } catch (Exception e) {
             AWSESJestExample.LOG.error("Caught an exception while initializaing the JEST client.\n");
             e.printStackTrace();
@@ -90,7 +258,124 @@ class AWSESActions {
     }
 
     /**
-     * Creates an index
+     * Adds the size of a request or response to the given counter
+     * @param name counter to be increased
+     * @param contentLength Content-Length header, if any
+     */
+    private static void countBytes(final String name, final Header contentLength) {
+        if (contentLength != null) {
+            try {
+                Metrics.get().increment(name, Long.parseLong(contentLength.getValue()));
+            } catch (NumberFormatException e) {
+                // Not counted
+            }
+        }
+    }
+
+    /**
+     * Registers gauges of leased, available and pending connections of both connection pools
+     * @param metrics registry the gauges are added to
+     */
+    private static void registerPoolGauges(final MetricsRegistry metrics) {
+        metrics.gauge("pool.leased", poolGauge(AWSESActions::getPoolStats, PoolStats::getLeased));
+        metrics.gauge("pool.available", poolGauge(AWSESActions::getPoolStats, PoolStats::getAvailable));
+        metrics.gauge("pool.pending", poolGauge(AWSESActions::getPoolStats, PoolStats::getPending));
+        metrics.gauge("pool.max", poolGauge(AWSESActions::getPoolStats, PoolStats::getMax));
+        metrics.gauge("async-pool.leased", poolGauge(AWSESActions::getAsyncPoolStats, PoolStats::getLeased));
+        metrics.gauge("async-pool.available", poolGauge(AWSESActions::getAsyncPoolStats, PoolStats::getAvailable));
+        metrics.gauge("async-pool.pending", poolGauge(AWSESActions::getAsyncPoolStats, PoolStats::getPending));
+        metrics.gauge("async-pool.max", poolGauge(AWSESActions::getAsyncPoolStats, PoolStats::getMax));
+    }
+
+    private static LongSupplier poolGauge(final Supplier<PoolStats> pool, final ToIntFunction<PoolStats> stat) {
+        return () -> {
+            PoolStats stats = pool.get();
+            return stats == null ? 0 : stat.applyAsInt(stats);
+        };
+    }
+
+    /**
+     * @return the search result cache, or null if caching is disabled
+     */
+    static SearchCache getSearchCache() {
+        return searchCache;
+    }
+
+    /**
+     * @return the client balancing requests over several endpoints, or null if there is a single one
+     */
+    static LoadBalancingJestClient getLoadBalancer() {
+        return loadBalancer;
+    }
+
+    /**
+     * @return the executor on which the futures of asynchronous requests are completed, shared by all of them
+     */
+    static synchronized ExecutorService getCallbackExecutor() {
+        if (callbackExecutor == null)
+            callbackExecutor = AsyncJestClient.callbackExecutor();
+        return callbackExecutor;
+    }
+
+    /**
+     * Closes the client and stops the callback executor
+     * @param jestClient
+     * @throws IOException
+     */
+    static void shutdown(final JestClient jestClient) throws IOException {
+        try {
+            jestClient.close();
+        } finally {
+            synchronized (AWSESActions.class) {
+                if (callbackExecutor != null)
+                    callbackExecutor.shutdown();
+                callbackExecutor = null;
+            }
+        }
+    }
+
+    /**
+     * @return statistics of the blocking clients' connection pools, or null if not created yet
+     */
+    static PoolStats getPoolStats() {
+        return totalStats(connectionPools);
+    }
+
+    /**
+     * @return statistics of the asynchronous clients' connection pools, or null if not created yet
+     */
+    static PoolStats getAsyncPoolStats() {
+        return totalStats(asyncConnectionPools);
+    }
+
+    /**
+     * @return the sum of the statistics of the pools of the current endpoints
+     */
+    private static PoolStats totalStats(final Map<String, ? extends ConnPoolControl<?>> pools) {
+        LoadBalancingJestClient balancer = loadBalancer;
+        Set<String> endpoints = balancer != null ? balancer.getEndpointUrls() : pools.keySet();
+
+        int leased = 0;
+        int pending = 0;
+        int available = 0;
+        int max = 0;
+        boolean found = false;
+        for (String endpoint : endpoints) {
+            ConnPoolControl<?> pool = pools.get(endpoint);
+            if (pool != null) {
+                PoolStats stats = pool.getTotalStats();
+                leased += stats.getLeased();
+                pending += stats.getPending();
+                available += stats.getAvailable();
+                max += stats.getMax();
+                found = true;
+            }
+        }
+        return found ? new PoolStats(leased, pending, available, max) : null;
+    }
+
+    /**
+     * Creates an index with explicit mappings of the Note fields
      * @param jestClient
      * @throws Exception
      */
@@ -100,7 +385,8 @@ class AWSESActions {
         JestResult result;
 
         try {
-            result = jestClient.execute(new CreateIndex.Builder(Args.indexName).build());
+            result = executeWithBackoff(jestClient, new CreateIndex.Builder(Args.indexName)
+                    .settings(IndexTuning.indexDefinition(Args.typeName)).build());
 
             if(!isValidResult(result))
                 System.exit(result.getResponseCode());
@@ -111,6 +397,18 @@ class AWSESActions {
         }
     }
 
+    /**
+     * Creates the index unless it exists already
+     * @param jestClient
+     * @throws Exception
+     */
+    private static void createIndexIfMissing(final JestClient jestClient) throws Exception {
+        JestResult result = executeWithBackoff(jestClient, new IndicesExists.Builder(Args.indexName).build());
+
+        if (result.getResponseCode() == 404)
+            createIndex(jestClient);
+    }
+
     /**
      * Index some documents into Elasticsearch
      * @param jestClient
@@ -124,14 +422,16 @@ class AWSESActions {
 
         AWSESJestExample.LOG.info("Inserting a single document ...\n" + note1);
 
-        JestResult result;
+        DocumentResult result;
 
         try {
-            result = jestClient.execute(index);
+            result = executeWithBackoff(jestClient, index);
 
             if(!isValidResult(result))
                 System.exit(result.getResponseCode());
 
+            note1.setId(result.getId());
+
         } catch (Exception e) {
             AWSESJestExample.LOG.error("Caught an exception while indexing a single document.\n");
             e.printStackTrace();
@@ -140,83 +440,274 @@ class AWSESActions {
         // Asynch indexing
         final Note note2 = new Note("User2", "Note2: do u see this - "
                 + System.currentTimeMillis());
-        index = new Index.Builder(note2).index(Args.indexName).type(Args.typeName).build();
 
         AWSESJestExample.LOG.info("Inserting a single document asynchronously ...\n" + note2);
 
+        AsyncJestClient asyncClient = AsyncJestClient.fromArgs(jestClient);
+        CompletableFuture<DocumentResult> asyncIndexed = asyncClient
+                .index(Args.indexName, Args.typeName, note2)
+                .whenComplete((documentResult, ex) -> {
+                    if (ex != null)
+                        AWSESJestExample.LOG.error("Caught an exception while indexing a single document asynchronously: "+ex);
+                    else
+                        note2.setId(documentResult.getId());
+                });
+
+        // Bulk indexing
+        AWSESJestExample.LOG.info("Inserting "+Args.bulkDocs+" documents using bulk API ...");
+
+        BulkIngestor ingestor = BulkIngestor.fromArgs(jestClient);
 
         try {
-            jestClient.executeAsync(index, new JestResultHandler<JestResult>() {
-                public void failed(Exception ex) { }
+            IndexTuning tuning = IndexTuning.fromArgs(jestClient);
 
-                public void completed(JestResult result) {
-                    note2.setId((String) result.getValue("_id"));
+            try {
+                for (int i = 0; i < Args.bulkDocs; i++) {
+                    int n = i + 3;
+                    ingestor.add(new Note("User" + n, "Note" + n + ": do u see this - "
+                            + System.currentTimeMillis()));
                 }
-            });
+                ingestor.close();
+                asyncIndexed.handle((documentResult, ex) -> documentResult).join();
+            } finally {
+                if (tuning != null)
+                    tuning.restore();
+            }
+
+            // Makes the documents searchable now rather than at the next periodic refresh
+            IndexTuning.refresh(jestClient, Args.indexName);
+
+            AWSESJestExample.LOG.info("Bulk indexing completed: "+ingestor.getSucceeded()+" succeeded, "
+                    +ingestor.getFailed()+" failed, "+ingestor.getRetried()+" retried.");
+
+            // Documents kept in the spool are not lost, they are sent again on the next run
+            if(ingestor.getSpooled() > 0)
+                AWSESJestExample.LOG.warn(ingestor.getSpooled()+" documents were kept in the spool for the next run.");
+
+            if(ingestor.getFailed() > ingestor.getSpooled())
+                System.exit(1);
 
         } catch (Exception e) {
-            AWSESJestExample.LOG.error("Caught an exception while indexing a single document asynchronously.\n");
+            AWSESJestExample.LOG.error("Caught an exception while bulk indexing the documents.\n");
             e.printStackTrace();
         }
 
+        // Point lookups by id, sent together as a single multi-get request
+        List<String> ids = new ArrayList<>();
+        for (Note note : new Note[] {note1, note2}) {
+            if (note.getId() != null)
+                ids.add(note.getId());
+        }
 
-        // Bulk indexing
-        final Note note3 = new Note("User3", "Note3: do u see this - "
-                + System.currentTimeMillis());
-        final Note note4 = new Note("User4", "Note4: do u see this - "
-                + System.currentTimeMillis());
+        AWSESJestExample.LOG.info("Getting "+ids.size()+" documents by id ...");
+
+        NoteLoader loader = NoteLoader.fromArgs(jestClient);
 
-        Bulk bulk = new Bulk.Builder()
-                .addAction(new Index.Builder(note3).index(Args.indexName)
-                        .type(Args.typeName).build())
-                .addAction(new Index.Builder(note4).index(Args.indexName)
-                        .type(Args.typeName).build()).build();
+        try {
+            for (Note note : loader.loadAll(ids).join())
+                AWSESJestExample.LOG.info(note != null ? note : "Document not found.");
 
-        AWSESJestExample.LOG.info("Inserting two documents using bulk API ...\n" + note3 +"\n"+ note4);
+        } catch (Exception e) {
+            AWSESJestExample.LOG.error("Caught an exception while getting the documents by id.\n");
+            e.printStackTrace();
+        } finally {
+            loader.close();
+        }
+
+        // Partial and scripted updates, batched into bulk requests
+        AWSESJestExample.LOG.info("Updating "+ids.size()+" documents ...");
+
+        NoteUpdater updater = NoteUpdater.fromArgs(jestClient);
 
         try {
-            result = jestClient.execute(bulk);
-            Thread.sleep(2000);
+            List<CompletableFuture<Long>> updates = new ArrayList<>();
+            for (String id : ids) {
+                // Read-modify-write, guarded by the version read
+                updates.add(updater.modify(id, note -> note.getNote().endsWith(" (edited)") ? null
+                        : Collections.<String, Object>singletonMap("note", note.getNote() + " (edited)")));
+                // Counters are changed in place, without reading the document first
+                for (int i = 0; i < 10; i++)
+                    updates.add(updater.script(id, "ctx._source.views = (ctx._source.views ?: 0) + params.n",
+                            Collections.<String, Object>singletonMap("n", 1)));
+            }
+            updater.close();
+            CompletableFuture.allOf(updates.toArray(new CompletableFuture<?>[0])).handle((v, ex) -> v).join();
 
-            if(!isValidResult(result))
-                System.exit(result.getResponseCode());
+            AWSESJestExample.LOG.info("Updates completed: "+updater.getSucceeded()+" succeeded, "
+                    +updater.getFailed()+" failed, "+updater.getConflicts()+" version conflicts retried.");
+
+        } catch (Exception e) {
+            AWSESJestExample.LOG.error("Caught an exception while updating the documents.\n");
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Bulk loads the notes of the files given to the load command, parsing them in parallel,
+     * and logs the throughput and bulk request latencies once done
+     * @param jestClient
+     * @throws Exception
+     */
+    public static void loadData(final JestClient jestClient) throws Exception {
+        AWSESJestExample.LOG.info("Loading "+Args.Load.files.size()+" files into index \""+Args.indexName+"\" ...");
+
+        createIndexIfMissing(jestClient);
+        IndexTuning tuning = IndexTuning.fromArgs(jestClient);
+
+        BulkIngestor ingestor = BulkIngestor.fromArgs(jestClient);
+        ForkJoinPool pool = new ForkJoinPool(Args.Load.parseThreads > 0
+                ? Args.Load.parseThreads : Runtime.getRuntime().availableProcessors());
+        BulkLoader loader = new BulkLoader(ingestor, pool, Args.Load.chunkMegabytes * 1024L * 1024L);
+
+        long start = System.nanoTime();
+        long bytes = 0;
+
+        try {
+            for (String file : Args.Load.files) {
+                LoadFormat format = Args.Load.format != null ? Args.Load.format : LoadFormat.of(file);
+                AWSESJestExample.LOG.info("Loading "+file+" as "+format+" ...");
+                bytes += loader.load(Paths.get(file), format, Args.Load.csvHeader);
+            }
+        } catch (Exception e) {
+            AWSESJestExample.LOG.error("Caught an exception while loading the files.\n");
+            e.printStackTrace();
+        } finally {
+            pool.shutdown();
+            // Sends whatever was parsed, even if a file failed
+            ingestor.close();
+            if (tuning != null)
+                tuning.restore();
+        }
+        IndexTuning.refresh(jestClient, Args.indexName);
+
+        double seconds = (System.nanoTime() - start) / 1e9;
+        AWSESJestExample.LOG.info(String.format("Loaded %d documents from %.1f MB in %.1f s: %.0f docs/sec, %.1f MB/sec; "
+                        + "%d succeeded, %d failed, %d retried, %d malformed lines skipped.",
+                loader.getParsed(), bytes / 1048576.0, seconds, ingestor.getSucceeded() / seconds,
+                bytes / 1048576.0 / seconds, ingestor.getSucceeded(), ingestor.getFailed(), ingestor.getRetried(),
+                loader.getMalformed()));
+        AWSESJestExample.LOG.info("Bulk request latency: "+HdrMetricsRegistry.describe(ingestor.getLatencies()));
+
+        if(ingestor.getSpooled() > 0)
+            AWSESJestExample.LOG.warn(ingestor.getSpooled()+" documents were kept in the spool for the next run.");
+
+        if(ingestor.getFailed() > ingestor.getSpooled())
+            System.exit(1);
+    }
+
+    /**
+     * Runs the synthetic workload of the bench command and logs its throughput and latencies
+     * @param jestClient
+     * @throws Exception
+     */
+    public static void benchmark(final JestClient jestClient) throws Exception {
+        AWSESJestExample.LOG.info("Benchmarking "+Args.Bench.mix+" against "+Args.domainEndpoint+" for "
+                +Args.Bench.durationSeconds+" s after a "+Args.Bench.warmupSeconds+" s warmup ...");
+
+        try {
+            LoadGenerator generator = LoadGenerator.fromArgs(jestClient);
+            generator.run(TimeUnit.SECONDS.toMillis(Args.Bench.warmupSeconds),
+                    TimeUnit.SECONDS.toMillis(Args.Bench.durationSeconds));
+
+            AWSESJestExample.LOG.info("Benchmark results, latencies corrected for coordinated omission "
+                    +"in the response times:\n"+generator.report());
 
         } catch (Exception e) {
-            AWSESJestExample.LOG.error("Caught an exception while bulk indexing two documents.\n");
+            AWSESJestExample.LOG.error("Caught an exception while running the benchmark.\n");
             e.printStackTrace();
         }
     }
 
+    /**
+     * Indexes documents through the blocking client at doubling concurrency levels, up to
+     * --concurrency, and logs the throughput of each level to show where it levels off
+     * @param jestClient
+     * @throws Exception
+     */
+    public static void concurrencySweep(final JestClient jestClient) throws Exception {
+        for (int level = 1; ; level = Math.min(level * 2, Args.concurrency)) {
+            BlockingJestExecutor executor = new BlockingJestExecutor(jestClient, level, Args.virtualThreads);
+            List<CompletableFuture<DocumentResult>> futures = new ArrayList<>(Args.concurrencySweepDocs);
+
+            long start = System.nanoTime();
+            for (int i = 0; i < Args.concurrencySweepDocs; i++) {
+                Note note = new Note("User" + i, "Sweep note " + i + " at concurrency " + level);
+                futures.add(executor.submit(new Index.Builder(note).index(Args.indexName).type(Args.typeName).build()));
+            }
+
+            int failed = 0;
+            for (CompletableFuture<DocumentResult> future : futures) {
+                try {
+                    future.join();
+                } catch (CompletionException e) {
+                    failed++;
+                }
+            }
+            long elapsedNanos = System.nanoTime() - start;
+            executor.close();
+
+            AWSESJestExample.LOG.info(String.format("Concurrency %d (%s threads): %.1f docs/sec, %d failed",
+                    level, executor.isVirtualThreads() ? "virtual" : "platform",
+                    Args.concurrencySweepDocs * 1e9 / elapsedNanos, failed));
+
+            if (level >= Args.concurrency)
+                break;
+        }
+    }
+
     /**
      * Query or Search within an index
      * @param jestClient
      * @throws Exception
      */
     public static void queryIndex(JestClient jestClient) throws Exception {
+        QueryBuilder query = QueryBuilders.termQuery("note", "see");
         SearchSourceBuilder searchSourceBuilder = new SearchSourceBuilder();
-        searchSourceBuilder.query(QueryBuilders.termQuery("note", "see"));
-
-        Search search = new Search.Builder(searchSourceBuilder.toString())
-                .addIndex(Args.indexName).addType(Args.typeName).build();
+        searchSourceBuilder.query(query);
 
         AWSESJestExample.LOG.info("Querying index \""+Args.indexName+"\" for 'note' and 'see' ...");
         AWSESJestExample.LOG.info(searchSourceBuilder.toString());
 
-        JestResult result;
+        // Hits are streamed page by page rather than loaded into a single list
+        try (Stream<Note> notes = NoteStreams.fromArgs(jestClient, query)) {
+            notes.forEach(System.out::println);
 
-        try {
-            result = jestClient.execute(search);
+        } catch (Exception e) {
+            AWSESJestExample.LOG.error("Caught an exception while searching the indexed documents.\n");
+            e.printStackTrace();
+        }
+    }
 
-            if(!isValidResult(result))
-                System.exit(result.getResponseCode());
-            else {
-                List<Note> notes = result.getSourceAsObjectList(Note.class);
-                for (Note note : notes)
-                    System.out.println(note);
+    /**
+     * Counts the notes per user and time interval with a composite aggregation, paging through the counts
+     * rather than fetching the notes, and prints them
+     * @param jestClient
+     * @throws Exception
+     */
+    public static void reportNotes(final JestClient jestClient) throws Exception {
+        AWSESJestExample.LOG.info("Counting the notes of index \""+Args.indexName+"\" per user and "
+                +Args.Report.interval+" ...");
+
+        long buckets = 0;
+        long notes = 0;
+
+        // Counts are streamed page by page, however many users and intervals there are
+        try (Stream<NoteDecoder.Bucket> counts = NoteStreams.notesPerUserFromArgs(jestClient,
+                QueryBuilders.matchAllQuery())) {
+            Iterator<NoteDecoder.Bucket> iterator = counts.iterator();
+            while (iterator.hasNext()) {
+                NoteDecoder.Bucket bucket = iterator.next();
+                Object start = bucket.key.get("interval");
+                System.out.println(bucket.key.get("userName") + "\t"
+                        + (start instanceof Long ? Instant.ofEpochMilli((Long) start) : start) + "\t" + bucket.docCount);
+                buckets++;
+                notes += bucket.docCount;
             }
 
+            AWSESJestExample.LOG.info("Counted "+notes+" notes in "+buckets+" buckets.");
+
         } catch (Exception e) {
-            AWSESJestExample.LOG.error("Caught an exception while searching the indexed documents.\n");
+            AWSESJestExample.LOG.error("Caught an exception while counting the notes.\n");
             e.printStackTrace();
         }
     }
@@ -233,7 +724,7 @@ class AWSESActions {
         JestResult result;
 
         try {
-            result = jestClient.execute(deleteIndex);
+            result = executeWithBackoff(jestClient, deleteIndex);
 
             if(!isValidResult(result))
                 System.exit(result.getResponseCode());
@@ -244,6 +735,32 @@ class AWSESActions {
         }
     }
 
+    /**
+     * Executes an action, retrying it after a jittered exponential backoff while the cluster
+     * rejects it (429) or is unavailable (5xx), rather than failing at the first rejection
+     * @param jestClient
+     * @param action the action to be executed
+     * @return the first response that is not retryable, or the last one once out of retries
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    static <T extends JestResult> T executeWithBackoff(final JestClient jestClient, final Action<T> action)
+            throws IOException, InterruptedException {
+        Backoff backoff = Backoff.fromArgs();
+
+        for (int attempt = 1; ; attempt++) {
+            T result = jestClient.execute(action);
+            int status = result.getResponseCode();
+
+            if ((status != 429 && status < 500) || attempt > Args.maxRetries)
+                return result;
+
+            long delayMillis = backoff.delayMillis(attempt);
+            AWSESJestExample.LOG.warn("Request was rejected ("+status+"), retrying in "+delayMillis+" ms ...");
+            Thread.sleep(delayMillis);
+        }
+    }
+
     /**
      * Validates the HTTP response coming back from Elasticsearch
      * @param result
@@ -251,16 +768,13 @@ class AWSESActions {
      * @throws Exception
      */
     private static boolean isValidResult(JestResult result) throws Exception {
-        AWSESJestExample.LOG.debug("Response from Elasticsearch ...");
-
-        Gson gson = new GsonBuilder().setPrettyPrinting().create();
-
-        if(!result.isSucceeded()) {
-            AWSESJestExample.LOG.debug(gson.toJson(result.getErrorMessage()));
-            return false;
-        } else {
-            AWSESJestExample.LOG.debug(gson.toJson(result.getJsonObject()));
-            return true;
+        // Pretty-printing the whole response is only worth it when it is going to be logged
+        if (AWSESJestExample.LOG.isDebugEnabled()) {
+            AWSESJestExample.LOG.debug("Response from Elasticsearch ...");
+            AWSESJestExample.LOG.debug(PRETTY_GSON.toJson(result.isSucceeded()
+                    ? result.getJsonObject() : result.getErrorMessage()));
         }
+
+        return result.isSucceeded();
     }
 }
@@ -15,7 +15,10 @@
 
 package com.amazonaws.awsesjestexample;
 
+import com.amazonaws.auth.AWSCredentialsProvider;
+import com.amazonaws.auth.DefaultAWSCredentialsProviderChain;
 import com.beust.jcommander.JCommander;
+import com.beust.jcommander.ParameterException;
 import io.searchbox.client.JestClient;
 import org.apache.logging.log4j.Level;
 import org.apache.logging.log4j.LogManager;
@@ -48,18 +51,22 @@ public class AWSESJestExample {
     public static void main(String ... argv) {
         Args args = new Args();
 
-        JCommander jCommander = JCommander.newBuilder().addObject(args).build();
+        JCommander jCommander = JCommander.newBuilder().addObject(args).addCommand(new Args.Load())
+                .addCommand(new Args.Bench()).addCommand(new Args.Report()).build();
         jCommander.parse(argv);
 
+        String command = jCommander.getParsedCommand();
+        boolean stubbed = "bench".equals(command) && Args.Bench.stub;
+
         // Show help
         if (Args.help) {
             jCommander.usage();
             return;
 
-        } else {
-            // Read the command line arguments
-            JCommander.newBuilder().addObject(args).build().parse(argv);
+        } else if (Args.domainEndpoint == null && !stubbed) {
+            throw new ParameterException("The following option is required: [--aws-es-endpoint | -endpoint]");
 
+        } else {
             // Initialization
             init();
 
@@ -68,19 +75,55 @@ public class AWSESJestExample {
 
             // Initialises and starts the example
             JestClient jestClient;
+            StubElasticsearch stub = null;
 
             try {
-                jestClient = AWSESActions.jestClientBuilder();
+                Metrics.fromArgs();
+
+                AWSCredentialsProvider credentialsProvider = new DefaultAWSCredentialsProviderChain();
+                if (stubbed) {
+                    // The stub only accepts requests signed with its own credentials
+                    stub = StubElasticsearch.fromArgs();
+                    Args.domainEndpoint = stub.getEndpoint();
+                    credentialsProvider = stub.getCredentialsProvider();
+                }
+                jestClient = AWSESActions.jestClientBuilder(credentialsProvider);
 
                 if(jestClient != null) {
-                    AWSESActions.createIndex(jestClient);
-                    AWSESActions.indexData(jestClient);
-                    AWSESActions.queryIndex(jestClient);
-                    AWSESActions.deleteIndex(jestClient);
+                    if ("load".equals(command)) {
+                        AWSESActions.loadData(jestClient);
+                    } else if ("bench".equals(command)) {
+                        AWSESActions.benchmark(jestClient);
+                    } else if ("report".equals(command)) {
+                        AWSESActions.reportNotes(jestClient);
+                    } else {
+                        AWSESActions.createIndex(jestClient);
+                        AWSESActions.indexData(jestClient);
+                        if (Args.concurrencySweepDocs > 0)
+                            AWSESActions.concurrencySweep(jestClient);
+                        AWSESActions.queryIndex(jestClient);
+                        AWSESActions.reportNotes(jestClient);
+                        AWSESActions.deleteIndex(jestClient);
+                    }
+
+                    AWSESJestExample.LOG.debug("Connection pool: "+AWSESActions.getPoolStats()
+                            +", asynchronous connection pool: "+AWSESActions.getAsyncPoolStats());
+                    if (AWSESActions.getLoadBalancer() != null)
+                        AWSESJestExample.LOG.info("Load balancer: "+AWSESActions.getLoadBalancer());
+                    if (AWSESActions.getSearchCache() != null)
+                        AWSESJestExample.LOG.info("Search cache: "+AWSESActions.getSearchCache());
+                    if (stub != null)
+                        AWSESJestExample.LOG.info("Stub: "+stub);
+                    Metrics.log();
+
+                    AWSESActions.shutdown(jestClient);
                 }
             } catch (Exception e) {
                 AWSESJestExample.LOG.error("Caught an exception while initializaing the JEST client.\n");
                 e.printStackTrace();
+            } finally {
+                if (stub != null)
+                    stub.close();
             }
         }
 
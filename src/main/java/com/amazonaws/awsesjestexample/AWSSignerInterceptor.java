@@ -21,12 +21,14 @@ import com.amazonaws.auth.Signer;
 import com.amazonaws.http.HttpMethodName;
 import org.apache.http.*;
 import org.apache.http.client.utils.URIBuilder;
-import org.apache.http.entity.BasicHttpEntity;
+import org.apache.http.entity.ByteArrayEntity;
 import org.apache.http.message.BasicHeader;
 import org.apache.http.message.BasicNameValuePair;
 import org.apache.http.protocol.HttpContext;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.util.ArrayList;
@@ -44,6 +46,7 @@ public class AWSSignerInterceptor implements HttpRequestInterceptor {
 
     private final String service;
     private final Signer signer;
+    private final CachingAWS4Signer cachingSigner;
     private final AWSCredentialsProvider awsCredentialsProvider;
 
     /**
@@ -56,12 +59,38 @@ public class AWSSignerInterceptor implements HttpRequestInterceptor {
                                 final AWSCredentialsProvider awsCredentialsProvider) {
         this.service = service;
         this.signer = signer;
+        this.cachingSigner = null;
+        this.awsCredentialsProvider = awsCredentialsProvider;
+    }
+
+    /**
+     * @param service service that we're connecting to
+     * @param cachingSigner signer that works directly on the HTTP request
+     * @param awsCredentialsProvider source of AWS credentials for signing
+     */
+    public AWSSignerInterceptor(final String service,
+                                final CachingAWS4Signer cachingSigner,
+                                final AWSCredentialsProvider awsCredentialsProvider) {
+        this.service = service;
+        this.signer = null;
+        this.cachingSigner = cachingSigner;
         this.awsCredentialsProvider = awsCredentialsProvider;
     }
 
     @Override
     public void process(final HttpRequest request, final HttpContext context)
             throws HttpException, IOException {
+        if (cachingSigner != null) {
+            // Sign in place, without copying to and from an AWS DefaultRequest
+            HttpEntity entity = entityOf(request);
+            if (entity != null && cachingSigner.hashesPayload())
+                ((HttpEntityEnclosingRequest) request).setEntity(repeatableEntity(entity));
+
+            cachingSigner.sign(request, (HttpHost) context.getAttribute(HTTP_TARGET_HOST),
+                    awsCredentialsProvider.getCredentials());
+            return;
+        }
+
         URIBuilder uriBuilder;
         try {
             uriBuilder = new URIBuilder(request.getRequestLine().getUri());
@@ -91,7 +120,11 @@ public class AWSSignerInterceptor implements HttpRequestInterceptor {
             HttpEntityEnclosingRequest httpEntityEnclosingRequest =
                     (HttpEntityEnclosingRequest) request;
             if (httpEntityEnclosingRequest.getEntity() != null) {
-                signableRequest.setContent(httpEntityEnclosingRequest.getEntity().getContent());
+                // The signer hashes the payload from a markable stream and resets it,
+                // so the (repeatable) entity itself can be sent and retried unchanged
+                HttpEntity entity = repeatableEntity(httpEntityEnclosingRequest.getEntity());
+                httpEntityEnclosingRequest.setEntity(entity);
+                signableRequest.setContent(entity.getContent());
             }
         }
         signableRequest.setParameters(nvpToMapParams(uriBuilder.getQueryParams()));
@@ -102,15 +135,41 @@ public class AWSSignerInterceptor implements HttpRequestInterceptor {
 
         // Now copy everything back
         request.setHeaders(mapToHeaderArray(signableRequest.getHeaders()));
-        if (request instanceof HttpEntityEnclosingRequest) {
-            HttpEntityEnclosingRequest httpEntityEnclosingRequest =
-                    (HttpEntityEnclosingRequest) request;
-            if (httpEntityEnclosingRequest.getEntity() != null) {
-                BasicHttpEntity basicHttpEntity = new BasicHttpEntity();
-                basicHttpEntity.setContent(signableRequest.getContent());
-                httpEntityEnclosingRequest.setEntity(basicHttpEntity);
+    }
+
+    /**
+     * @param request HTTP request
+     * @return the entity enclosed in the request, or null if there is none
+     */
+    static HttpEntity entityOf(final HttpRequest request) {
+        return request instanceof HttpEntityEnclosingRequest
+                ? ((HttpEntityEnclosingRequest) request).getEntity() : null;
+    }
+
+    /**
+     * @param entity request entity to be signed
+     * @return the entity itself if it is repeatable and exposes a markable content stream,
+     * otherwise a repeatable copy of it buffered exactly once
+     */
+    static HttpEntity repeatableEntity(final HttpEntity entity) throws IOException {
+        if (entity.isRepeatable()) {
+            try (InputStream content = entity.getContent()) {
+                if (content != null && content.markSupported())
+                    return entity;
+            } catch (UnsupportedOperationException e) {
+                // e.g. a compressing wrapper that can only be written out
             }
         }
+
+        ContentBuffer buffer = new ContentBuffer(
+                entity.getContentLength() > 0 ? (int) entity.getContentLength() : 4096);
+        entity.writeTo(buffer);
+
+        ByteArrayEntity bufferedEntity = buffer.toEntity();
+        bufferedEntity.setContentType(entity.getContentType());
+        bufferedEntity.setContentEncoding(entity.getContentEncoding());
+        bufferedEntity.setChunked(entity.isChunked());
+        return bufferedEntity;
     }
 
     /**
@@ -177,4 +236,17 @@ public class AWSSignerInterceptor implements HttpRequestInterceptor {
         }
         return headers;
     }
-}
\ No newline at end of file
+
+    /**
+     * A ByteArrayOutputStream whose content can be wrapped in an entity without copying it
+     */
+    private static final class ContentBuffer extends ByteArrayOutputStream {
+        private ContentBuffer(final int size) {
+            super(size);
+        }
+
+        private ByteArrayEntity toEntity() {
+            return new ByteArrayEntity(buf, 0, count);
+        }
+    }
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright 2018 Joarder Kamal. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"). You may
+ * not use this file except in compliance with the License. A copy of the
+ * License is located at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazonaws.awsesjestexample;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sizes bulk requests and limits how many are in flight, adapting both to
+ * what the cluster sustains (AIMD). Rejections (429 or
+ * es_rejected_execution_exception) halve the batch size and concurrency;
+ * responses slower than the target latency shrink the batch size by a
+ * quarter. Every healthy response grows the batch size by a step, and
+ * every window of as many healthy responses as requests allowed in flight
+ * grows the concurrency by one, both up to their maximum. Decreases are
+ * applied at most once per target latency, so a burst of rejections from
+ * the same window of requests counts once. When not adaptive the limits
+ * stay at their maximum.
+ */
+class AdaptiveBulkController {
+    private final int minActions;
+    private final int maxActions;
+    private final int maxConcurrency;
+    private final long targetLatencyNanos;
+    private final boolean adaptive;
+    private final int actionsStep;
+
+    private int actions;
+    private int concurrency;
+    private int inFlight = 0;
+    private int healthyResponses = 0;
+    private long lastDecreaseNanos;
+
+    /**
+     * @param minActions lower bound of the batch size
+     * @param maxActions upper and initial batch size
+     * @param maxConcurrency upper and initial number of bulk requests in flight
+     * @param targetLatencyMillis bulk latency above which the batch size is reduced
+     * @param adaptive false to keep the limits fixed at their maximum
+     */
+    AdaptiveBulkController(final int minActions,
+                           final int maxActions,
+                           final int maxConcurrency,
+                           final long targetLatencyMillis,
+                           final boolean adaptive) {
+        this.maxActions = Math.max(1, maxActions);
+        this.minActions = Math.min(Math.max(1, minActions), this.maxActions);
+        this.maxConcurrency = Math.max(1, maxConcurrency);
+        this.targetLatencyNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, targetLatencyMillis));
+        this.adaptive = adaptive;
+        this.actionsStep = Math.max(1, this.maxActions / 20);
+
+        this.actions = this.maxActions;
+        this.concurrency = this.maxConcurrency;
+        this.lastDecreaseNanos = System.nanoTime() - targetLatencyNanos;
+
+        Metrics.get().gauge("bulk.batch-actions", this::getActions);
+        Metrics.get().gauge("bulk.concurrency", this::getConcurrency);
+    }
+
+    /**
+     * @return a controller configured from the command line arguments
+     */
+    static AdaptiveBulkController fromArgs() {
+        return new AdaptiveBulkController(Args.bulkMinActions, Args.bulkActions, Args.bulkConcurrency,
+                Args.bulkTargetLatencyMillis, Args.bulkAdaptive);
+    }
+
+    /**
+     * @return the current maximum number of documents per bulk request
+     */
+    synchronized int getActions() {
+        return actions;
+    }
+
+    /**
+     * @return the current maximum number of bulk requests in flight
+     */
+    synchronized int getConcurrency() {
+        return concurrency;
+    }
+
+    /**
+     * @return the largest batch size this controller may ask for
+     */
+    int getMaxActions() {
+        return maxActions;
+    }
+
+    /**
+     * @return the largest concurrency this controller may allow
+     */
+    int getMaxConcurrency() {
+        return maxConcurrency;
+    }
+
+    /**
+     * Waits until another bulk request may be sent
+     * @throws InterruptedException
+     */
+    synchronized void acquire() throws InterruptedException {
+        while (inFlight >= concurrency)
+            wait();
+        inFlight++;
+    }
+
+    /**
+     * Signals that a bulk request has been answered
+     */
+    synchronized void release() {
+        inFlight--;
+        notifyAll();
+    }
+
+    /**
+     * Waits until no bulk request is in flight
+     * @throws InterruptedException
+     */
+    synchronized void awaitIdle() throws InterruptedException {
+        while (inFlight > 0)
+            wait();
+    }
+
+    /**
+     * @param latencyNanos time the bulk request took
+     */
+    synchronized void onSuccess(final long latencyNanos) {
+        if (!adaptive)
+            return;
+
+        if (latencyNanos > targetLatencyNanos) {
+            if (canDecrease())
+                decrease(Math.max(minActions, actions * 3 / 4), concurrency, "slow responses");
+            return;
+        }
+
+        actions = Math.min(maxActions, actions + actionsStep);
+        if (++healthyResponses >= concurrency && concurrency < maxConcurrency) {
+            healthyResponses = 0;
+            concurrency++;
+            notifyAll();
+        }
+    }
+
+    /**
+     * Signals that the cluster rejected a bulk request or some of its items
+     */
+    synchronized void onRejected() {
+        if (adaptive && canDecrease())
+            decrease(Math.max(minActions, actions / 2), Math.max(1, concurrency / 2), "rejections");
+    }
+
+    private boolean canDecrease() {
+        return System.nanoTime() - lastDecreaseNanos >= targetLatencyNanos;
+    }
+
+    private void decrease(final int newActions, final int newConcurrency, final String reason) {
+        if (newActions == actions && newConcurrency == concurrency)
+            return;
+
+        AWSESJestExample.LOG.debug("Reducing bulk requests to "+newActions+" documents and "
+                +newConcurrency+" in flight due to "+reason+".");
+        actions = newActions;
+        concurrency = newConcurrency;
+        healthyResponses = 0;
+        lastDecreaseNanos = System.nanoTime();
+    }
+}
@@ -16,6 +16,10 @@
 package com.amazonaws.awsesjestexample;
 
 import com.beust.jcommander.Parameter;
+import com.beust.jcommander.Parameters;
+
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * This class defines the required and optional command line parameters
@@ -23,7 +27,7 @@ import com.beust.jcommander.Parameter;
 
 public class Args {
     // AWS Elasticsearch Service domain endpoint
-    @Parameter(names={"--aws-es-endpoint", "-endpoint"}, required = true, description = "AWS Elasticsearch Service domain endpoint: <URL>")
+    @Parameter(names={"--aws-es-endpoint", "-endpoint"}, required = false, description = "AWS Elasticsearch Service domain endpoint, required unless benchmarking against the stub, or a comma separated list of endpoints serving the same data to balance requests over: <URL>[,<URL>...]")
     public static String domainEndpoint;
     @Parameter(names={"--aws-region", "-region"}, required = false, description = "AWS region: <String>")
     public static String awsRegion = "us-east-1";
@@ -32,12 +36,197 @@ public class Args {
     @Parameter(names={"--index-type-name", "-type"}, required = false, description = "Elasticsearch index type name: <String>")
     public static String typeName = "notes";
 
+    // Endpoints
+    @Parameter(names={"--endpoint-weights"}, required = false, description = "Relative share of the requests of each endpoint, in the order of --aws-es-endpoint: <int>[,<int>...]")
+    public static String endpointWeights = null;
+    @Parameter(names={"--endpoint-failures"}, required = false, description = "Consecutive failures after which an endpoint is ejected: <int>")
+    public static int endpointFailures = 3;
+    @Parameter(names={"--endpoint-ejection-ms"}, required = false, description = "Time an endpoint is first ejected for in milliseconds, doubled on every further ejection: <long>")
+    public static long endpointEjectionMillis = 5000;
+    @Parameter(names={"--health-check-ms"}, required = false, description = "Interval of endpoint health checks in milliseconds, 0 to disable them: <long>")
+    public static long healthCheckMillis = 10000;
+    @Parameter(names={"--sniff-ms"}, required = false, description = "Interval at which nodes are discovered through _nodes/http in milliseconds, 0 to disable, only for nodes reachable directly: <long>")
+    public static long sniffMillis = 0;
+
+    // Search
+    @Parameter(names={"--search-page-size"}, required = false, description = "Number of hits fetched per search request when streaming results: <int>")
+    public static int searchPageSize = 500;
+    @Parameter(names={"--scroll-slices"}, required = false, description = "Number of scroll slices read in parallel, 1 to page with search_after instead: <int>")
+    public static int scrollSlices = 1;
+    @Parameter(names={"--scroll-keep-alive"}, required = false, description = "Scroll context keep-alive between pages: <String>")
+    public static String scrollKeepAlive = "1m";
+    @Parameter(names={"--search-cache-ttl-ms"}, required = false, description = "Time search results are cached for in milliseconds, 0 to disable the cache: <long>")
+    public static long searchCacheTtlMillis = 0;
+    @Parameter(names={"--search-cache-max-bytes"}, required = false, description = "Maximum memory used by cached search results in bytes: <long>")
+    public static long searchCacheMaxBytes = 64 * 1024 * 1024;
+    @Parameter(names={"--coalesce-searches"}, required = false, description = "Let identical concurrent searches share a single request: [true, false]")
+    public static boolean coalesceSearches = false;
+    @Parameter(names={"--search-deadline-ms"}, required = false, description = "Time a search request may take in milliseconds, sent to Elasticsearch as a slightly shorter timeout, 0 for no deadline: <long>")
+    public static long searchDeadlineMillis = 0;
+    @Parameter(names={"--hedge-percentile"}, required = false, description = "Percentile of recent search latencies after which an unanswered search is sent again and the first response used, 0 to disable hedging: <double>")
+    public static double hedgePercentile = 0;
+
+    // Point lookups
+    @Parameter(names={"--mget-max-ids"}, required = false, description = "Maximum number of ids per multi-get request: <int>")
+    public static int mgetMaxIds = 100;
+    @Parameter(names={"--mget-window-ms"}, required = false, description = "Time lookups by id are collected for before they are sent as one multi-get request in milliseconds: <long>")
+    public static long mgetWindowMillis = 2;
+    @Parameter(names={"--mget-concurrency"}, required = false, description = "Maximum number of multi-get requests in flight: <int>")
+    public static int mgetConcurrency = 4;
+
+    // Updates
+    @Parameter(names={"--update-actions"}, required = false, description = "Maximum number of updates per bulk request: <int>")
+    public static int updateActions = 500;
+    @Parameter(names={"--update-linger-ms"}, required = false, description = "Maximum time an update waits for its bulk request to fill up in milliseconds: <long>")
+    public static long updateLingerMillis = 50;
+    @Parameter(names={"--update-concurrency"}, required = false, description = "Maximum number of update batches in flight: <int>")
+    public static int updateConcurrency = 4;
+    @Parameter(names={"--update-max-retries"}, required = false, description = "Maximum number of times an update is sent again after a version conflict or transient failure: <int>")
+    public static int updateMaxRetries = 5;
+
+    // Connection pooling
+    @Parameter(names={"--max-total-connections"}, required = false, description = "Maximum number of pooled connections: <int>")
+    public static int maxTotalConnections = 64;
+    @Parameter(names={"--max-connections-per-route"}, required = false, description = "Maximum number of pooled connections per endpoint: <int>")
+    public static int maxConnectionsPerRoute = 32;
+    @Parameter(names={"--connect-timeout-ms"}, required = false, description = "Connection timeout in milliseconds: <int>")
+    public static int connectTimeoutMillis = 3000;
+    @Parameter(names={"--read-timeout-ms"}, required = false, description = "Socket read timeout in milliseconds: <int>")
+    public static int readTimeoutMillis = 30000;
+    @Parameter(names={"--max-idle-ms"}, required = false, description = "Time after which idle pooled connections are evicted in milliseconds: <long>")
+    public static long maxIdleMillis = 30000;
+    @Parameter(names={"--keep-alive-ms"}, required = false, description = "Maximum time a connection is kept alive for reuse in milliseconds: <long>")
+    public static long keepAliveMillis = 50000;
+    @Parameter(names={"--request-gzip"}, required = false, description = "Compress request bodies with gzip: [true, false]")
+    public static boolean requestGzip = false;
+
+    // Asynchronous execution
+    @Parameter(names={"--async-max-outstanding"}, required = false, description = "Maximum number of asynchronous requests awaiting a response: <int>")
+    public static int asyncMaxOutstanding = 256;
+
+    // Blocking execution
+    @Parameter(names={"--concurrency"}, required = false, description = "Maximum number of blocking requests executed at once: <int>")
+    public static int concurrency = 32;
+    @Parameter(names={"--virtual-threads"}, required = false, description = "Run blocking requests on virtual threads when the JVM supports them: [true, false]")
+    public static boolean virtualThreads = false;
+    @Parameter(names={"--concurrency-sweep"}, required = false, description = "Number of documents to index per concurrency level in a load run, 0 to skip: <int>")
+    public static int concurrencySweepDocs = 0;
+
+    // Request signing
+    @Parameter(names={"--cached-signer"}, required = false, description = "Sign requests with the caching SigV4 signer: [true, false]")
+    public static boolean cachedSigner = false;
+    @Parameter(names={"--payload-signing"}, required = false, description = "How the request payload is signed, UNSIGNED and STREAMING imply the caching signer: [FULL, UNSIGNED, STREAMING]")
+    public static PayloadSigning payloadSigning = PayloadSigning.FULL;
+    @Parameter(names={"--streaming-chunk-size"}, required = false, description = "Payload bytes per signed chunk in STREAMING mode: <int>")
+    public static int streamingChunkSize = 64 * 1024;
+    @Parameter(names={"--credentials-refresh-ms"}, required = false, description = "Interval at which AWS credentials are fetched in the background in milliseconds, 0 to fetch them for every request: <long>")
+    public static long credentialsRefreshMillis = 60000;
+
+    // Bulk ingestion
+    @Parameter(names={"--bulk-docs"}, required = false, description = "Number of documents to insert using bulk API: <int>")
+    public static int bulkDocs = 2;
+    @Parameter(names={"--bulk-actions"}, required = false, description = "Maximum number of documents per bulk request: <int>")
+    public static int bulkActions = 1000;
+    @Parameter(names={"--bulk-size-bytes"}, required = false, description = "Maximum payload size per bulk request in bytes: <long>")
+    public static long bulkSizeBytes = 5 * 1024 * 1024;
+    @Parameter(names={"--bulk-linger-ms"}, required = false, description = "Maximum time a document waits for its bulk request to fill up in milliseconds: <long>")
+    public static long bulkLingerMillis = 1000;
+    @Parameter(names={"--bulk-concurrency"}, required = false, description = "Maximum number of bulk requests in flight: <int>")
+    public static int bulkConcurrency = 2;
+    @Parameter(names={"--bulk-max-retries"}, required = false, description = "Maximum number of retries for a failed document: <int>")
+    public static int bulkMaxRetries = 3;
+    @Parameter(names={"--bulk-min-actions"}, required = false, description = "Minimum number of documents per bulk request when backing off: <int>")
+    public static int bulkMinActions = 50;
+    @Parameter(names={"--bulk-target-latency-ms"}, required = false, description = "Bulk request latency above which requests are made smaller in milliseconds: <long>")
+    public static long bulkTargetLatencyMillis = 1000;
+    @Parameter(names={"--bulk-adaptive"}, arity = 1, required = false, description = "Adapt bulk request size and concurrency to rejections and latency, up to --bulk-actions and --bulk-concurrency: [true, false]")
+    public static boolean bulkAdaptive = true;
+    @Parameter(names={"--ingest-mode"}, required = false, description = "Turn off refreshes and replicas of the index while bulk indexing, then restore them and refresh once: [true, false]")
+    public static boolean ingestMode = false;
+
+    // Spooling
+    @Parameter(names={"--spool-dir"}, required = false, description = "Directory of the write-ahead spool for bulk indexing, no spooling if not set: <path>")
+    public static String spoolDir = null;
+    @Parameter(names={"--spool-segment-mb"}, required = false, description = "Size of a spool segment file in megabytes, below 2048: <int>")
+    public static int spoolSegmentMegabytes = 64;
+
+    // Retries
+    @Parameter(names={"--max-retries"}, required = false, description = "Maximum number of retries for a rejected request: <int>")
+    public static int maxRetries = 3;
+    @Parameter(names={"--backoff-base-ms"}, required = false, description = "Upper bound of the first retry delay in milliseconds, doubled on every retry: <long>")
+    public static long backoffBaseMillis = 100;
+    @Parameter(names={"--backoff-max-ms"}, required = false, description = "Upper bound of any retry delay in milliseconds: <long>")
+    public static long backoffMaxMillis = 10000;
+
+    // Metrics
+    @Parameter(names={"--metrics"}, required = false, description = "Record latency histograms and counters of client operations: [true, false]")
+    public static boolean metrics = false;
+    @Parameter(names={"--metrics-jmx"}, required = false, description = "Expose the metrics as an MXBean over JMX, implies --metrics: [true, false]")
+    public static boolean metricsJmx = false;
+    @Parameter(names={"--metrics-report-ms"}, required = false, description = "Interval at which the metrics are logged in milliseconds, 0 to log them only at the end: <long>")
+    public static long metricsReportMillis = 0;
+
     // Others
     @Parameter(names={"--debug", "-d"}, description = "Enable debug logs: [true, false]")
     public static boolean debug = false;
     @Parameter(names={"--help", "-h"}, help = true, description = "Help")
     public static boolean help = false;
 
+    /**
+     * Parameters of the load command, which bulk loads notes from files instead of running the example
+     */
+    @Parameters(commandNames = "load", commandDescription = "Bulk load notes from NDJSON or CSV files into the index")
+    public static class Load {
+        @Parameter(required = true, description = "Files to load: <path> ...")
+        public static List<String> files = new ArrayList<>();
+        @Parameter(names={"--format"}, required = false, description = "Format of the files, by default CSV for .csv files and NDJSON otherwise: [NDJSON, CSV]")
+        public static LoadFormat format = null;
+        @Parameter(names={"--csv-header"}, arity = 1, required = false, description = "CSV files start with a line naming the columns userName, note and createdOn, in any order; without it they come in that order: [true, false]")
+        public static boolean csvHeader = true;
+        @Parameter(names={"--parse-threads"}, required = false, description = "Number of threads parsing the files, 0 for one per processor: <int>")
+        public static int parseThreads = 0;
+        @Parameter(names={"--chunk-mb"}, required = false, description = "Size of the file parts parsed by a single task in megabytes: <int>")
+        public static int chunkMegabytes = 8;
+    }
+
+    /**
+     * Parameters of the bench command, which runs a synthetic workload and reports its latencies instead of running the example
+     */
+    @Parameters(commandNames = "bench", commandDescription = "Benchmark a synthetic mix of index, bulk, search and get operations")
+    public static class Bench {
+        @Parameter(names={"--mix"}, required = false, description = "Relative weights of the operations: index=<int>,bulk=<int>,search=<int>,get=<int>")
+        public static String mix = "index=10,bulk=10,search=80";
+        @Parameter(names={"--loop"}, required = false, description = "Send operations on a fixed schedule (OPEN) or each once the previous one completed (CLOSED): [OPEN, CLOSED]")
+        public static BenchLoop loop = BenchLoop.OPEN;
+        @Parameter(names={"--rate"}, required = false, description = "Target number of operations per second over all clients, 0 for an unpaced closed loop: <int>")
+        public static int rate = 500;
+        @Parameter(names={"--clients"}, required = false, description = "Number of threads sending operations: <int>")
+        public static int clients = 32;
+        @Parameter(names={"--duration-s"}, required = false, description = "Time operations are recorded for in seconds: <int>")
+        public static int durationSeconds = 30;
+        @Parameter(names={"--warmup-s"}, required = false, description = "Time operations are sent for before they are recorded in seconds: <int>")
+        public static int warmupSeconds = 5;
+        @Parameter(names={"--docs-per-bulk"}, required = false, description = "Number of documents per bulk operation: <int>")
+        public static int docsPerBulk = 100;
+        @Parameter(names={"--note-length"}, required = false, description = "Number of characters of the text of every document: <int>")
+        public static int noteLength = 200;
+        @Parameter(names={"--stub"}, required = false, description = "Run against an in-process stub of Elasticsearch that checks SigV4 signatures, instead of --aws-es-endpoint: [true, false]")
+        public static boolean stub = false;
+        @Parameter(names={"--stub-latency-ms"}, required = false, description = "Time the stub takes to serve every request in milliseconds: <long>")
+        public static long stubLatencyMillis = 0;
+    }
+
+    /**
+     * Parameters of the report command, which counts the notes per user and time interval instead of running the example
+     */
+    @Parameters(commandNames = "report", commandDescription = "Count the notes per user and time interval on the cluster, paging through the counts")
+    public static class Report {
+        @Parameter(names={"--interval"}, required = false, description = "Length of the time intervals notes are counted in by creation time, e.g. 1h, 1d, 1w or 1M: <interval>")
+        public static String interval = "1d";
+        @Parameter(names={"--buckets-per-page"}, required = false, description = "Number of counts fetched per search request: <int>")
+        public static int bucketsPerPage = 1000;
+    }
+
     /**
      * Prints the command line arguments if Logger debug option is enabled
      */
@@ -47,6 +236,76 @@ public class Args {
                 +" --aws-region "+awsRegion
                 +" --index-name "+awsRegion
                 +" --index-type-name "+awsRegion
-                +" --debug "+debug);
+                +" --endpoint-weights "+endpointWeights
+                +" --endpoint-failures "+endpointFailures
+                +" --endpoint-ejection-ms "+endpointEjectionMillis
+                +" --health-check-ms "+healthCheckMillis
+                +" --sniff-ms "+sniffMillis
+                +" --search-page-size "+searchPageSize
+                +" --scroll-slices "+scrollSlices
+                +" --scroll-keep-alive "+scrollKeepAlive
+                +" --search-cache-ttl-ms "+searchCacheTtlMillis
+                +" --search-cache-max-bytes "+searchCacheMaxBytes
+                +" --coalesce-searches "+coalesceSearches
+                +" --search-deadline-ms "+searchDeadlineMillis
+                +" --hedge-percentile "+hedgePercentile
+                +" --mget-max-ids "+mgetMaxIds
+                +" --mget-window-ms "+mgetWindowMillis
+                +" --mget-concurrency "+mgetConcurrency
+                +" --update-actions "+updateActions
+                +" --update-linger-ms "+updateLingerMillis
+                +" --update-concurrency "+updateConcurrency
+                +" --update-max-retries "+updateMaxRetries
+                +" --max-total-connections "+maxTotalConnections
+                +" --max-connections-per-route "+maxConnectionsPerRoute
+                +" --connect-timeout-ms "+connectTimeoutMillis
+                +" --read-timeout-ms "+readTimeoutMillis
+                +" --max-idle-ms "+maxIdleMillis
+                +" --keep-alive-ms "+keepAliveMillis
+                +" --request-gzip "+requestGzip
+                +" --async-max-outstanding "+asyncMaxOutstanding
+                +" --concurrency "+concurrency
+                +" --virtual-threads "+virtualThreads
+                +" --concurrency-sweep "+concurrencySweepDocs
+                +" --cached-signer "+cachedSigner
+                +" --payload-signing "+payloadSigning
+                +" --streaming-chunk-size "+streamingChunkSize
+                +" --credentials-refresh-ms "+credentialsRefreshMillis
+                +" --bulk-docs "+bulkDocs
+                +" --bulk-actions "+bulkActions
+                +" --bulk-size-bytes "+bulkSizeBytes
+                +" --bulk-linger-ms "+bulkLingerMillis
+                +" --bulk-concurrency "+bulkConcurrency
+                +" --bulk-max-retries "+bulkMaxRetries
+                +" --bulk-min-actions "+bulkMinActions
+                +" --bulk-target-latency-ms "+bulkTargetLatencyMillis
+                +" --bulk-adaptive "+bulkAdaptive
+                +" --ingest-mode "+ingestMode
+                +" --spool-dir "+spoolDir
+                +" --spool-segment-mb "+spoolSegmentMegabytes
+                +" --max-retries "+maxRetries
+                +" --backoff-base-ms "+backoffBaseMillis
+                +" --backoff-max-ms "+backoffMaxMillis
+                +" --metrics "+metrics
+                +" --metrics-jmx "+metricsJmx
+                +" --metrics-report-ms "+metricsReportMillis
+                +" --debug "+debug
+                +" load "+Load.files
+                +" --format "+Load.format
+                +" --csv-header "+Load.csvHeader
+                +" --parse-threads "+Load.parseThreads
+                +" --chunk-mb "+Load.chunkMegabytes
+                +" bench --mix "+Bench.mix
+                +" --loop "+Bench.loop
+                +" --rate "+Bench.rate
+                +" --clients "+Bench.clients
+                +" --duration-s "+Bench.durationSeconds
+                +" --warmup-s "+Bench.warmupSeconds
+                +" --docs-per-bulk "+Bench.docsPerBulk
+                +" --note-length "+Bench.noteLength
+                +" --stub "+Bench.stub
+                +" --stub-latency-ms "+Bench.stubLatencyMillis
+                +" report --interval "+Report.interval
+                +" --buckets-per-page "+Report.bucketsPerPage);
     }
 }
@@ -0,0 +1,151 @@
+/*
+ * Copyright 2018 Joarder Kamal. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"). You may
+ * not use this file except in compliance with the License. A copy of the
+ * License is located at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazonaws.awsesjestexample;
+
+import io.searchbox.action.Action;
+import io.searchbox.client.JestClient;
+import io.searchbox.client.JestResult;
+import io.searchbox.client.JestResultHandler;
+import io.searchbox.core.Bulk;
+import io.searchbox.core.BulkResult;
+import io.searchbox.core.DocumentResult;
+import io.searchbox.core.Index;
+import io.searchbox.core.Search;
+import io.searchbox.core.SearchResult;
+import io.searchbox.indices.CreateIndex;
+import io.searchbox.indices.DeleteIndex;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A non-blocking facade over the Jest client built on executeAsync.
+ * Every call returns a CompletableFuture which completes exceptionally on
+ * transport failures and on non-2xx responses (with a JestResultException),
+ * so no error is silently dropped. The number of outstanding requests is
+ * bounded: callers block once the limit is reached until a response comes in.
+ * Futures are completed on a callback executor rather than on the I/O
+ * reactor, so dependent stages may themselves issue requests.
+ */
+class AsyncJestClient {
+    private final JestClient jestClient;
+    private final Semaphore outstanding;
+    private final int maxOutstanding;
+    private final Executor callbackExecutor;
+
+    /**
+     * @param jestClient client used to send the requests
+     * @param maxOutstanding maximum number of requests awaiting a response
+     * @param callbackExecutor executor on which the returned futures are completed
+     */
+    AsyncJestClient(final JestClient jestClient, final int maxOutstanding, final Executor callbackExecutor) {
+        this.jestClient = jestClient;
+        this.maxOutstanding = Math.max(1, maxOutstanding);
+        this.outstanding = new Semaphore(this.maxOutstanding);
+        this.callbackExecutor = callbackExecutor;
+    }
+
+    /**
+     * @return an asynchronous client configured from the command line arguments
+     */
+    static AsyncJestClient fromArgs(final JestClient jestClient) {
+        return new AsyncJestClient(jestClient, Args.asyncMaxOutstanding, AWSESActions.getCallbackExecutor());
+    }
+
+    /**
+     * Creates a callback executor; clients configured from the command line arguments share
+     * the one of AWSESActions.getCallbackExecutor() instead
+     * @return a daemon thread pool sized to the number of processors
+     */
+    static ExecutorService callbackExecutor() {
+        AtomicInteger count = new AtomicInteger();
+        return Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), r -> {
+            Thread thread = new Thread(r, "jest-callback-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Sends the action asynchronously, waiting for a free slot if too many requests are outstanding
+     * @param action the action to be executed
+     * @return a future of the response
+     */
+    <T extends JestResult> CompletableFuture<T> execute(final Action<T> action) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+
+        try {
+            outstanding.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            future.completeExceptionally(e);
+            return future;
+        }
+
+        try {
+            jestClient.executeAsync(action, new JestResultHandler<T>() {
+                public void completed(T result) {
+                    outstanding.release();
+                    if (result.getResponseCode() / 100 == 2)
+                        callbackExecutor.execute(() -> future.complete(result));
+                    else
+                        callbackExecutor.execute(() -> future.completeExceptionally(new JestResultException(result)));
+                }
+
+                public void failed(Exception ex) {
+                    outstanding.release();
+                    callbackExecutor.execute(() -> future.completeExceptionally(ex));
+                }
+            });
+        } catch (Exception e) {
+            outstanding.release();
+            future.completeExceptionally(e);
+        }
+
+        return future;
+    }
+
+    CompletableFuture<JestResult> createIndex(final String indexName) {
+        return execute(new CreateIndex.Builder(indexName).build());
+    }
+
+    CompletableFuture<DocumentResult> index(final String indexName, final String typeName, final Object source) {
+        return execute(new Index.Builder(source).index(indexName).type(typeName).build());
+    }
+
+    CompletableFuture<BulkResult> bulk(final Bulk bulk) {
+        return execute(bulk);
+    }
+
+    CompletableFuture<SearchResult> search(final String indexName, final String typeName, final String query) {
+        return execute(new Search.Builder(query).addIndex(indexName).addType(typeName).build());
+    }
+
+    CompletableFuture<JestResult> deleteIndex(final String indexName) {
+        return execute(new DeleteIndex.Builder(indexName).build());
+    }
+
+    /**
+     * @return number of requests currently awaiting a response
+     */
+    int getOutstanding() {
+        return maxOutstanding - outstanding.availablePermits();
+    }
+}
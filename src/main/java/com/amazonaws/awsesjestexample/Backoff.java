@@ -0,0 +1,54 @@
+/*
+ * Copyright 2018 Joarder Kamal. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"). You may
+ * not use this file except in compliance with the License. A copy of the
+ * License is located at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazonaws.awsesjestexample;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Exponential backoff with full jitter: the n-th retry waits a random time
+ * between zero and min(max, base * 2^(n-1)). Spreading the retries out
+ * keeps clients that were rejected together from coming back together.
+ */
+final class Backoff {
+    private final long baseMillis;
+    private final long maxMillis;
+
+    /**
+     * @param baseMillis upper bound of the first delay
+     * @param maxMillis upper bound of any delay
+     */
+    Backoff(final long baseMillis, final long maxMillis) {
+        this.baseMillis = Math.max(1, baseMillis);
+        this.maxMillis = Math.max(this.baseMillis, maxMillis);
+    }
+
+    /**
+     * @return a backoff configured from the command line arguments
+     */
+    static Backoff fromArgs() {
+        return new Backoff(Args.backoffBaseMillis, Args.backoffMaxMillis);
+    }
+
+    /**
+     * @param attempt number of the retry, starting at 1
+     * @return time to wait before the retry in milliseconds
+     */
+    long delayMillis(final int attempt) {
+        int shift = Math.min(Math.max(0, attempt - 1), 30);
+        long cap = Math.min(maxMillis, baseMillis << shift);
+        return ThreadLocalRandom.current().nextLong(cap + 1);
+    }
+}
@@ -0,0 +1,27 @@
+/*
+ * Copyright 2018 Joarder Kamal. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"). You may
+ * not use this file except in compliance with the License. A copy of the
+ * License is located at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+
+package com.amazonaws.awsesjestexample;
+
+/**
+ * Defines how the bench command paces its operations
+ */
+public enum BenchLoop {
+    // Operations start on a fixed schedule at the target rate, whether or not earlier ones have completed
+    OPEN,
+    // Every client starts its next operation only once the previous one has completed
+    CLOSED
+}
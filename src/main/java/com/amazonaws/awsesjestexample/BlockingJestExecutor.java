@@ -0,0 +1,142 @@
+/*
+ * Copyright 2018 Joarder Kamal. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"). You may
+ * not use this file except in compliance with the License. A copy of the
+ * License is located at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazonaws.awsesjestexample;
+
+import io.searchbox.action.Action;
+import io.searchbox.client.JestClient;
+import io.searchbox.client.JestResult;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs blocking Jest client calls off the caller's thread. On JVMs that
+ * support virtual threads (Java 21+) every operation gets its own virtual
+ * thread and a semaphore caps how many of them hold a connection at once;
+ * on older JVMs a bounded platform thread pool of the same size is used.
+ * Either way throughput scales with the connection pool, not with the
+ * number of caller threads.
+ */
+class BlockingJestExecutor implements AutoCloseable {
+    private final JestClient jestClient;
+    private final ExecutorService executor;
+    private final Semaphore permits;
+    private final boolean virtualThreads;
+
+    /**
+     * @param jestClient client used to send the requests
+     * @param concurrency maximum number of requests executed at once
+     * @param preferVirtualThreads use virtual threads if the JVM supports them
+     */
+    BlockingJestExecutor(final JestClient jestClient, final int concurrency, final boolean preferVirtualThreads) {
+        this.jestClient = jestClient;
+        this.permits = new Semaphore(Math.max(1, concurrency));
+
+        ExecutorService virtualExecutor = preferVirtualThreads ? newVirtualThreadExecutor() : null;
+        this.virtualThreads = virtualExecutor != null;
+
+        if (virtualExecutor != null) {
+            this.executor = virtualExecutor;
+        } else {
+            AtomicInteger count = new AtomicInteger();
+            this.executor = Executors.newFixedThreadPool(Math.max(1, concurrency), r -> {
+                Thread thread = new Thread(r, "jest-worker-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
+    /**
+     * @return an executor configured from the command line arguments
+     */
+    static BlockingJestExecutor fromArgs(final JestClient jestClient) {
+        return new BlockingJestExecutor(jestClient, Args.concurrency, Args.virtualThreads);
+    }
+
+    /**
+     * Looks up Executors.newVirtualThreadPerTaskExecutor() so the build can keep targeting Java 8
+     * @return a virtual thread per task executor, or null if the JVM does not support it
+     */
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            AWSESJestExample.LOG.debug("Virtual threads are not available, using a platform thread pool.");
+            return null;
+        }
+    }
+
+    /**
+     * Executes the action on a worker thread
+     * @param action the action to be executed
+     * @return a future of the response, completed exceptionally on failures and non-2xx responses
+     */
+    <T extends JestResult> CompletableFuture<T> submit(final Action<T> action) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+
+        executor.execute(() -> {
+            try {
+                permits.acquire();
+                try {
+                    T result = jestClient.execute(action);
+                    if (result.getResponseCode() / 100 == 2)
+                        future.complete(result);
+                    else
+                        future.completeExceptionally(new JestResultException(result));
+                } finally {
+                    permits.release();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                future.completeExceptionally(e);
+            } catch (Exception e) {
+                future.completeExceptionally(e);
+            }
+        });
+
+        return future;
+    }
+
+    /**
+     * @return true if operations run on virtual threads
+     */
+    boolean isVirtualThreads() {
+        return virtualThreads;
+    }
+
+    /**
+     * Waits for the submitted operations to complete and stops the worker threads
+     * @throws InterruptedIOException if interrupted while waiting, with the interrupt flag set again
+     */
+    @Override
+    public void close() throws InterruptedIOException {
+        executor.shutdown();
+        try {
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            InterruptedIOException interrupted = new InterruptedIOException("Interrupted while closing the executor");
+            interrupted.initCause(e);
+            throw interrupted;
+        }
+    }
+}
@@ -0,0 +1,547 @@
+/*
+ * Copyright 2018 Joarder Kamal. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"). You may
+ * not use this file except in compliance with the License. A copy of the
+ * License is located at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazonaws.awsesjestexample;
+
+import io.searchbox.client.JestClient;
+import io.searchbox.client.JestResultHandler;
+import io.searchbox.core.BulkResult;
+
+import org.HdrHistogram.ConcurrentHistogram;
+import org.HdrHistogram.Histogram;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Streams Notes into Elasticsearch using size-bounded bulk requests.
+ * A batch is flushed once it reaches the maximum number of actions, the
+ * maximum payload size or the linger time, whichever comes first. Bulk
+ * requests are kept in flight via executeAsync, with the batch size and
+ * concurrency adapted to the cluster by an AdaptiveBulkController. Only the
+ * items that failed with a retryable status are sent again, each after a
+ * jittered exponential backoff. With a NoteSpool, documents are written
+ * ahead to disk and acknowledged once indexed, or once their own item
+ * failed for good; those left over by an earlier run, by this one once out
+ * of retries, or by requests turned down as a whole, are sent first on the
+ * next start. The NDJSON payload of every request is written by NoteCodec
+ * into a buffer reused across requests.
+ */
+class BulkIngestor implements AutoCloseable {
+    private static final long POLL_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+
+    private final JestClient jestClient;
+    private final String indexName;
+    private final String typeName;
+    private final AdaptiveBulkController controller;
+    private final long maxBytes;
+    private final long lingerMillis;
+    private final int maxRetries;
+    private final Backoff backoff;
+    private final NoteSpool spool;
+    private final Iterator<Item> replay;
+
+    private final BlockingQueue<Item> queue;
+    private final DelayQueue<Item> retries = new DelayQueue<>();
+    private final Thread flusher;
+    private final StringBuilder payload = new StringBuilder();
+
+    private final AtomicLong succeeded = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong retried = new AtomicLong();
+    private final AtomicLong spooled = new AtomicLong();
+    private final AtomicLong pending = new AtomicLong();
+    private final ConcurrentHistogram latencies = new ConcurrentHistogram(3);
+
+    // Callers queue documents under the read lock, so none is queued once the flusher may have seen closed
+    private final ReadWriteLock closing = new ReentrantReadWriteLock();
+    private volatile boolean closed = false;
+
+    /**
+     * A Note queued for indexing, serialized up front only if it is spooled
+     */
+    private static final class Item implements Delayed {
+        private final Note note;
+        private final String id;
+        private final String source;
+        private final NoteSpool.Record record;
+        private final int size;
+        private int attempts = 0;
+        private long dueNanos = 0;
+
+        /**
+         * @param note the Note, or null if replayed from the spool
+         * @param id id the Note is indexed under
+         * @param source serialized Note, or null to serialize it when sent
+         * @param record spooled copy of the Note, or null if not spooled
+         */
+        private Item(final Note note, final String id, final String source, final NoteSpool.Record record) {
+            this.note = note;
+            this.id = id;
+            this.source = source;
+            this.record = record;
+            this.size = source != null ? source.length() : NoteCodec.estimateSize(note);
+        }
+
+        @Override
+        public long getDelay(final TimeUnit unit) {
+            return unit.convert(dueNanos - System.nanoTime(), TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public int compareTo(final Delayed other) {
+            return Long.compare(dueNanos, ((Item) other).dueNanos);
+        }
+    }
+
+    /**
+     * Puts an item into a full queue, letting a fork-join pool make up for the worker blocked meanwhile
+     */
+    private static final class QueuePut implements ForkJoinPool.ManagedBlocker {
+        private final BlockingQueue<Item> queue;
+        private final Item item;
+        private boolean done = false;
+
+        private QueuePut(final BlockingQueue<Item> queue, final Item item) {
+            this.queue = queue;
+            this.item = item;
+        }
+
+        @Override
+        public boolean block() throws InterruptedException {
+            if (!done) {
+                queue.put(item);
+                done = true;
+            }
+            return true;
+        }
+
+        @Override
+        public boolean isReleasable() {
+            return done || (done = queue.offer(item));
+        }
+    }
+
+    /**
+     * @param jestClient client used to send the bulk requests
+     * @param indexName target index
+     * @param typeName target index type
+     * @param controller source of the batch size and concurrency limits
+     * @param maxBytes maximum payload size in bytes of a bulk request at the maximum batch size
+     * @param lingerMillis maximum time a document waits for its batch to fill up
+     * @param maxRetries maximum number of times a failed document is sent again
+     * @param backoff delays between the attempts of a document
+     * @param spool write-ahead spool, or null to keep documents in memory only
+     * @throws IOException if the spool cannot be recovered
+     */
+    BulkIngestor(final JestClient jestClient,
+                 final String indexName,
+                 final String typeName,
+                 final AdaptiveBulkController controller,
+                 final long maxBytes,
+                 final long lingerMillis,
+                 final int maxRetries,
+                 final Backoff backoff,
+                 final NoteSpool spool) throws IOException {
+        this.jestClient = jestClient;
+        this.indexName = indexName;
+        this.typeName = typeName;
+        this.controller = controller;
+        this.maxBytes = Math.max(1, maxBytes);
+        this.lingerMillis = Math.max(0, lingerMillis);
+        this.maxRetries = Math.max(0, maxRetries);
+        this.backoff = backoff;
+        this.spool = spool;
+
+        List<Item> recovered = new ArrayList<>();
+        if (spool != null) {
+            for (NoteSpool.Record record : spool.recover())
+                recovered.add(new Item(null, idOf(record), record.getSource(), record));
+            if (!recovered.isEmpty())
+                AWSESJestExample.LOG.info("Replaying "+recovered.size()+" documents from the spool ...");
+            Metrics.get().gauge("spool.pending", spool::getPending);
+        }
+        this.replay = recovered.iterator();
+        this.pending.set(recovered.size());
+
+        this.queue = new ArrayBlockingQueue<>(controller.getMaxActions() * (controller.getMaxConcurrency() + 1));
+
+        this.flusher = new Thread(this::run, "bulk-ingestor-" + indexName);
+        this.flusher.setDaemon(true);
+        this.flusher.start();
+    }
+
+    /**
+     * @return a bulk ingestor configured from the command line arguments
+     */
+    static BulkIngestor fromArgs(final JestClient jestClient) throws IOException {
+        return new BulkIngestor(jestClient, Args.indexName, Args.typeName,
+                AdaptiveBulkController.fromArgs(), Args.bulkSizeBytes, Args.bulkLingerMillis,
+                Args.bulkMaxRetries, Backoff.fromArgs(), NoteSpool.fromArgs());
+    }
+
+    /**
+     * Queues a Note for indexing, blocking while the queue is full; on a fork-join worker the pool may
+     * run other tasks on a spare thread meanwhile
+     * @param note the Note to be indexed
+     * @throws InterruptedException
+     */
+    void add(final Note note) throws InterruptedException {
+        closing.readLock().lock();
+        try {
+            if (closed)
+                throw new IllegalStateException("Bulk ingestor is already closed.");
+
+            // Set before spooling, so a replay overwrites the document rather than duplicating it
+            if (note.getId() == null)
+                note.setId(Note.newId());
+
+            String source = null;
+            NoteSpool.Record record = null;
+            if (spool != null) {
+                try {
+                    source = NoteCodec.encode(note);
+                    record = spool.append(source);
+                } catch (IOException e) {
+                    throw new UncheckedIOException("Failed to spool a document", e);
+                }
+            }
+
+            pending.incrementAndGet();
+            Item item = new Item(note, note.getId(), source, record);
+            if (!queue.offer(item))
+                ForkJoinPool.managedBlock(new QueuePut(queue, item));
+        } finally {
+            closing.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return the id of a spooled Note, or the id of its record if it was spooled without one
+     */
+    private static String idOf(final NoteSpool.Record record) throws IOException {
+        String id = NoteDecoder.decodeSource(record.getSource()).getId();
+        return id != null ? id : record.getId();
+    }
+
+    /**
+     * Flushes all queued documents and waits for the in-flight bulk requests to complete
+     * @throws InterruptedIOException if interrupted while waiting, with the interrupt flag set again
+     */
+    @Override
+    public void close() throws InterruptedIOException {
+        closing.writeLock().lock();
+        try {
+            closed = true;
+        } finally {
+            closing.writeLock().unlock();
+        }
+
+        try {
+            flusher.join();
+            controller.awaitIdle();
+
+            // Documents queued or due for a retry after an interrupt stopped the flusher are never sent
+            List<Item> left = new ArrayList<>();
+            queue.drainTo(left);
+            retries.drainTo(left);
+            replay.forEachRemaining(left::add);
+            if (!left.isEmpty())
+                AWSESJestExample.LOG.error("Bulk ingestor was closed with "+left.size()+" documents unsent.");
+            for (Item item : left)
+                keepOrFail(item);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            InterruptedIOException interrupted = new InterruptedIOException("Interrupted while closing the bulk ingestor");
+            interrupted.initCause(e);
+            throw interrupted;
+        } finally {
+            if (spool != null) {
+                try {
+                    spool.close();
+                } catch (IOException e) {
+                    AWSESJestExample.LOG.error("Caught an exception while closing the spool.\n");
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    long getSucceeded() {
+        return succeeded.get();
+    }
+
+    long getFailed() {
+        return failed.get();
+    }
+
+    long getRetried() {
+        return retried.get();
+    }
+
+    /**
+     * @return number of failed documents kept in the spool for the next run
+     */
+    long getSpooled() {
+        return spooled.get();
+    }
+
+    /**
+     * @return latencies of the answered bulk requests in nanoseconds
+     */
+    Histogram getLatencies() {
+        return latencies.copy();
+    }
+
+    /**
+     * Collects queued documents into batches and sends them until closed and drained
+     */
+    private void run() {
+        List<Item> batch = new ArrayList<>(controller.getMaxActions());
+
+        try {
+            while (!closed || pending.get() > 0) {
+                // The payload limit shrinks along with the batch size
+                int maxActions = controller.getActions();
+                long maxBytes = Math.max(1, this.maxBytes * maxActions / controller.getMaxActions());
+                long bytes = 0;
+                long deadline = 0;
+
+                while (batch.size() < maxActions && bytes < maxBytes) {
+                    Item item = retries.poll();
+                    if (item == null && replay.hasNext())
+                        item = replay.next();
+
+                    if (item == null) {
+                        long waitNanos = POLL_NANOS;
+                        if (!batch.isEmpty()) {
+                            // Linger only once the batch has its first document
+                            waitNanos = Math.min(waitNanos, deadline - System.nanoTime());
+                            if (waitNanos <= 0 || (closed && queue.isEmpty()))
+                                break;
+                        } else if (closed && queue.isEmpty() && pending.get() == 0) {
+                            break;
+                        }
+                        item = queue.poll(waitNanos, TimeUnit.NANOSECONDS);
+                    }
+
+                    if (item != null) {
+                        if (batch.isEmpty())
+                            deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(lingerMillis);
+                        batch.add(item);
+                        bytes += item.size;
+                    }
+                }
+
+                if (!batch.isEmpty()) {
+                    controller.acquire();
+                    send(batch);
+                    batch = new ArrayList<>(controller.getMaxActions());
+                }
+            }
+        } catch (InterruptedException e) {
+            AWSESJestExample.LOG.error("Bulk ingestor was interrupted with "+pending.get()+" documents pending.");
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Sends a batch asynchronously and releases its in-flight permit once answered
+     * @param batch documents to be sent in a single bulk request
+     */
+    private void send(final List<Item> batch) {
+        payload.setLength(0);
+        for (Item item : batch) {
+            NoteCodec.writeIndexAction(payload, item.id);
+            if (item.source != null)
+                payload.append(item.source);
+            else
+                NoteCodec.writeSource(payload, item.note);
+            payload.append('\n');
+        }
+        NoteBulk bulk = new NoteBulk(indexName, typeName, payload.toString());
+
+        // Documents are on disk before they are sent
+        if (spool != null)
+            spool.sync();
+
+        AWSESJestExample.LOG.debug("Sending a bulk request with "+batch.size()+" documents ...");
+
+        final long start = System.nanoTime();
+
+        try {
+            jestClient.executeAsync(bulk, new JestResultHandler<BulkResult>() {
+                public void completed(BulkResult result) {
+                    long latencyNanos = System.nanoTime() - start;
+                    latencies.recordValue(latencyNanos);
+                    try {
+                        if (handleResult(batch, result))
+                            controller.onRejected();
+                        else
+                            controller.onSuccess(latencyNanos);
+                    } finally {
+                        controller.release();
+                    }
+                }
+
+                public void failed(Exception ex) {
+                    try {
+                        // Timeouts and resets are as much a sign of overload as rejections
+                        AWSESJestExample.LOG.error("Bulk request with "+batch.size()+" documents failed: "+ex);
+                        controller.onRejected();
+                        for (Item item : batch)
+                            retryOrFail(item);
+                    } finally {
+                        controller.release();
+                    }
+                }
+            });
+        } catch (Exception e) {
+            AWSESJestExample.LOG.error("Caught an exception while sending a bulk request.\n");
+            e.printStackTrace();
+            for (Item item : batch)
+                retryOrFail(item);
+            controller.release();
+        }
+    }
+
+    /**
+     * Matches the per-item bulk responses to the batch and re-queues the retryable failures
+     * @param batch documents sent in the bulk request
+     * @param result response of the bulk request
+     * @return true if the cluster rejected the request or any of its items for lack of capacity
+     */
+    private boolean handleResult(final List<Item> batch, final BulkResult result) {
+        List<BulkResult.BulkResultItem> items;
+        try {
+            items = result.getItems();
+        } catch (RuntimeException e) {
+            // An unparsable response must not leave the batch pending forever
+            AWSESJestExample.LOG.error("Caught an exception while parsing a bulk response: "+e);
+            items = Collections.emptyList();
+        }
+
+        if (items.size() != batch.size()) {
+            // The request as a whole was rejected so none of the items were applied, nor found invalid:
+            // a 403, 404 or 400 is a matter of credentials, index or request, which a later run may not share
+            AWSESJestExample.LOG.error("Bulk request was rejected ("+result.getResponseCode()+"): "
+                    + result.getErrorMessage());
+            for (Item item : batch) {
+                if (isRetryable(result.getResponseCode()))
+                    retryOrFail(item);
+                else
+                    keepOrFail(item);
+            }
+            return isRejection(result.getResponseCode(), result.getErrorMessage());
+        }
+
+        boolean rejected = false;
+
+        for (int i = 0; i < batch.size(); i++) {
+            Item item = batch.get(i);
+            BulkResult.BulkResultItem resultItem = items.get(i);
+
+            if (resultItem.error == null) {
+                if (item.note != null)
+                    item.note.setId(resultItem.id);
+                if (item.record != null)
+                    spool.ack(item.record);
+                succeeded.incrementAndGet();
+                pending.decrementAndGet();
+            } else if (isRetryable(resultItem.status)) {
+                rejected |= isRejection(resultItem.status, resultItem.errorType);
+                retryOrFail(item);
+            } else {
+                AWSESJestExample.LOG.error("Failed to index a document ("+resultItem.status+"): "
+                        + resultItem.errorReason);
+                fail(item);
+            }
+        }
+        return rejected;
+    }
+
+    /**
+     * @param item document to be sent again, unless it has run out of attempts
+     */
+    private void retryOrFail(final Item item) {
+        if (++item.attempts > maxRetries) {
+            keepOrFail(item);
+        } else {
+            retried.incrementAndGet();
+            Metrics.get().increment("bulk.items.retried", 1);
+            item.dueNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(backoff.delayMillis(item.attempts));
+            retries.add(item);
+        }
+    }
+
+    /**
+     * @param item document that is not sent again by this run, left pending in the spool for the next one
+     *        if spooled, otherwise failed
+     */
+    private void keepOrFail(final Item item) {
+        if (item.record != null) {
+            AWSESJestExample.LOG.debug("Keeping document in the spool after "+item.attempts+" attempts.");
+            spooled.incrementAndGet();
+            failed.incrementAndGet();
+            pending.decrementAndGet();
+        } else {
+            fail(item);
+        }
+    }
+
+    /**
+     * @param item document that Elasticsearch itself turned down with a 4xx status of its own, and so
+     *        never will index, acknowledged in the spool if spooled
+     */
+    private void fail(final Item item) {
+        if (item.record != null)
+            spool.ack(item.record);
+        AWSESJestExample.LOG.debug("Giving up on document after "+item.attempts+" retries: "
+                + (item.note != null ? item.note : item.source));
+        failed.incrementAndGet();
+        pending.decrementAndGet();
+    }
+
+    /**
+     * @param status HTTP status of a bulk request or bulk item
+     * @return true if the status indicates a transient failure worth retrying
+     */
+    private static boolean isRetryable(final int status) {
+        return status == 429 || status >= 500;
+    }
+
+    /**
+     * @param status HTTP status of a bulk request or bulk item
+     * @param error error type or message, if any
+     * @return true if the cluster turned the request down because its queues were full
+     */
+    private static boolean isRejection(final int status, final String error) {
+        return status == 429 || (error != null && error.contains("es_rejected_execution_exception"));
+    }
+}
@@ -0,0 +1,316 @@
+/*
+ * Copyright 2018 Joarder Kamal. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"). You may
+ * not use this file except in compliance with the License. A copy of the
+ * License is located at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+
+package com.amazonaws.awsesjestexample;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.OffsetDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Loads notes from NDJSON or CSV files into a BulkIngestor. A file is
+ * split in halves at line breaks until the parts are small enough, and a
+ * fork-join pool memory-maps and parses the parts in parallel, so the
+ * file is never copied into the heap as a whole and reading, parsing and
+ * indexing all overlap. Lines that cannot be parsed are skipped and
+ * counted. CSV records must not span lines.
+ */
+final class BulkLoader {
+    // Bytes mapped at a time while looking for a line break
+    private static final int SCAN_BYTES = 64 * 1024;
+    private static final String[] DEFAULT_COLUMNS = {"userName", "note", "createdOn"};
+
+    private final BulkIngestor ingestor;
+    private final ForkJoinPool pool;
+    private final long chunkBytes;
+
+    private final LongAdder parsed = new LongAdder();
+    private final LongAdder malformed = new LongAdder();
+
+    /**
+     * @param ingestor ingestor the parsed Notes are added to
+     * @param pool pool the files are parsed on
+     * @param chunkBytes size up to which a part of a file is parsed by a single task
+     */
+    BulkLoader(final BulkIngestor ingestor, final ForkJoinPool pool, final long chunkBytes) {
+        this.ingestor = ingestor;
+        this.pool = pool;
+        this.chunkBytes = Math.max(SCAN_BYTES, chunkBytes);
+    }
+
+    /**
+     * Parses the file and adds its notes to the ingestor, returning once all of them are queued
+     * @param file file to be loaded
+     * @param format format of the file
+     * @param csvHeader true if a CSV file starts with a header line naming its columns
+     * @return size of the file in bytes
+     * @throws IOException if the file cannot be read
+     */
+    long load(final Path file, final LoadFormat format, final boolean csvHeader) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            long start = 0;
+            Columns columns = new Columns(DEFAULT_COLUMNS);
+
+            if (format == LoadFormat.CSV && csvHeader && size > 0) {
+                start = nextLineStart(channel, 0, size);
+                columns = new Columns(splitCsv(readLine(channel, 0, start)).toArray(new String[0]));
+            }
+
+            try {
+                pool.invoke(new Part(channel, start, size, format, columns));
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+            return size;
+        }
+    }
+
+    /**
+     * @return number of notes parsed so far
+     */
+    long getParsed() {
+        return parsed.sum();
+    }
+
+    /**
+     * @return number of lines skipped so far because they could not be parsed
+     */
+    long getMalformed() {
+        return malformed.sum();
+    }
+
+    /**
+     * A part of a file starting and ending at a line boundary
+     */
+    private final class Part extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final transient FileChannel channel;
+        private final long start;
+        private final long end;
+        private final LoadFormat format;
+        private final Columns columns;
+
+        private Part(final FileChannel channel, final long start, final long end,
+                     final LoadFormat format, final Columns columns) {
+            this.channel = channel;
+            this.start = start;
+            this.end = end;
+            this.format = format;
+            this.columns = columns;
+        }
+
+        @Override
+        protected void compute() {
+            try {
+                if (end - start > chunkBytes) {
+                    long middle = nextLineStart(channel, start + (end - start) / 2, end);
+                    if (middle < end) {
+                        invokeAll(new Part(channel, start, middle, format, columns),
+                                new Part(channel, middle, end, format, columns));
+                        return;
+                    }
+                }
+                parse();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new UncheckedIOException(new InterruptedIOException("Interrupted while queueing notes"));
+            }
+        }
+
+        private void parse() throws IOException, InterruptedException {
+            if (end - start > Integer.MAX_VALUE)
+                throw new IOException("Line at offset "+start+" is too long");
+
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+            byte[] line = new byte[1024];
+            int limit = buffer.limit();
+            int lineStart = start == 0 ? byteOrderMarkLength(buffer) : 0;
+
+            for (int i = lineStart; i <= limit; i++) {
+                if (i < limit && buffer.get(i) != '\n')
+                    continue;
+
+                int lineEnd = i > lineStart && buffer.get(i - 1) == '\r' ? i - 1 : i;
+                int length = lineEnd - lineStart;
+                if (length > 0) {
+                    if (line.length < length)
+                        line = new byte[Math.max(length, 2 * line.length)];
+                    buffer.position(lineStart);
+                    buffer.get(line, 0, length);
+                    add(new String(line, 0, length, StandardCharsets.UTF_8));
+                }
+                lineStart = i + 1;
+            }
+        }
+
+        private void add(final String line) throws InterruptedException {
+            Note note;
+            try {
+                note = format == LoadFormat.CSV ? columns.toNote(splitCsv(line)) : NoteDecoder.decodeSource(line);
+            } catch (IOException | RuntimeException e) {
+                AWSESJestExample.LOG.debug("Skipping malformed line: "+e);
+                malformed.increment();
+                return;
+            }
+
+            // Notes created at the epoch keep their time, only a missing one is taken to be now
+            if (note.getCreatedOn() == Note.NO_CREATED_ON)
+                note.setCreatedOn(System.currentTimeMillis());
+            // Blocks as a ManagedBlocker while the queue is full, so the pool can run other parts meanwhile
+            ingestor.add(note);
+            parsed.increment();
+        }
+    }
+
+    /**
+     * Maps the columns of a CSV file to the fields of a Note
+     */
+    private static final class Columns {
+        private int userName = -1;
+        private int note = -1;
+        private int createdOn = -1;
+
+        /**
+         * @param names column names, matched to the Note fields regardless of case
+         */
+        private Columns(final String[] names) {
+            for (int i = 0; i < names.length; i++) {
+                String name = names[i].trim();
+                if ("userName".equalsIgnoreCase(name))
+                    userName = i;
+                else if ("note".equalsIgnoreCase(name))
+                    note = i;
+                else if ("createdOn".equalsIgnoreCase(name))
+                    createdOn = i;
+            }
+        }
+
+        private Note toNote(final List<String> fields) {
+            Note parsed = new Note();
+            parsed.setUserName(field(fields, userName));
+            parsed.setNote(field(fields, note));
+
+            String created = field(fields, createdOn);
+            if (created != null && !created.isEmpty()) {
+                parsed.setCreatedOn(created.chars().allMatch(Character::isDigit)
+                        ? Long.parseLong(created)
+                        : OffsetDateTime.parse(created).toInstant().toEpochMilli());
+            }
+            return parsed;
+        }
+
+        private static String field(final List<String> fields, final int index) {
+            return index >= 0 && index < fields.size() ? fields.get(index) : null;
+        }
+    }
+
+    /**
+     * Splits a CSV line into its fields, unquoting quoted fields and their doubled quotes
+     * @throws IllegalArgumentException if a quoted field is not terminated
+     */
+    static List<String> splitCsv(final String line) {
+        List<String> fields = new ArrayList<>();
+        StringBuilder field = new StringBuilder();
+        int i = 0;
+
+        while (true) {
+            field.setLength(0);
+            if (i < line.length() && line.charAt(i) == '"') {
+                i++;
+                while (true) {
+                    if (i >= line.length())
+                        throw new IllegalArgumentException("Unterminated quoted field");
+                    char c = line.charAt(i++);
+                    if (c != '"') {
+                        field.append(c);
+                    } else if (i < line.length() && line.charAt(i) == '"') {
+                        field.append('"');
+                        i++;
+                    } else {
+                        break;
+                    }
+                }
+                while (i < line.length() && line.charAt(i) != ',')
+                    i++;
+            } else {
+                int comma = line.indexOf(',', i);
+                int fieldEnd = comma < 0 ? line.length() : comma;
+                field.append(line, i, fieldEnd);
+                i = fieldEnd;
+            }
+
+            fields.add(field.toString());
+            if (i >= line.length())
+                return fields;
+            i++;
+        }
+    }
+
+    /**
+     * @return the offset following the first line break at or after the position, or end if there is none
+     */
+    private static long nextLineStart(final FileChannel channel, long position, final long end) throws IOException {
+        while (position < end) {
+            int length = (int) Math.min(SCAN_BYTES, end - position);
+            MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+            for (int i = 0; i < length; i++) {
+                if (window.get(i) == '\n')
+                    return position + i + 1;
+            }
+            position += length;
+        }
+        return end;
+    }
+
+    /**
+     * @return the line between the offsets without its line break and any byte order mark
+     */
+    private static String readLine(final FileChannel channel, final long start, final long end) throws IOException {
+        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+        int offset = start == 0 ? byteOrderMarkLength(buffer) : 0;
+        int length = buffer.limit();
+        while (length > offset && (buffer.get(length - 1) == '\n' || buffer.get(length - 1) == '\r'))
+            length--;
+
+        byte[] bytes = new byte[length - offset];
+        buffer.position(offset);
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return 3 if the buffer starts with a UTF-8 byte order mark, otherwise 0
+     */
+    private static int byteOrderMarkLength(final MappedByteBuffer buffer) {
+        return buffer.limit() >= 3 && buffer.get(0) == (byte) 0xEF && buffer.get(1) == (byte) 0xBB
+                && buffer.get(2) == (byte) 0xBF ? 3 : 0;
+    }
+}
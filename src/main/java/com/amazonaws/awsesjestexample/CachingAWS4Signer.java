@@ -0,0 +1,518 @@
+/*
+ * Copyright 2018 Joarder Kamal. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"). You may
+ * not use this file except in compliance with the License. A copy of the
+ * License is located at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazonaws.awsesjestexample;
+
+import com.amazonaws.auth.AWSCredentials;
+import com.amazonaws.auth.AWSSessionCredentials;
+import com.amazonaws.util.SdkHttpUtils;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * A SigV4 signer that works directly on Apache HttpRequests. The derived
+ * signing key is cached per (date, region, service, credentials) and the
+ * canonicalization buffers, digests and MACs are reused per thread, so
+ * signing a request allocates little more than the resulting header values.
+ */
+public class CachingAWS4Signer {
+    private static final String ALGORITHM = "AWS4-HMAC-SHA256";
+    private static final String TERMINATOR = "aws4_request";
+    private static final String HMAC_SHA256 = "HmacSHA256";
+    private static final String CONTENT_SHA256 = "x-amz-content-sha256";
+    private static final String UNSIGNED_PAYLOAD = "UNSIGNED-PAYLOAD";
+    private static final int DEFAULT_CHUNK_SIZE = 64 * 1024;
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+    private static final DateTimeFormatter DATE_TIME_FORMAT =
+            DateTimeFormatter.ofPattern("yyyyMMdd'T'HHmmss'Z'").withZone(ZoneOffset.UTC);
+
+    private static final Comparator<Header> HEADER_ORDER =
+            (h1, h2) -> String.CASE_INSENSITIVE_ORDER.compare(h1.getName(), h2.getName());
+
+    private final String serviceName;
+    private final String regionName;
+    private final PayloadSigning payloadSigning;
+    private final int chunkSize;
+
+    private volatile SigningKey signingKey;
+
+    private final ThreadLocal<Buffers> buffers = ThreadLocal.withInitial(Buffers::new);
+
+    /**
+     * @param serviceName service that we're connecting to
+     * @param regionName AWS region of the service
+     */
+    public CachingAWS4Signer(final String serviceName, final String regionName) {
+        this(serviceName, regionName, PayloadSigning.FULL, DEFAULT_CHUNK_SIZE);
+    }
+
+    /**
+     * @param serviceName service that we're connecting to
+     * @param regionName AWS region of the service
+     * @param payloadSigning how the request payload takes part in the signature
+     * @param chunkSize number of payload bytes per signed chunk in STREAMING mode
+     */
+    public CachingAWS4Signer(final String serviceName,
+                             final String regionName,
+                             final PayloadSigning payloadSigning,
+                             final int chunkSize) {
+        this.serviceName = serviceName;
+        this.regionName = regionName;
+        this.payloadSigning = payloadSigning;
+        this.chunkSize = Math.max(1, chunkSize);
+    }
+
+    /**
+     * @return true if the request payload has to be hashed, and so be repeatable, before signing
+     */
+    public boolean hashesPayload() {
+        return payloadSigning == PayloadSigning.FULL;
+    }
+
+    /**
+     * Signs the request in place by adding the X-Amz-Date, X-Amz-Security-Token
+     * and Authorization headers
+     * @param request request to be signed; its entity must be repeatable if the payload is hashed
+     * @param host target host of the request, used if it carries no Host header
+     * @param credentials credentials to sign the request with
+     * @throws IOException
+     */
+    public void sign(final HttpRequest request, final HttpHost host, final AWSCredentials credentials)
+            throws IOException {
+        Buffers b = buffers.get();
+
+        long now = System.currentTimeMillis();
+        b.updateDate(now);
+
+        request.setHeader("X-Amz-Date", b.amzDate);
+        if (credentials instanceof AWSSessionCredentials)
+            request.setHeader("X-Amz-Security-Token", ((AWSSessionCredentials) credentials).getSessionToken());
+        if (!request.containsHeader("Host") && host != null)
+            request.setHeader("Host", hostHeader(host));
+
+        HttpEntity entity = AWSSignerInterceptor.entityOf(request);
+        if (entity instanceof ChunkedSigningEntity) {
+            // A retry runs the interceptors again on the request of the failed attempt, so its
+            // entity is still the chunked one; it is signed over the original payload again
+            entity = ((ChunkedSigningEntity) entity).unwrap();
+            ((HttpEntityEnclosingRequest) request).setEntity(entity);
+        }
+        String contentSha256 = null;
+        if (payloadSigning == PayloadSigning.UNSIGNED) {
+            contentSha256 = UNSIGNED_PAYLOAD;
+        } else if (payloadSigning == PayloadSigning.STREAMING && entity != null) {
+            contentSha256 = ChunkedSigningEntity.STREAMING_PAYLOAD;
+            setStreamingHeaders(request, entity);
+        }
+        if (contentSha256 != null)
+            request.setHeader(CONTENT_SHA256, contentSha256);
+
+        // Canonical request
+        StringBuilder sb = b.text;
+        sb.setLength(0);
+        sb.append(request.getRequestLine().getMethod()).append('\n');
+
+        String uri = request.getRequestLine().getUri();
+        int pathStart = 0;
+        int schemeEnd = uri.indexOf("://");
+        if (schemeEnd >= 0) {
+            pathStart = uri.indexOf('/', schemeEnd + 3);
+            if (pathStart < 0)
+                pathStart = uri.length();
+        }
+        int queryStart = uri.indexOf('?', pathStart);
+        int fragmentStart = uri.indexOf('#', pathStart);
+        int pathEnd = queryStart >= 0 ? queryStart : (fragmentStart >= 0 ? fragmentStart : uri.length());
+
+        String path = uri.substring(pathStart, pathEnd);
+        if (path.isEmpty()) {
+            sb.append('/');
+        } else {
+            if (path.charAt(0) != '/')
+                sb.append('/');
+            sb.append(SdkHttpUtils.urlEncode(path, true));
+        }
+        sb.append('\n');
+
+        if (queryStart >= 0)
+            appendCanonicalQuery(sb, b.params,
+                    uri.substring(queryStart + 1, fragmentStart > queryStart ? fragmentStart : uri.length()));
+        sb.append('\n');
+
+        int signedHeadersStart = appendCanonicalHeaders(sb, b.headers, request.getAllHeaders());
+        String signedHeaders = sb.substring(signedHeadersStart);
+        sb.append('\n');
+
+        if (contentSha256 != null)
+            sb.append(contentSha256);
+        else
+            appendHex(sb, payloadHash(entity, b));
+
+        byte[] canonicalRequestHash = b.sha256(sb);
+
+        // String to sign
+        String scope = b.dateStamp + "/" + regionName + "/" + serviceName + "/" + TERMINATOR;
+        sb.setLength(0);
+        sb.append(ALGORITHM).append('\n')
+                .append(b.amzDate).append('\n')
+                .append(scope).append('\n');
+        appendHex(sb, canonicalRequestHash);
+
+        byte[] key = signingKey(b.dateStamp, credentials);
+        byte[] signature = b.hmac(key, sb);
+
+        sb.setLength(0);
+        sb.append(ALGORITHM).append(" Credential=").append(credentials.getAWSAccessKeyId()).append('/').append(scope)
+                .append(", SignedHeaders=").append(signedHeaders)
+                .append(", Signature=");
+        appendHex(sb, signature);
+        request.setHeader("Authorization", sb.toString());
+
+        if (ChunkedSigningEntity.STREAMING_PAYLOAD.equals(contentSha256)) {
+            sb.setLength(0);
+            appendHex(sb, signature);
+            ((HttpEntityEnclosingRequest) request).setEntity(
+                    new ChunkedSigningEntity(entity, key, b.amzDate, scope, sb.toString(), chunkSize));
+        }
+    }
+
+    /**
+     * Sets the headers describing an aws-chunked payload, which have to be signed as well
+     */
+    private void setStreamingHeaders(final HttpRequest request, final HttpEntity entity) {
+        Header encoding = entity.getContentEncoding();
+        request.setHeader("Content-Encoding", encoding == null
+                ? ChunkedSigningEntity.CONTENT_ENCODING
+                : ChunkedSigningEntity.CONTENT_ENCODING + "," + encoding.getValue());
+
+        long length = entity.getContentLength();
+        if (length >= 0) {
+            request.removeHeaders("Transfer-Encoding");
+            request.setHeader("x-amz-decoded-content-length", Long.toString(length));
+            request.setHeader("Content-Length", Long.toString(ChunkedSigningEntity.encodedLength(length, chunkSize)));
+        } else {
+            request.removeHeaders("Content-Length");
+            request.setHeader("Transfer-Encoding", "chunked");
+        }
+    }
+
+    /**
+     * @return the SHA-256 hash of the request payload, hashed straight from the entity
+     */
+    private static byte[] payloadHash(final HttpEntity entity, final Buffers b) throws IOException {
+        MessageDigest digest = b.sha256;
+        digest.reset();
+
+        if (entity != null)
+            entity.writeTo(b.digestStream);
+
+        return digest.digest();
+    }
+
+    /**
+     * Appends the sorted, URI-encoded query parameters
+     */
+    private static void appendCanonicalQuery(final StringBuilder sb, final List<String[]> params, final String query)
+            throws UnsupportedEncodingException {
+        params.clear();
+        for (String pair : query.split("&")) {
+            if (pair.isEmpty())
+                continue;
+            int eq = pair.indexOf('=');
+            String name = eq >= 0 ? pair.substring(0, eq) : pair;
+            String value = eq >= 0 ? pair.substring(eq + 1) : "";
+            params.add(new String[] {
+                    SdkHttpUtils.urlEncode(URLDecoder.decode(name, "UTF-8"), false),
+                    SdkHttpUtils.urlEncode(URLDecoder.decode(value, "UTF-8"), false)});
+        }
+
+        params.sort((p1, p2) -> {
+            int c = p1[0].compareTo(p2[0]);
+            return c != 0 ? c : p1[1].compareTo(p2[1]);
+        });
+
+        for (int i = 0; i < params.size(); i++) {
+            if (i > 0)
+                sb.append('&');
+            sb.append(params.get(i)[0]).append('=').append(params.get(i)[1]);
+        }
+    }
+
+    /**
+     * Appends the canonical headers followed by the signed header list
+     * @return the position in the builder where the signed header list starts
+     */
+    private static int appendCanonicalHeaders(final StringBuilder sb, final List<Header> headers, final Header[] all) {
+        headers.clear();
+        for (Header header : all) {
+            if (!skipHeader(header))
+                headers.add(header);
+        }
+        headers.sort(HEADER_ORDER);
+
+        String previous = null;
+        for (Header header : headers) {
+            String name = header.getName();
+            if (name.equalsIgnoreCase(previous)) {
+                // Repeated headers are signed as a single comma separated value
+                sb.setLength(sb.length() - 1);
+                sb.append(',');
+            } else {
+                appendLowerCase(sb, name);
+                sb.append(':');
+            }
+            appendCompacted(sb, header.getValue());
+            sb.append('\n');
+            previous = name;
+        }
+        sb.append('\n');
+
+        int start = sb.length();
+        previous = null;
+        for (Header header : headers) {
+            String name = header.getName();
+            if (name.equalsIgnoreCase(previous))
+                continue;
+            if (previous != null)
+                sb.append(';');
+            appendLowerCase(sb, name);
+            previous = name;
+        }
+        return start;
+    }
+
+    /**
+     * @param header header line to check
+     * @return true if the given header should be excluded when signing
+     */
+    private static boolean skipHeader(final Header header) {
+        String name = header.getName();
+        return ("content-length".equalsIgnoreCase(name) && "0".equals(header.getValue())) // Strip Content-Length: 0
+                || "connection".equalsIgnoreCase(name)
+                || "x-amzn-trace-id".equalsIgnoreCase(name);
+    }
+
+    /**
+     * @return the cached signing key, derived again only when the date or credentials change
+     */
+    private byte[] signingKey(final String dateStamp, final AWSCredentials credentials) {
+        SigningKey key = signingKey;
+        String accessKey = credentials.getAWSAccessKeyId();
+        String secretKey = credentials.getAWSSecretKey();
+
+        if (key == null || !key.matches(dateStamp, accessKey, secretKey)) {
+            byte[] kSecret = ("AWS4" + secretKey).getBytes(StandardCharsets.UTF_8);
+            byte[] kDate = hmac(kSecret, dateStamp);
+            byte[] kRegion = hmac(kDate, regionName);
+            byte[] kService = hmac(kRegion, serviceName);
+            key = new SigningKey(dateStamp, accessKey, secretKey, hmac(kService, TERMINATOR));
+            signingKey = key;
+        }
+        return key.key;
+    }
+
+    private static byte[] hmac(final byte[] key, final String data) {
+        try {
+            Mac mac = Mac.getInstance(HMAC_SHA256);
+            mac.init(new SecretKeySpec(key, HMAC_SHA256));
+            return mac.doFinal(data.getBytes(StandardCharsets.UTF_8));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Unable to calculate a request signature", e);
+        }
+    }
+
+    private static String hostHeader(final HttpHost host) {
+        int port = host.getPort();
+        boolean defaultPort = port == -1
+                || ("http".equalsIgnoreCase(host.getSchemeName()) && port == 80)
+                || ("https".equalsIgnoreCase(host.getSchemeName()) && port == 443);
+        return defaultPort ? host.getHostName() : host.getHostName() + ":" + port;
+    }
+
+    private static void appendLowerCase(final StringBuilder sb, final String value) {
+        for (int i = 0; i < value.length(); i++)
+            sb.append(Character.toLowerCase(value.charAt(i)));
+    }
+
+    /**
+     * Appends the value trimmed and with sequential spaces collapsed into one
+     */
+    private static void appendCompacted(final StringBuilder sb, final String value) {
+        if (value == null)
+            return;
+        boolean space = false;
+        int start = sb.length();
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (Character.isWhitespace(c)) {
+                space = true;
+            } else {
+                if (space && sb.length() > start)
+                    sb.append(' ');
+                sb.append(c);
+                space = false;
+            }
+        }
+    }
+
+    static void appendHex(final StringBuilder sb, final byte[] bytes) {
+        for (byte b : bytes)
+            sb.append(HEX[(b >> 4) & 0xf]).append(HEX[b & 0xf]);
+    }
+
+    /**
+     * A signing key along with the inputs it was derived from
+     */
+    private static final class SigningKey {
+        private final String dateStamp;
+        private final String accessKey;
+        private final String secretKey;
+        private final byte[] key;
+
+        private SigningKey(final String dateStamp, final String accessKey, final String secretKey, final byte[] key) {
+            this.dateStamp = dateStamp;
+            this.accessKey = accessKey;
+            this.secretKey = secretKey;
+            this.key = key;
+        }
+
+        private boolean matches(final String dateStamp, final String accessKey, final String secretKey) {
+            return this.dateStamp.equals(dateStamp)
+                    && this.accessKey.equals(accessKey)
+                    && this.secretKey.equals(secretKey);
+        }
+    }
+
+    /**
+     * Per-thread canonicalization buffers, digest and MAC
+     */
+    private static final class Buffers {
+        private final StringBuilder text = new StringBuilder(1024);
+        private final List<Header> headers = new ArrayList<>();
+        private final List<String[]> params = new ArrayList<>();
+        private final MessageDigest sha256;
+        private final Mac mac;
+        private final OutputStream digestStream;
+        private byte[] macKey;
+        private byte[] bytes = new byte[1024];
+
+        private long second = Long.MIN_VALUE;
+        private String amzDate;
+        private String dateStamp;
+
+        private Buffers() {
+            try {
+                sha256 = MessageDigest.getInstance("SHA-256");
+                mac = Mac.getInstance(HMAC_SHA256);
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException("SHA-256 is not available", e);
+            }
+
+            digestStream = new OutputStream() {
+                @Override
+                public void write(int b) {
+                    sha256.update((byte) b);
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) {
+                    sha256.update(b, off, len);
+                }
+            };
+        }
+
+        private void updateDate(final long millis) {
+            long s = millis / 1000;
+            if (s != second) {
+                second = s;
+                amzDate = DATE_TIME_FORMAT.format(Instant.ofEpochSecond(s));
+                dateStamp = amzDate.substring(0, 8);
+            }
+        }
+
+        private byte[] sha256(final CharSequence text) {
+            sha256.reset();
+            // Encoded first, as it may replace the buffer
+            int length = encode(text);
+            sha256.update(bytes, 0, length);
+            return sha256.digest();
+        }
+
+        private byte[] hmac(final byte[] key, final CharSequence text) {
+            try {
+                if (key != macKey) {
+                    mac.init(new SecretKeySpec(key, HMAC_SHA256));
+                    macKey = key;
+                }
+                int length = encode(text);
+                mac.update(bytes, 0, length);
+                return mac.doFinal();
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException("Unable to calculate a request signature", e);
+            }
+        }
+
+        /**
+         * Encodes the text as UTF-8 into the reusable byte buffer
+         * @return number of bytes written
+         */
+        private int encode(final CharSequence text) {
+            int max = text.length() * 3;
+            if (bytes.length < max)
+                bytes = new byte[Math.max(max, bytes.length * 2)];
+
+            int n = 0;
+            for (int i = 0; i < text.length(); i++) {
+                char c = text.charAt(i);
+                if (c < 0x80) {
+                    bytes[n++] = (byte) c;
+                } else if (c < 0x800) {
+                    bytes[n++] = (byte) (0xc0 | (c >> 6));
+                    bytes[n++] = (byte) (0x80 | (c & 0x3f));
+                } else if (Character.isHighSurrogate(c) && i + 1 < text.length()) {
+                    int cp = Character.toCodePoint(c, text.charAt(++i));
+                    bytes[n++] = (byte) (0xf0 | (cp >> 18));
+                    bytes[n++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+                    bytes[n++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+                    bytes[n++] = (byte) (0x80 | (cp & 0x3f));
+                } else {
+                    bytes[n++] = (byte) (0xe0 | (c >> 12));
+                    bytes[n++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                    bytes[n++] = (byte) (0x80 | (c & 0x3f));
+                }
+            }
+            return n;
+        }
+    }
+}
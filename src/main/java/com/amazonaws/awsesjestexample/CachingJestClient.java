@@ -0,0 +1,157 @@
+/*
+ * Copyright 2018 Joarder Kamal. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"). You may
+ * not use this file except in compliance with the License. A copy of the
+ * License is located at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazonaws.awsesjestexample;
+
+import com.google.gson.Gson;
+import io.searchbox.action.Action;
+import io.searchbox.client.JestClient;
+import io.searchbox.client.JestResult;
+import io.searchbox.client.JestResultHandler;
+import io.searchbox.client.config.ElasticsearchVersion;
+
+import java.io.IOException;
+import java.util.Set;
+
+/**
+ * A JestClient decorator serving repeated searches from a SearchCache.
+ * Searches are keyed by their URI and their query with object keys sorted,
+ * so equivalent queries share an entry whatever their formatting. Every
+ * other action that may change an index invalidates the cached results of
+ * that index, both when it is sent and when it completes, so searches
+ * racing with the write are not cached either. Scroll searches, and
+ * partial results of searches that timed out or lost shards, are never
+ * cached. Only the JSON of a response is cached, and every hit is given a
+ * result of its own built from it, so callers may modify their results.
+ */
+class CachingJestClient implements JestClient {
+    private static final Gson GSON = new Gson();
+
+    private final JestClient jestClient;
+    private final SearchCache cache;
+
+    /**
+     * @param jestClient client the actions are delegated to
+     * @param cache cache of search results
+     */
+    CachingJestClient(final JestClient jestClient, final SearchCache cache) {
+        this.jestClient = jestClient;
+        this.cache = cache;
+    }
+
+    SearchCache getCache() {
+        return cache;
+    }
+
+    @Override
+    public <T extends JestResult> T execute(final Action<T> action) throws IOException {
+        String uri = action.getURI(ElasticsearchVersion.UNKNOWN);
+
+        if (SearchRequests.isSearch(action, uri)) {
+            String key = SearchRequests.keyOf(action, uri);
+            String cached = cache.get(key);
+            if (cached != null)
+                return resultOf(action, cached);
+
+            SearchCache.Version version = cache.version(SearchRequests.singleIndex(uri));
+            T result = jestClient.execute(action);
+            if (SearchRequests.isComplete(result))
+                cache.put(key, version, result.getJsonString());
+            return result;
+        }
+
+        if (SearchRequests.isRead(action, uri))
+            return jestClient.execute(action);
+
+        String index = SearchRequests.writtenIndex(uri);
+        cache.invalidate(index);
+        try {
+            return jestClient.execute(action);
+        } finally {
+            cache.invalidate(index);
+        }
+    }
+
+    @Override
+    public <T extends JestResult> void executeAsync(final Action<T> action,
+                                                    final JestResultHandler<? super T> handler) {
+        String uri = action.getURI(ElasticsearchVersion.UNKNOWN);
+
+        if (SearchRequests.isSearch(action, uri)) {
+            String key = SearchRequests.keyOf(action, uri);
+            String cached = cache.get(key);
+            if (cached != null) {
+                handler.completed(resultOf(action, cached));
+                return;
+            }
+
+            SearchCache.Version version = cache.version(SearchRequests.singleIndex(uri));
+            jestClient.executeAsync(action, new JestResultHandler<T>() {
+                public void completed(T result) {
+                    if (SearchRequests.isComplete(result))
+                        cache.put(key, version, result.getJsonString());
+                    handler.completed(result);
+                }
+
+                public void failed(Exception ex) {
+                    handler.failed(ex);
+                }
+            });
+            return;
+        }
+
+        if (SearchRequests.isRead(action, uri)) {
+            jestClient.executeAsync(action, handler);
+            return;
+        }
+
+        String index = SearchRequests.writtenIndex(uri);
+        cache.invalidate(index);
+        jestClient.executeAsync(action, new JestResultHandler<T>() {
+            public void completed(T result) {
+                cache.invalidate(index);
+                handler.completed(result);
+            }
+
+            public void failed(Exception ex) {
+                cache.invalidate(index);
+                handler.failed(ex);
+            }
+        });
+    }
+
+    /**
+     * @return a new result of the action, built from the JSON of a cached response
+     */
+    private static <T extends JestResult> T resultOf(final Action<T> action, final String json) {
+        return action.createNewElasticSearchResult(json, 200, "OK", GSON);
+    }
+
+    @Override
+    @Deprecated
+    public void shutdownClient() {
+        jestClient.shutdownClient();
+    }
+
+    @Override
+    public void setServers(final Set<String> servers) {
+        jestClient.setServers(servers);
+    }
+
+    @Override
+    public void close() throws IOException {
+        jestClient.close();
+    }
+}
@@ -0,0 +1,216 @@
+/*
+ * Copyright 2018 Joarder Kamal. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"). You may
+ * not use this file except in compliance with the License. A copy of the
+ * License is located at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazonaws.awsesjestexample;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.HttpEntityWrapper;
+import org.apache.http.message.BasicHeader;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+
+/**
+ * Wraps a request entity into the aws-chunked encoding, signing every chunk
+ * with the signature of the previous one as it is written out. The payload
+ * is never hashed up front, so it can be streamed while it is being generated.
+ */
+class ChunkedSigningEntity extends HttpEntityWrapper {
+    static final String CONTENT_ENCODING = "aws-chunked";
+    static final String STREAMING_PAYLOAD = "STREAMING-AWS4-HMAC-SHA256-PAYLOAD";
+
+    private static final String CHUNK_ALGORITHM = "AWS4-HMAC-SHA256-PAYLOAD";
+    private static final String CHUNK_SIGNATURE = ";chunk-signature=";
+    private static final String EMPTY_SHA256 =
+            "e3b0c44298fc1c149afbf4c8996fb92427ae41e4649b934ca495991b7852b855";
+    private static final int SIGNATURE_LENGTH = 64;
+    private static final byte[] CRLF = {'\r', '\n'};
+
+    private final byte[] signingKey;
+    private final String amzDate;
+    private final String scope;
+    private final String seedSignature;
+    private final int chunkSize;
+
+    /**
+     * @param entity entity whose content is streamed in signed chunks
+     * @param signingKey derived SigV4 signing key
+     * @param amzDate request timestamp as sent in X-Amz-Date
+     * @param scope credential scope of the request
+     * @param seedSignature signature of the request headers
+     * @param chunkSize number of payload bytes per chunk
+     */
+    ChunkedSigningEntity(final HttpEntity entity,
+                         final byte[] signingKey,
+                         final String amzDate,
+                         final String scope,
+                         final String seedSignature,
+                         final int chunkSize) {
+        super(entity);
+        this.signingKey = signingKey;
+        this.amzDate = amzDate;
+        this.scope = scope;
+        this.seedSignature = seedSignature;
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * @param contentLength decoded payload length
+     * @param chunkSize number of payload bytes per chunk
+     * @return length of the payload once encoded into signed chunks
+     */
+    static long encodedLength(final long contentLength, final int chunkSize) {
+        long fullChunks = contentLength / chunkSize;
+        int remainder = (int) (contentLength % chunkSize);
+
+        long length = fullChunks * chunkLength(chunkSize);
+        if (remainder > 0)
+            length += chunkLength(remainder);
+        return length + chunkLength(0);
+    }
+
+    private static long chunkLength(final int size) {
+        return Integer.toHexString(size).length() + CHUNK_SIGNATURE.length() + SIGNATURE_LENGTH
+                + CRLF.length + size + CRLF.length;
+    }
+
+    /**
+     * @return the entity whose content is streamed in signed chunks
+     */
+    HttpEntity unwrap() {
+        return wrappedEntity;
+    }
+
+    @Override
+    public long getContentLength() {
+        long length = wrappedEntity.getContentLength();
+        return length < 0 ? -1 : encodedLength(length, chunkSize);
+    }
+
+    @Override
+    public boolean isChunked() {
+        return wrappedEntity.getContentLength() < 0;
+    }
+
+    @Override
+    public Header getContentEncoding() {
+        Header encoding = wrappedEntity.getContentEncoding();
+        return new BasicHeader("Content-Encoding",
+                encoding == null ? CONTENT_ENCODING : CONTENT_ENCODING + "," + encoding.getValue());
+    }
+
+    @Override
+    public InputStream getContent() {
+        throw new UnsupportedOperationException("Signed chunks can only be written out");
+    }
+
+    @Override
+    public boolean isStreaming() {
+        return false;
+    }
+
+    @Override
+    public void writeTo(final OutputStream out) throws IOException {
+        ChunkedOutputStream chunked = new ChunkedOutputStream(out);
+        wrappedEntity.writeTo(chunked);
+        chunked.finish();
+    }
+
+    /**
+     * Buffers one chunk worth of payload and writes it out signed
+     */
+    private final class ChunkedOutputStream extends OutputStream {
+        private final OutputStream out;
+        private final byte[] chunk = new byte[chunkSize];
+        private final MessageDigest sha256;
+        private final Mac mac;
+        private final StringBuilder text = new StringBuilder(256);
+        private String previousSignature = seedSignature;
+        private int count = 0;
+
+        private ChunkedOutputStream(final OutputStream out) throws IOException {
+            this.out = out;
+            try {
+                sha256 = MessageDigest.getInstance("SHA-256");
+                mac = Mac.getInstance("HmacSHA256");
+                mac.init(new SecretKeySpec(signingKey, "HmacSHA256"));
+            } catch (GeneralSecurityException e) {
+                throw new IOException("Unable to sign the payload chunks", e);
+            }
+        }
+
+        @Override
+        public void write(final int b) throws IOException {
+            chunk[count++] = (byte) b;
+            if (count == chunk.length)
+                flushChunk();
+        }
+
+        @Override
+        public void write(final byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                int n = Math.min(len, chunk.length - count);
+                System.arraycopy(b, off, chunk, count, n);
+                count += n;
+                off += n;
+                len -= n;
+                if (count == chunk.length)
+                    flushChunk();
+            }
+        }
+
+        /**
+         * Writes out the remaining payload followed by the final zero-length chunk
+         */
+        private void finish() throws IOException {
+            if (count > 0)
+                flushChunk();
+            flushChunk();
+            out.flush();
+        }
+
+        private void flushChunk() throws IOException {
+            sha256.reset();
+            sha256.update(chunk, 0, count);
+
+            text.setLength(0);
+            text.append(CHUNK_ALGORITHM).append('\n')
+                    .append(amzDate).append('\n')
+                    .append(scope).append('\n')
+                    .append(previousSignature).append('\n')
+                    .append(EMPTY_SHA256).append('\n');
+            CachingAWS4Signer.appendHex(text, sha256.digest());
+
+            byte[] signature = mac.doFinal(text.toString().getBytes(StandardCharsets.UTF_8));
+            text.setLength(0);
+            CachingAWS4Signer.appendHex(text, signature);
+            previousSignature = text.toString();
+
+            out.write((Integer.toHexString(count) + CHUNK_SIGNATURE + previousSignature)
+                    .getBytes(StandardCharsets.US_ASCII));
+            out.write(CRLF);
+            out.write(chunk, 0, count);
+            out.write(CRLF);
+            count = 0;
+        }
+    }
+}
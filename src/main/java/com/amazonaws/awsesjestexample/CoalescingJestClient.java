@@ -0,0 +1,240 @@
+/*
+ * Copyright 2018 Joarder Kamal. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"). You may
+ * not use this file except in compliance with the License. A copy of the
+ * License is located at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazonaws.awsesjestexample;
+
+import com.google.gson.Gson;
+import io.searchbox.action.Action;
+import io.searchbox.client.JestClient;
+import io.searchbox.client.JestResult;
+import io.searchbox.client.JestResultHandler;
+import io.searchbox.client.config.ElasticsearchVersion;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A JestClient decorator letting identical concurrent searches share a
+ * single upstream request (single-flight). The first caller sends the
+ * search; callers asking for the same search while it is in flight wait
+ * for it and get a result of their own built from its response, or the
+ * same failure, so none of them sees another one's changes. A search
+ * never joins one that was sent before a write went through this client,
+ * so it cannot miss that write. All other actions pass straight through.
+ */
+class CoalescingJestClient implements JestClient {
+    private static final Gson GSON = new Gson();
+
+    private final JestClient jestClient;
+    private final ConcurrentMap<String, CompletableFuture<Response>> inFlight = new ConcurrentHashMap<>();
+    private final AtomicLong writes = new AtomicLong();
+    private final LongAdder coalesced = new LongAdder();
+
+    /**
+     * What a search was answered with, captured before its caller gets the result and can change it
+     */
+    private static final class Response {
+        private final String json;
+        private final int responseCode;
+        private final String errorMessage;
+
+        private Response(final JestResult result) {
+            this.json = result.getJsonString();
+            this.responseCode = result.getResponseCode();
+            this.errorMessage = result.getErrorMessage();
+        }
+
+        /**
+         * @return a new result of the action, as if it had been answered with this response
+         */
+        private <T extends JestResult> T toResult(final Action<T> action) {
+            T result = action.createNewElasticSearchResult(json, responseCode, null, GSON);
+            result.setErrorMessage(errorMessage);
+            return result;
+        }
+    }
+
+    /**
+     * @param jestClient client the actions are delegated to
+     */
+    CoalescingJestClient(final JestClient jestClient) {
+        this.jestClient = jestClient;
+    }
+
+    @Override
+    public <T extends JestResult> T execute(final Action<T> action) throws IOException {
+        String uri = action.getURI(ElasticsearchVersion.UNKNOWN);
+
+        if (!SearchRequests.isSearch(action, uri))
+            return executeOther(action, uri);
+
+        String key = writes.get() + "\n" + SearchRequests.keyOf(action, uri);
+        CompletableFuture<Response> flight = new CompletableFuture<>();
+        CompletableFuture<Response> leader = inFlight.putIfAbsent(key, flight);
+
+        if (leader != null)
+            return join(leader).toResult(action);
+
+        try {
+            T result = jestClient.execute(action);
+            flight.complete(new Response(result));
+            return result;
+        } catch (Throwable e) {
+            // Errors too, otherwise the callers that joined would wait forever
+            flight.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(key, flight);
+        }
+    }
+
+    @Override
+    public <T extends JestResult> void executeAsync(final Action<T> action,
+                                                    final JestResultHandler<? super T> handler) {
+        String uri = action.getURI(ElasticsearchVersion.UNKNOWN);
+
+        if (!SearchRequests.isSearch(action, uri)) {
+            executeOtherAsync(action, uri, handler);
+            return;
+        }
+
+        String key = writes.get() + "\n" + SearchRequests.keyOf(action, uri);
+        CompletableFuture<Response> flight = new CompletableFuture<>();
+        CompletableFuture<Response> leader = inFlight.putIfAbsent(key, flight);
+
+        if (leader != null) {
+            coalesced();
+            leader.whenComplete((response, ex) -> {
+                if (ex != null)
+                    handler.failed(ex instanceof Exception ? (Exception) ex : new IOException(ex));
+                else
+                    handler.completed(response.toResult(action));
+            });
+            return;
+        }
+
+        try {
+            jestClient.executeAsync(action, new JestResultHandler<T>() {
+                public void completed(T result) {
+                    inFlight.remove(key, flight);
+                    flight.complete(new Response(result));
+                    handler.completed(result);
+                }
+
+                public void failed(Exception ex) {
+                    inFlight.remove(key, flight);
+                    flight.completeExceptionally(ex);
+                    handler.failed(ex);
+                }
+            });
+        } catch (Exception e) {
+            // Failed before it was sent, e.g. rejected by a client that is shut down
+            inFlight.remove(key, flight);
+            flight.completeExceptionally(e);
+            handler.failed(e);
+        }
+    }
+
+    @Override
+    @Deprecated
+    public void shutdownClient() {
+        jestClient.shutdownClient();
+    }
+
+    @Override
+    public void setServers(final Set<String> servers) {
+        jestClient.setServers(servers);
+    }
+
+    @Override
+    public void close() throws IOException {
+        jestClient.close();
+    }
+
+    /**
+     * @return number of searches that were answered by another caller's request
+     */
+    long getCoalesced() {
+        return coalesced.sum();
+    }
+
+    private <T extends JestResult> T executeOther(final Action<T> action, final String uri) throws IOException {
+        if (SearchRequests.isRead(action, uri))
+            return jestClient.execute(action);
+
+        writes.incrementAndGet();
+        try {
+            return jestClient.execute(action);
+        } finally {
+            writes.incrementAndGet();
+        }
+    }
+
+    private <T extends JestResult> void executeOtherAsync(final Action<T> action,
+                                                          final String uri,
+                                                          final JestResultHandler<? super T> handler) {
+        if (SearchRequests.isRead(action, uri)) {
+            jestClient.executeAsync(action, handler);
+            return;
+        }
+
+        writes.incrementAndGet();
+        jestClient.executeAsync(action, new JestResultHandler<T>() {
+            public void completed(T result) {
+                writes.incrementAndGet();
+                handler.completed(result);
+            }
+
+            public void failed(Exception ex) {
+                writes.incrementAndGet();
+                handler.failed(ex);
+            }
+        });
+    }
+
+    /**
+     * Waits for the search of another caller
+     * @return its response
+     * @throws IOException the failure of the search
+     */
+    private Response join(final CompletableFuture<Response> leader) throws IOException {
+        coalesced();
+        try {
+            return leader.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a coalesced search");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException)
+                throw (IOException) cause;
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            throw new IOException(cause);
+        }
+    }
+
+    private void coalesced() {
+        coalesced.increment();
+        Metrics.get().increment("search.coalesced", 1);
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright 2018 Joarder Kamal. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"). You may
+ * not use this file except in compliance with the License. A copy of the
+ * License is located at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazonaws.awsesjestexample;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Keeps latencies in HDR histograms with three significant digits, so tail
+ * percentiles stay accurate at any rate. Writers record into a lock-free
+ * Recorder; readers fold its interval histogram into a running total,
+ * so reading never blocks the request path.
+ */
+public class HdrMetricsRegistry implements MetricsRegistry, MetricsMXBean {
+    private static final double[] PERCENTILES = {50.0, 90.0, 99.0, 99.9};
+
+    private final ConcurrentMap<String, Latency> latencies = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, LongAdder> counters = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, LongSupplier> gauges = new ConcurrentHashMap<>();
+
+    /**
+     * Latencies of a single operation since the registry was created
+     */
+    private static final class Latency {
+        private final Recorder recorder = new Recorder(3);
+        private final Histogram total = new Histogram(3);
+        private Histogram interval;
+
+        synchronized Histogram snapshot() {
+            interval = recorder.getIntervalHistogram(interval);
+            total.add(interval);
+            return total.copy();
+        }
+    }
+
+    @Override
+    public void recordLatency(final String name, final long nanos) {
+        latencies.computeIfAbsent(name, n -> new Latency()).recorder.recordValue(Math.max(0, nanos));
+    }
+
+    @Override
+    public void increment(final String name, final long delta) {
+        counters.computeIfAbsent(name, n -> new LongAdder()).add(delta);
+    }
+
+    @Override
+    public void gauge(final String name, final LongSupplier value) {
+        gauges.put(name, value);
+    }
+
+    @Override
+    public Map<String, Double> getLatencies() {
+        Map<String, Double> values = new TreeMap<>();
+        for (Map.Entry<String, Latency> entry : latencies.entrySet()) {
+            Histogram histogram = entry.getValue().snapshot();
+            for (double percentile : PERCENTILES)
+                values.put(entry.getKey() + ".p" + format(percentile), millis(histogram.getValueAtPercentile(percentile)));
+            values.put(entry.getKey() + ".max", millis(histogram.getMaxValue()));
+        }
+        return values;
+    }
+
+    @Override
+    public Map<String, Long> getCounters() {
+        Map<String, Long> values = new TreeMap<>();
+        counters.forEach((name, counter) -> values.put(name, counter.sum()));
+        return values;
+    }
+
+    @Override
+    public Map<String, Long> getGauges() {
+        Map<String, Long> values = new TreeMap<>();
+        gauges.forEach((name, gauge) -> values.put(name, gauge.getAsLong()));
+        return values;
+    }
+
+    @Override
+    public String getReport() {
+        return report();
+    }
+
+    @Override
+    public String report() {
+        StringBuilder sb = new StringBuilder();
+
+        for (Map.Entry<String, Latency> entry : new TreeMap<>(latencies).entrySet())
+            sb.append("latency ").append(entry.getKey()).append(": ").append(describe(entry.getValue().snapshot()))
+                    .append(System.lineSeparator());
+        getCounters().forEach((name, value) -> sb.append("counter ").append(name).append(": ").append(value)
+                .append(System.lineSeparator()));
+        getGauges().forEach((name, value) -> sb.append("gauge ").append(name).append(": ").append(value)
+                .append(System.lineSeparator()));
+
+        return sb.toString();
+    }
+
+    /**
+     * @param histogram latencies in nanoseconds
+     * @return the count, mean, percentiles and maximum of the latencies in milliseconds
+     */
+    static String describe(final Histogram histogram) {
+        StringBuilder sb = new StringBuilder(String.format("count=%d mean=%.3f",
+                histogram.getTotalCount(), histogram.getMean() / TimeUnit.MILLISECONDS.toNanos(1)));
+        for (double percentile : PERCENTILES)
+            sb.append(String.format(" p%s=%.3f", format(percentile), millis(histogram.getValueAtPercentile(percentile))));
+        return sb.append(String.format(" max=%.3f ms", millis(histogram.getMaxValue()))).toString();
+    }
+
+    private static double millis(final long nanos) {
+        return nanos / (double) TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    private static String format(final double percentile) {
+        return percentile == Math.rint(percentile) ? Long.toString((long) percentile) : Double.toString(percentile);
+    }
+}
@@ -0,0 +1,280 @@
+/*
+ * Copyright 2018 Joarder Kamal. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"). You may
+ * not use this file except in compliance with the License. A copy of the
+ * License is located at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+
+package com.amazonaws.awsesjestexample;
+
+import io.searchbox.action.Action;
+import io.searchbox.client.JestClient;
+import io.searchbox.client.JestResult;
+import io.searchbox.client.JestResultHandler;
+import io.searchbox.client.config.ElasticsearchVersion;
+import io.searchbox.core.Search;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A JestClient decorator bounding searches by their deadline and hedging
+ * them against slow responses. A search carrying a timeout parameter
+ * fails with a SocketTimeoutException once its deadline has passed, which
+ * SearchRequests sets a margin after that timeout, so Elasticsearch stops
+ * searching early enough for its partial results to arrive. With hedging,
+ * a search still unanswered after the given percentile of recent search
+ * latencies is sent a second time, which the load balancer routes to the
+ * least busy endpoint and the connection pool over another connection;
+ * the first successful response wins. The slower request is abandoned
+ * rather than aborted: its response is discarded when it comes in, which
+ * keeps its connection pooled instead of costing a new TLS handshake.
+ * Hedged requests are sent from the given executor, keeping the timer
+ * thread free to fire deadlines on time. Scrolls are never hedged, and all other actions pass straight through.
+ */
+class HedgingJestClient implements JestClient {
+    private static final int MIN_SAMPLES = 20;
+    private static final long UPDATE_MILLIS = 1000;
+
+    private final JestClient jestClient;
+    private final double hedgePercentile;
+    private final Executor executor;
+    private final ScheduledExecutorService scheduler;
+
+    private final Recorder latencies = new Recorder(3);
+    private final Histogram window = new Histogram(3);
+    private Histogram interval;
+    private volatile long hedgeDelayNanos = -1;
+
+    /**
+     * @param jestClient client the actions are delegated to
+     * @param hedgePercentile percentile of recent search latencies after which a search is hedged, 0 to never hedge
+     * @param executor executor the hedged requests are sent from
+     */
+    HedgingJestClient(final JestClient jestClient, final double hedgePercentile, final Executor executor) {
+        if (hedgePercentile < 0 || hedgePercentile >= 100)
+            throw new IllegalArgumentException("The hedging percentile must be at least 0 and below 100");
+
+        this.jestClient = jestClient;
+        this.hedgePercentile = hedgePercentile;
+        this.executor = executor;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "search-hedging");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        if (hedgePercentile > 0) {
+            scheduler.scheduleWithFixedDelay(this::updateHedgeDelay, UPDATE_MILLIS, UPDATE_MILLIS,
+                    TimeUnit.MILLISECONDS);
+            Metrics.get().gauge("search.hedge-delay-us",
+                    () -> Math.max(0, TimeUnit.NANOSECONDS.toMicros(hedgeDelayNanos)));
+        }
+    }
+
+    /**
+     * @return a client configured from the command line arguments, or null if searches have neither
+     *         deadlines nor hedging
+     */
+    static HedgingJestClient fromArgs(final JestClient jestClient) {
+        if (Args.hedgePercentile <= 0 && Args.searchDeadlineMillis <= 0)
+            return null;
+        return new HedgingJestClient(jestClient, Args.hedgePercentile, AWSESActions.getCallbackExecutor());
+    }
+
+    @Override
+    public <T extends JestResult> T execute(final Action<T> action) throws IOException {
+        if (!(action instanceof Search))
+            return jestClient.execute(action);
+
+        long deadlineMillis = SearchRequests.deadlineMillis(action);
+        long delayNanos = hedgeDelayNanos(action);
+        if (deadlineMillis <= 0 && delayNanos < 0)
+            return executeTimed(action);
+
+        try {
+            return race(action, deadlineMillis, delayNanos).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a search");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException)
+                throw (IOException) cause;
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            throw new IOException(cause);
+        }
+    }
+
+    @Override
+    public <T extends JestResult> void executeAsync(final Action<T> action,
+                                                    final JestResultHandler<? super T> handler) {
+        if (!(action instanceof Search)) {
+            jestClient.executeAsync(action, handler);
+            return;
+        }
+
+        race(action, SearchRequests.deadlineMillis(action), hedgeDelayNanos(action)).whenComplete((result, ex) -> {
+            if (ex != null)
+                handler.failed(ex instanceof Exception ? (Exception) ex : new IOException(ex));
+            else
+                handler.completed(result);
+        });
+    }
+
+    @Override
+    @Deprecated
+    public void shutdownClient() {
+        scheduler.shutdownNow();
+        jestClient.shutdownClient();
+    }
+
+    @Override
+    public void setServers(final Set<String> servers) {
+        jestClient.setServers(servers);
+    }
+
+    @Override
+    public void close() throws IOException {
+        scheduler.shutdownNow();
+        jestClient.close();
+    }
+
+    /**
+     * @return the delay after which the search is hedged, or -1 if it is not hedged
+     */
+    private long hedgeDelayNanos(final Action<?> action) {
+        if (hedgePercentile <= 0 || !SearchRequests.isSearch(action, action.getURI(ElasticsearchVersion.UNKNOWN)))
+            return -1;
+        return hedgeDelayNanos;
+    }
+
+    /**
+     * Sends a search on the caller's thread, only recording its latency
+     */
+    private <T extends JestResult> T executeTimed(final Action<T> action) throws IOException {
+        long start = System.nanoTime();
+        T result = jestClient.execute(action);
+        if (result.getResponseCode() / 100 == 2)
+            latencies.recordValue(System.nanoTime() - start);
+        return result;
+    }
+
+    /**
+     * Sends the search, a second time after the hedging delay if still unanswered by then
+     * @param deadlineMillis time after which the search fails, 0 for none
+     * @param delayNanos time after which the search is hedged, -1 to not hedge it
+     * @return a future of the first successful response, or of the last failure if all requests failed
+     */
+    private <T extends JestResult> CompletableFuture<T> race(final Action<T> action,
+                                                             final long deadlineMillis,
+                                                             final long delayNanos) {
+        CompletableFuture<T> answer = new CompletableFuture<>();
+        AtomicInteger pending = new AtomicInteger(1);
+        send(action, answer, pending, false);
+
+        ScheduledFuture<?> hedge = delayNanos < 0 || answer.isDone() ? null : scheduler.schedule(() -> {
+            if (!answer.isDone()) {
+                pending.incrementAndGet();
+                Metrics.get().increment("search.hedges", 1);
+                try {
+                    executor.execute(() -> send(action, answer, pending, true));
+                } catch (RejectedExecutionException e) {
+                    lost(answer, pending, null, e);
+                }
+            }
+        }, delayNanos, TimeUnit.NANOSECONDS);
+
+        ScheduledFuture<?> deadline = deadlineMillis <= 0 || answer.isDone() ? null : scheduler.schedule(() -> {
+            if (answer.completeExceptionally(new SocketTimeoutException(
+                    "Search did not complete within its deadline of " + deadlineMillis + " ms")))
+                Metrics.get().increment("search.deadlines.exceeded", 1);
+        }, deadlineMillis, TimeUnit.MILLISECONDS);
+
+        answer.whenComplete((result, ex) -> {
+            if (hedge != null)
+                hedge.cancel(false);
+            if (deadline != null)
+                deadline.cancel(false);
+        });
+        return answer;
+    }
+
+    private <T extends JestResult> void send(final Action<T> action,
+                                             final CompletableFuture<T> answer,
+                                             final AtomicInteger pending,
+                                             final boolean hedged) {
+        long start = System.nanoTime();
+        try {
+            jestClient.executeAsync(action, new JestResultHandler<T>() {
+                public void completed(T result) {
+                    if (result.getResponseCode() / 100 != 2) {
+                        lost(answer, pending, result, null);
+                        return;
+                    }
+                    latencies.recordValue(System.nanoTime() - start);
+                    if (answer.complete(result) && hedged)
+                        Metrics.get().increment("search.hedges.won", 1);
+                }
+
+                public void failed(Exception ex) {
+                    lost(answer, pending, null, ex);
+                }
+            });
+        } catch (RuntimeException e) {
+            lost(answer, pending, null, e);
+        }
+    }
+
+    /**
+     * Settles the search with a failed request, unless another request for it may still succeed
+     */
+    private static <T extends JestResult> void lost(final CompletableFuture<T> answer,
+                                                    final AtomicInteger pending,
+                                                    final T result,
+                                                    final Exception ex) {
+        if (pending.decrementAndGet() > 0)
+            return;
+        if (ex != null)
+            answer.completeExceptionally(ex);
+        else
+            answer.complete(result);
+    }
+
+    /**
+     * Sets the hedging delay to the percentile of the latencies recorded since it was last set,
+     * once there are enough of them
+     */
+    private void updateHedgeDelay() {
+        interval = latencies.getIntervalHistogram(interval);
+        window.add(interval);
+        if (window.getTotalCount() >= MIN_SAMPLES) {
+            hedgeDelayNanos = window.getValueAtPercentile(hedgePercentile);
+            window.reset();
+        }
+    }
+}
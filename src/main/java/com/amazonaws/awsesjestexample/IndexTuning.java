@@ -0,0 +1,162 @@
+/*
+ * Copyright 2018 Joarder Kamal. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"). You may
+ * not use this file except in compliance with the License. A copy of the
+ * License is located at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+
+package com.amazonaws.awsesjestexample;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonNull;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+
+import io.searchbox.client.JestClient;
+import io.searchbox.client.JestResult;
+import io.searchbox.indices.Refresh;
+import io.searchbox.indices.settings.GetSettings;
+import io.searchbox.indices.settings.UpdateSettings;
+
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * Tunes an index for a heavy bulk load: periodic refreshes are turned off
+ * and replicas dropped while it is loaded, so every document is indexed
+ * once, on the primary only, into segments that are not made searchable
+ * every second. Restoring brings back the settings the index had, with
+ * defaults left as defaults, and the index is then refreshed once so the
+ * loaded documents become searchable.
+ */
+final class IndexTuning {
+    private static final String REFRESH_INTERVAL = "refresh_interval";
+    private static final String NUMBER_OF_REPLICAS = "number_of_replicas";
+
+    private final JestClient jestClient;
+    private final String indexName;
+    private final JsonElement refreshInterval;
+    private final JsonElement replicas;
+
+    private IndexTuning(final JestClient jestClient,
+                        final String indexName,
+                        final JsonElement refreshInterval,
+                        final JsonElement replicas) {
+        this.jestClient = jestClient;
+        this.indexName = indexName;
+        this.refreshInterval = refreshInterval;
+        this.replicas = replicas;
+    }
+
+    /**
+     * @return the body creating the index with explicit mappings of the Note fields
+     */
+    static String indexDefinition(final String typeName) {
+        return "{\"mappings\":{\"" + typeName + "\":{\"properties\":{"
+                + "\"id\":{\"type\":\"keyword\"},"
+                + "\"userName\":{\"type\":\"keyword\"},"
+                + "\"note\":{\"type\":\"text\"},"
+                + "\"createdOn\":{\"type\":\"date\",\"format\":\"epoch_millis||yyyy-MM-dd'T'HH:mm:ssZ||strict_date_optional_time\"}"
+                + "}}}}";
+    }
+
+    /**
+     * Turns off refreshes and replicas of the index if ingest mode is enabled
+     * @return the settings to restore once loaded, or null if ingest mode is disabled
+     * @throws IOException if the settings cannot be read or changed
+     */
+    static IndexTuning fromArgs(final JestClient jestClient) throws IOException {
+        return Args.ingestMode ? begin(jestClient, Args.indexName) : null;
+    }
+
+    /**
+     * Reads the current settings of the index, then turns off its refreshes and replicas
+     * @param jestClient client used to send the requests
+     * @param indexName index about to be loaded
+     * @return the settings to restore once loaded
+     * @throws IOException if the settings cannot be read or changed
+     */
+    static IndexTuning begin(final JestClient jestClient, final String indexName) throws IOException {
+        JestResult result = checked(jestClient.execute(new GetSettings.Builder().addIndex(indexName).build()));
+
+        // Keyed by the concrete index name, which may differ from an alias
+        JsonObject settings = new JsonObject();
+        for (Map.Entry<String, JsonElement> index : result.getJsonObject().entrySet()) {
+            JsonObject indexSettings = index.getValue().getAsJsonObject().getAsJsonObject("settings");
+            if (indexSettings != null && indexSettings.has("index"))
+                settings = indexSettings.getAsJsonObject("index");
+            break;
+        }
+
+        IndexTuning tuning = new IndexTuning(jestClient, indexName,
+                valueOf(settings, REFRESH_INTERVAL), valueOf(settings, NUMBER_OF_REPLICAS));
+        tuning.update(new JsonPrimitive("-1"), new JsonPrimitive(0));
+
+        AWSESJestExample.LOG.info("Turned off refreshes and replicas of index \""+indexName+"\" for the bulk load, "
+                +"previously "+REFRESH_INTERVAL+"="+tuning.refreshInterval+", "+NUMBER_OF_REPLICAS+"="+tuning.replicas);
+        return tuning;
+    }
+
+    /**
+     * Restores the refresh interval and replicas the index had before the load
+     * @throws IOException if the settings cannot be changed
+     */
+    void restore() throws IOException {
+        update(refreshInterval, replicas);
+
+        AWSESJestExample.LOG.info("Restored "+REFRESH_INTERVAL+"="+refreshInterval+", "
+                +NUMBER_OF_REPLICAS+"="+replicas+" of index \""+indexName+"\"");
+    }
+
+    /**
+     * Makes everything indexed so far searchable
+     * @param jestClient client used to send the request
+     * @param indexName index to be refreshed
+     * @throws IOException if the index cannot be refreshed
+     */
+    static void refresh(final JestClient jestClient, final String indexName) throws IOException {
+        checked(jestClient.execute(new Refresh.Builder().addIndex(indexName).build()));
+    }
+
+    /**
+     * Sets the refresh interval and replicas of the index, JsonNull resetting a setting to its default
+     */
+    private void update(final JsonElement refreshInterval, final JsonElement replicas) throws IOException {
+        JsonObject index = new JsonObject();
+        index.add(REFRESH_INTERVAL, refreshInterval);
+        index.add(NUMBER_OF_REPLICAS, replicas);
+
+        JsonObject body = new JsonObject();
+        body.add("index", index);
+        // As a string, since Jest's Gson would drop the nulls that reset a setting to its default
+        checked(jestClient.execute(new UpdateSettings.Builder(body.toString()).addIndex(indexName).build()));
+    }
+
+    /**
+     * @return the value of the setting, or JsonNull if the index uses the default
+     */
+    private static JsonElement valueOf(final JsonObject settings, final String name) {
+        JsonElement value = settings.get(name);
+        return value != null ? value : JsonNull.INSTANCE;
+    }
+
+    /**
+     * @return the response if it was successful
+     * @throws IOException if Elasticsearch answered with an error
+     */
+    private static JestResult checked(final JestResult result) throws IOException {
+        if (!result.isSucceeded())
+            throw new IOException("Index settings request failed (" + result.getResponseCode() + "): "
+                    + result.getErrorMessage());
+        return result;
+    }
+}
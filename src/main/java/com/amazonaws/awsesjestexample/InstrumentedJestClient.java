@@ -0,0 +1,135 @@
+/*
+ * Copyright 2018 Joarder Kamal. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"). You may
+ * not use this file except in compliance with the License. A copy of the
+ * License is located at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazonaws.awsesjestexample;
+
+import io.searchbox.action.Action;
+import io.searchbox.client.JestClient;
+import io.searchbox.client.JestResult;
+import io.searchbox.client.JestResultHandler;
+import io.searchbox.core.BulkResult;
+
+import java.io.IOException;
+import java.util.Set;
+
+/**
+ * A JestClient decorator recording the latency and outcome of every
+ * operation, named after its action, e.g. "jest.Bulk" or "jest.Search".
+ * For bulk requests the individual items are counted as well, with the
+ * ones rejected by a full thread pool (429) counted separately.
+ */
+class InstrumentedJestClient implements JestClient {
+    private final JestClient jestClient;
+
+    /**
+     * @param jestClient client the operations are delegated to
+     */
+    InstrumentedJestClient(final JestClient jestClient) {
+        this.jestClient = jestClient;
+    }
+
+    /**
+     * @return the wrapped client
+     */
+    JestClient getDelegate() {
+        return jestClient;
+    }
+
+    @Override
+    public <T extends JestResult> T execute(final Action<T> action) throws IOException {
+        String name = nameOf(action);
+        long start = System.nanoTime();
+
+        try {
+            T result = jestClient.execute(action);
+            record(name, start, result);
+            return result;
+        } catch (IOException | RuntimeException e) {
+            record(name, start, null);
+            throw e;
+        }
+    }
+
+    @Override
+    public <T extends JestResult> void executeAsync(final Action<T> action,
+                                                    final JestResultHandler<? super T> handler) {
+        String name = nameOf(action);
+        long start = System.nanoTime();
+
+        jestClient.executeAsync(action, new JestResultHandler<T>() {
+            public void completed(T result) {
+                record(name, start, result);
+                handler.completed(result);
+            }
+
+            public void failed(Exception ex) {
+                record(name, start, null);
+                handler.failed(ex);
+            }
+        });
+    }
+
+    @Override
+    @Deprecated
+    public void shutdownClient() {
+        jestClient.shutdownClient();
+    }
+
+    @Override
+    public void setServers(final Set<String> servers) {
+        jestClient.setServers(servers);
+    }
+
+    @Override
+    public void close() throws IOException {
+        jestClient.close();
+    }
+
+    private static String nameOf(final Action<?> action) {
+        return "jest." + action.getClass().getSimpleName();
+    }
+
+    /**
+     * @param result response of the operation, or null if it failed without one
+     */
+    private static void record(final String name, final long start, final JestResult result) {
+        MetricsRegistry metrics = Metrics.get();
+        metrics.recordLatency(name, System.nanoTime() - start);
+
+        if (result == null || !result.isSucceeded())
+            metrics.increment(name + ".errors", 1);
+
+        if (result instanceof BulkResult) {
+            try {
+                int succeeded = 0;
+                int failed = 0;
+                int rejected = 0;
+                for (BulkResult.BulkResultItem item : ((BulkResult) result).getItems()) {
+                    if (item.error == null)
+                        succeeded++;
+                    else if (item.status == 429)
+                        rejected++;
+                    else
+                        failed++;
+                }
+                metrics.increment("bulk.items.succeeded", succeeded);
+                metrics.increment("bulk.items.failed", failed);
+                metrics.increment("bulk.items.rejected", rejected);
+            } catch (RuntimeException e) {
+                metrics.increment(name + ".unparsable", 1);
+            }
+        }
+    }
+}
@@ -0,0 +1,43 @@
+/*
+ * Copyright 2018 Joarder Kamal. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"). You may
+ * not use this file except in compliance with the License. A copy of the
+ * License is located at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazonaws.awsesjestexample;
+
+import io.searchbox.client.JestResult;
+
+/**
+ * Signals that Elasticsearch answered a request with an unsuccessful HTTP status
+ */
+public class JestResultException extends Exception {
+    private static final long serialVersionUID = 2581760241632145946L;
+
+    private final transient JestResult result;
+
+    /**
+     * @param result the unsuccessful response
+     */
+    public JestResultException(final JestResult result) {
+        super("Elasticsearch responded with " + result.getResponseCode() + ": " + result.getErrorMessage());
+        this.result = result;
+    }
+
+    public JestResult getResult() {
+        return result;
+    }
+
+    public int getResponseCode() {
+        return result.getResponseCode();
+    }
+}
@@ -0,0 +1,540 @@
+/*
+ * Copyright 2018 Joarder Kamal. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"). You may
+ * not use this file except in compliance with the License. A copy of the
+ * License is located at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+
+package com.amazonaws.awsesjestexample;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import io.searchbox.action.Action;
+import io.searchbox.client.JestClient;
+import io.searchbox.client.JestResult;
+import io.searchbox.client.JestResultHandler;
+import io.searchbox.client.config.exception.CouldNotConnectException;
+import io.searchbox.cluster.Health;
+import io.searchbox.cluster.NodesInfo;
+
+import org.apache.http.conn.ConnectTimeoutException;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * A JestClient spreading requests over several endpoints serving the same
+ * data, each with a client of its own. Every request goes to the less busy
+ * of two different endpoints picked at random in proportion to their
+ * weights, busy meaning requests outstanding per unit of weight, so a slow endpoint
+ * takes fewer requests instead of stalling the others. Endpoints that fail
+ * several times in a row, or once more after coming back, are ejected for
+ * a time that doubles with every ejection; requests that could not even
+ * connect are sent to another endpoint. Optional health checks readmit
+ * endpoints early or eject them before any request fails, and optional
+ * sniffing adds the HTTP addresses of the cluster's nodes from _nodes/http.
+ */
+class LoadBalancingJestClient implements JestClient {
+    private static final int MAX_EJECTION_DOUBLINGS = 4;
+
+    private final Function<String, JestClient> clientFactory;
+    private final int failureThreshold;
+    private final long ejectionMillis;
+    private final ScheduledExecutorService scheduler;
+
+    private volatile List<Endpoint> endpoints;
+    private List<Endpoint> retired = new ArrayList<>();
+
+    /**
+     * An endpoint with its client and the state routing decisions are based on
+     */
+    static final class Endpoint {
+        private final String url;
+        private final int weight;
+        private final boolean discovered;
+        private final JestClient client;
+        private final AtomicInteger outstanding = new AtomicInteger();
+        private final LongAdder requests = new LongAdder();
+        private final AtomicInteger failures = new AtomicInteger();
+        private volatile long ejectedUntilNanos = 0;
+        private volatile boolean ejected = false;
+        private volatile int ejections = 0;
+
+        private Endpoint(final String url, final int weight, final boolean discovered, final JestClient client) {
+            this.url = url;
+            this.weight = Math.max(1, weight);
+            this.discovered = discovered;
+            this.client = client;
+        }
+
+        private boolean isAvailable(final long now) {
+            return !ejected || now - ejectedUntilNanos >= 0;
+        }
+
+        @Override
+        public String toString() {
+            return url + " [weight=" + weight + ", requests=" + requests.sum() + ", outstanding=" + outstanding.get()
+                    + (ejected ? ", ejected" : "") + (discovered ? ", discovered" : "") + "]";
+        }
+    }
+
+    /**
+     * @param weights endpoint URLs and their relative share of the requests
+     * @param clientFactory creates the client of an endpoint from its URL
+     * @param failureThreshold consecutive failures after which an endpoint is ejected
+     * @param ejectionMillis time an endpoint is ejected for the first time
+     * @param healthCheckMillis interval of endpoint health checks, 0 to disable them
+     * @param sniffMillis interval of node discovery, 0 to disable it
+     */
+    LoadBalancingJestClient(final Map<String, Integer> weights,
+                            final Function<String, JestClient> clientFactory,
+                            final int failureThreshold,
+                            final long ejectionMillis,
+                            final long healthCheckMillis,
+                            final long sniffMillis) {
+        this.clientFactory = clientFactory;
+        this.failureThreshold = Math.max(1, failureThreshold);
+        this.ejectionMillis = Math.max(1, ejectionMillis);
+
+        List<Endpoint> seeds = new ArrayList<>(weights.size());
+        for (Map.Entry<String, Integer> weight : weights.entrySet())
+            seeds.add(new Endpoint(weight.getKey(), weight.getValue(), false, clientFactory.apply(weight.getKey())));
+        this.endpoints = seeds;
+
+        Metrics.get().gauge("endpoints.available", this::getAvailable);
+
+        if (healthCheckMillis > 0 || sniffMillis > 0) {
+            scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "endpoint-monitor");
+                thread.setDaemon(true);
+                return thread;
+            });
+            if (healthCheckMillis > 0)
+                scheduler.scheduleWithFixedDelay(this::checkHealth, healthCheckMillis, healthCheckMillis,
+                        TimeUnit.MILLISECONDS);
+            if (sniffMillis > 0)
+                scheduler.scheduleWithFixedDelay(this::sniff, 0, sniffMillis, TimeUnit.MILLISECONDS);
+        } else {
+            scheduler = null;
+        }
+    }
+
+    /**
+     * @param clientFactory creates the client of an endpoint from its URL
+     * @return a client balancing over the endpoints given on the command line, or null if there is
+     *         a single endpoint and no sniffing
+     */
+    static LoadBalancingJestClient fromArgs(final Function<String, JestClient> clientFactory) {
+        Map<String, Integer> weights = parseEndpoints(Args.domainEndpoint, Args.endpointWeights);
+        if (weights.size() < 2 && Args.sniffMillis <= 0)
+            return null;
+
+        AWSESJestExample.LOG.info("Balancing requests over endpoints "+weights+" ...");
+        return new LoadBalancingJestClient(weights, clientFactory, Args.endpointFailures,
+                Args.endpointEjectionMillis, Args.healthCheckMillis, Args.sniffMillis);
+    }
+
+    /**
+     * @param endpoints comma separated endpoint URLs
+     * @param weights comma separated weights in the same order, or null to weigh all endpoints equally
+     * @return the endpoint URLs in the given order along with their weights
+     */
+    static Map<String, Integer> parseEndpoints(final String endpoints, final String weights) {
+        String[] urls = endpoints.split(",");
+        String[] values = weights == null || weights.trim().isEmpty() ? new String[0] : weights.split(",");
+        if (values.length > 0 && values.length != urls.length)
+            throw new IllegalArgumentException("Expected "+urls.length+" endpoint weights but got "+values.length);
+
+        Map<String, Integer> parsed = new LinkedHashMap<>();
+        for (int i = 0; i < urls.length; i++) {
+            if (!urls[i].trim().isEmpty())
+                parsed.put(urls[i].trim(), values.length > 0 ? Integer.parseInt(values[i].trim()) : 1);
+        }
+        return parsed;
+    }
+
+    @Override
+    public <T extends JestResult> T execute(final Action<T> action) throws IOException {
+        Endpoint endpoint = select(null);
+        try {
+            return execute(endpoint, action);
+        } catch (IOException e) {
+            // The request never reached the endpoint, so it is safe to send it elsewhere
+            Endpoint other = isUnreachable(e) ? select(endpoint) : null;
+            if (other == null || other == endpoint)
+                throw e;
+            Metrics.get().increment("endpoint.failovers", 1);
+            return execute(other, action);
+        }
+    }
+
+    private <T extends JestResult> T execute(final Endpoint endpoint, final Action<T> action) throws IOException {
+        endpoint.requests.increment();
+        endpoint.outstanding.incrementAndGet();
+        try {
+            T result = endpoint.client.execute(action);
+            onResponse(endpoint, result.getResponseCode());
+            return result;
+        } catch (IOException e) {
+            onFailure(endpoint, e.toString());
+            throw e;
+        } finally {
+            endpoint.outstanding.decrementAndGet();
+        }
+    }
+
+    @Override
+    public <T extends JestResult> void executeAsync(final Action<T> action,
+                                                    final JestResultHandler<? super T> handler) {
+        executeAsync(select(null), action, handler, true);
+    }
+
+    private <T extends JestResult> void executeAsync(final Endpoint endpoint,
+                                                     final Action<T> action,
+                                                     final JestResultHandler<? super T> handler,
+                                                     final boolean failover) {
+        endpoint.requests.increment();
+        endpoint.outstanding.incrementAndGet();
+        try {
+            endpoint.client.executeAsync(action, new JestResultHandler<T>() {
+                public void completed(T result) {
+                    endpoint.outstanding.decrementAndGet();
+                    onResponse(endpoint, result.getResponseCode());
+                    handler.completed(result);
+                }
+
+                public void failed(Exception ex) {
+                    endpoint.outstanding.decrementAndGet();
+                    onFailure(endpoint, ex.toString());
+
+                    Endpoint other = failover && isUnreachable(ex) ? select(endpoint) : null;
+                    if (other == null || other == endpoint) {
+                        handler.failed(ex);
+                    } else {
+                        Metrics.get().increment("endpoint.failovers", 1);
+                        executeAsync(other, action, handler, false);
+                    }
+                }
+            });
+        } catch (RuntimeException e) {
+            endpoint.outstanding.decrementAndGet();
+            throw e;
+        }
+    }
+
+    @Override
+    @Deprecated
+    public void shutdownClient() {
+        try {
+            close();
+        } catch (IOException e) {
+            AWSESJestExample.LOG.error("Caught an exception while closing the endpoint clients.\n");
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Replaces the endpoints given up front by the given servers, all with the same weight
+     */
+    @Override
+    public void setServers(final Set<String> servers) {
+        if (servers.isEmpty())
+            throw new IllegalArgumentException("At least one server is required.");
+        update(servers, false);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (scheduler != null)
+            scheduler.shutdownNow();
+
+        List<Endpoint> closing;
+        synchronized (this) {
+            closing = new ArrayList<>(endpoints);
+            closing.addAll(retired);
+            retired.clear();
+        }
+        for (Endpoint endpoint : closing)
+            endpoint.client.close();
+    }
+
+    /**
+     * @return the URLs of the current endpoints
+     */
+    Set<String> getEndpointUrls() {
+        Set<String> urls = new LinkedHashSet<>();
+        for (Endpoint endpoint : endpoints)
+            urls.add(endpoint.url);
+        return urls;
+    }
+
+    /**
+     * @return number of endpoints that are not ejected
+     */
+    long getAvailable() {
+        long now = System.nanoTime();
+        return endpoints.stream().filter(endpoint -> endpoint.isAvailable(now)).count();
+    }
+
+    /**
+     * Picks two available endpoints at random in proportion to their weights and returns the less busy one
+     * @param excluded endpoint that must not be picked, or null
+     * @return the endpoint to send a request to; if none is available the one whose ejection ends first
+     */
+    private Endpoint select(final Endpoint excluded) {
+        List<Endpoint> candidates = endpoints;
+        long now = System.nanoTime();
+
+        int totalWeight = 0;
+        for (Endpoint endpoint : candidates) {
+            if (endpoint != excluded && endpoint.isAvailable(now))
+                totalWeight += endpoint.weight;
+        }
+
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        Endpoint first = totalWeight > 0 ? pick(candidates, excluded, null, now, random.nextInt(totalWeight)) : null;
+        if (first == null)
+            return soonestBack(candidates, excluded);
+        if (totalWeight <= first.weight)
+            return first;
+        Endpoint second = pick(candidates, excluded, first, now, random.nextInt(totalWeight - first.weight));
+        if (second == null)
+            return first;
+
+        // Compares outstanding requests per unit of weight; on a tie the first pick wins, so idle
+        // endpoints still get requests in proportion to their weights
+        return (long) second.outstanding.get() * first.weight
+                < (long) first.outstanding.get() * second.weight ? second : first;
+    }
+
+    /**
+     * @return the endpoint whose ejection ends first, or the excluded one if there is no other
+     */
+    private static Endpoint soonestBack(final List<Endpoint> candidates, final Endpoint excluded) {
+        Endpoint soonest = null;
+        for (Endpoint endpoint : candidates) {
+            if (endpoint != excluded && (soonest == null || endpoint.ejectedUntilNanos - soonest.ejectedUntilNanos < 0))
+                soonest = endpoint;
+        }
+        return soonest != null ? soonest : excluded;
+    }
+
+    /**
+     * @return the available endpoint at the given position of the cumulative weights, skipping the excluded ones
+     */
+    private static Endpoint pick(final List<Endpoint> candidates,
+                                 final Endpoint excluded,
+                                 final Endpoint alsoExcluded,
+                                 final long now,
+                                 int position) {
+        Endpoint picked = null;
+        for (Endpoint endpoint : candidates) {
+            if (endpoint == excluded || endpoint == alsoExcluded || !endpoint.isAvailable(now))
+                continue;
+            picked = endpoint;
+            position -= endpoint.weight;
+            if (position < 0)
+                break;
+        }
+        return picked;
+    }
+
+    /**
+     * Counts gateway errors as failures, any other response proves the endpoint reachable
+     */
+    private void onResponse(final Endpoint endpoint, final int status) {
+        if (status == 502 || status == 503 || status == 504)
+            onFailure(endpoint, "HTTP "+status);
+        else
+            onSuccess(endpoint, false);
+    }
+
+    /**
+     * Ends the ejection of an endpoint once its ejection time is over, or at once for a health check
+     */
+    private void onSuccess(final Endpoint endpoint, final boolean healthCheck) {
+        endpoint.failures.set(0);
+        if (endpoint.ejections > 0) {
+            synchronized (endpoint) {
+                // A response to a request sent before the ejection does not end it early
+                if (endpoint.ejected && !healthCheck && System.nanoTime() - endpoint.ejectedUntilNanos < 0)
+                    return;
+                if (endpoint.ejected)
+                    AWSESJestExample.LOG.info("Endpoint "+endpoint.url+" is back.");
+                endpoint.ejected = false;
+                endpoint.ejections = 0;
+            }
+        }
+    }
+
+    /**
+     * Ejects the endpoint once it failed too often in a row, or at once if it failed again after an ejection
+     */
+    private void onFailure(final Endpoint endpoint, final String reason) {
+        if (endpoint.failures.incrementAndGet() >= failureThreshold || endpoint.ejections > 0)
+            eject(endpoint, reason);
+    }
+
+    private void eject(final Endpoint endpoint, final String reason) {
+        synchronized (endpoint) {
+            long now = System.nanoTime();
+            if (endpoint.ejected && now - endpoint.ejectedUntilNanos < 0)
+                return;
+
+            long millis = ejectionMillis << Math.min(endpoint.ejections, MAX_EJECTION_DOUBLINGS);
+            endpoint.ejections++;
+            endpoint.ejectedUntilNanos = now + TimeUnit.MILLISECONDS.toNanos(millis);
+            endpoint.ejected = true;
+            endpoint.failures.set(0);
+
+            AWSESJestExample.LOG.warn("Ejecting endpoint "+endpoint.url+" for "+millis+" ms after: "+reason);
+            Metrics.get().increment("endpoint.ejections", 1);
+        }
+    }
+
+    /**
+     * @return true if the request failed before reaching the endpoint
+     */
+    static boolean isUnreachable(final Throwable e) {
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (cause instanceof CouldNotConnectException || cause instanceof ConnectException
+                    || cause instanceof ConnectTimeoutException || cause instanceof UnknownHostException)
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Asks every endpoint for the cluster health, ejecting those that do not answer and readmitting those that do
+     */
+    private void checkHealth() {
+        for (Endpoint endpoint : endpoints) {
+            try {
+                endpoint.client.executeAsync(new Health.Builder().build(), new JestResultHandler<JestResult>() {
+                    public void completed(JestResult result) {
+                        if (result.getResponseCode() >= 500)
+                            eject(endpoint, "health check answered "+result.getResponseCode());
+                        else
+                            onSuccess(endpoint, true);
+                    }
+
+                    public void failed(Exception ex) {
+                        eject(endpoint, "health check failed: "+ex);
+                    }
+                });
+            } catch (RuntimeException e) {
+                AWSESJestExample.LOG.debug("Failed to check the health of "+endpoint.url+": "+e);
+            }
+        }
+    }
+
+    /**
+     * Replaces the discovered endpoints by the HTTP addresses the cluster's nodes publish
+     */
+    private void sniff() {
+        Endpoint endpoint = select(null);
+        try {
+            JestResult result = endpoint.client.execute(new NodesInfo.Builder().withHttp().build());
+            if (!result.isSucceeded()) {
+                AWSESJestExample.LOG.warn("Failed to discover nodes ("+result.getResponseCode()+"): "
+                        + result.getErrorMessage());
+                return;
+            }
+
+            String scheme = endpoint.url.startsWith("https:") ? "https://" : "http://";
+            Set<String> discovered = new LinkedHashSet<>();
+            JsonObject nodes = new JsonParser().parse(result.getJsonString()).getAsJsonObject().getAsJsonObject("nodes");
+            if (nodes != null) {
+                for (Map.Entry<String, JsonElement> node : nodes.entrySet()) {
+                    JsonObject http = node.getValue().getAsJsonObject().getAsJsonObject("http");
+                    if (http != null && http.has("publish_address"))
+                        discovered.add(scheme + publishAddress(http.get("publish_address").getAsString()));
+                }
+            }
+            update(discovered, true);
+        } catch (IOException | RuntimeException e) {
+            AWSESJestExample.LOG.warn("Failed to discover nodes through "+endpoint.url+": "+e);
+        }
+    }
+
+    /**
+     * @param address publish address, either host:port or hostname/ip:port
+     * @return the address to connect to
+     */
+    private static String publishAddress(final String address) {
+        int slash = address.indexOf('/');
+        return slash < 0 ? address : address.substring(slash + 1);
+    }
+
+    /**
+     * Replaces either the discovered or the other endpoints by those of the given URLs, keeping
+     * the clients of the endpoints that remain. Clients of removed endpoints are closed on the
+     * next update or on close, to let their outstanding requests complete.
+     */
+    private void update(final Collection<String> urls, final boolean discovered) {
+        List<Endpoint> closing;
+        synchronized (this) {
+            closing = retired;
+            retired = new ArrayList<>();
+
+            Map<String, Endpoint> kept = new LinkedHashMap<>();
+            for (Endpoint endpoint : endpoints) {
+                if (endpoint.discovered != discovered || urls.contains(endpoint.url))
+                    kept.put(endpoint.url, endpoint);
+                else
+                    retired.add(endpoint);
+            }
+
+            List<String> added = new ArrayList<>();
+            for (String url : urls) {
+                if (!kept.containsKey(url)) {
+                    kept.put(url, new Endpoint(url, 1, discovered, clientFactory.apply(url)));
+                    added.add(url);
+                }
+            }
+
+            if (!added.isEmpty() || !retired.isEmpty())
+                AWSESJestExample.LOG.info("Endpoints changed, added "+added+", removed "+retired);
+            endpoints = new ArrayList<>(kept.values());
+        }
+
+        for (Endpoint endpoint : closing) {
+            try {
+                endpoint.client.close();
+            } catch (IOException e) {
+                AWSESJestExample.LOG.debug("Failed to close the client of "+endpoint.url+": "+e);
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "LoadBalancingJestClient " + endpoints;
+    }
+}
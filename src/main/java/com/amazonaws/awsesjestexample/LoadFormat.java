@@ -0,0 +1,35 @@
+/*
+ * Copyright 2018 Joarder Kamal. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"). You may
+ * not use this file except in compliance with the License. A copy of the
+ * License is located at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+
+package com.amazonaws.awsesjestexample;
+
+/**
+ * Defines the file formats the load command reads notes from
+ */
+public enum LoadFormat {
+    // One JSON object per line, with the fields of a Note
+    NDJSON,
+    // Comma separated values, one note per line, optionally with a header line naming the columns
+    CSV;
+
+    /**
+     * @param fileName name of an input file
+     * @return the format its extension stands for, NDJSON unless it ends with .csv
+     */
+    static LoadFormat of(final String fileName) {
+        return fileName.toLowerCase().endsWith(".csv") ? CSV : NDJSON;
+    }
+}
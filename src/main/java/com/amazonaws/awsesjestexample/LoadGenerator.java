@@ -0,0 +1,378 @@
+/*
+ * Copyright 2018 Joarder Kamal. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"). You may
+ * not use this file except in compliance with the License. A copy of the
+ * License is located at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+
+package com.amazonaws.awsesjestexample;
+
+import io.searchbox.client.JestClient;
+import io.searchbox.client.JestResult;
+import io.searchbox.core.Index;
+import io.searchbox.core.Search;
+
+import org.HdrHistogram.ConcurrentHistogram;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.search.builder.SearchSourceBuilder;
+
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Generates a synthetic workload of index, bulk, search and get operations
+ * on Notes in a configurable mix, and records the latency of every operation
+ * in HDR histograms. Two latencies are kept: the service time, from the
+ * moment an operation is sent, and the response time, from the moment the
+ * schedule intended to send it. In an open loop the schedule runs at the
+ * target rate whatever the responses do; in a closed loop with a target
+ * rate every client keeps its own schedule. Either way a stall shows up in
+ * the response times of all the operations it delays, rather than in the
+ * one operation that was slow, so the response time percentiles are
+ * corrected for coordinated omission. An unpaced closed loop has no
+ * schedule, so there both latencies are the same.
+ */
+final class LoadGenerator {
+    private static final String[] WORDS = {"see", "this", "note", "diary", "today", "meeting", "lunch",
+            "remember", "call", "write", "read", "plan", "travel", "idea", "home", "work"};
+    private static final int SEARCH_SIZE = 10;
+
+    /**
+     * Operations of the workload
+     */
+    enum Operation {
+        INDEX, BULK, SEARCH, GET
+    }
+
+    private final JestClient jestClient;
+    private final String indexName;
+    private final String typeName;
+    private final BenchLoop loop;
+    private final int rate;
+    private final int clients;
+    private final int docsPerBulk;
+    private final int noteLength;
+    private final long searchDeadlineMillis;
+    private final NoteLoader loader;
+
+    private final Operation[] operations;
+    private final int[] cumulativeWeights;
+    private final String[] queries;
+    private final Map<Operation, Stats> stats = new EnumMap<>(Operation.class);
+    private final AtomicLong notes = new AtomicLong();
+
+    private long measuredNanos = 0;
+
+    /**
+     * Latencies and errors of one operation
+     */
+    private static final class Stats {
+        private final ConcurrentHistogram serviceTimes = new ConcurrentHistogram(3);
+        private final ConcurrentHistogram responseTimes = new ConcurrentHistogram(3);
+        private final LongAdder errors = new LongAdder();
+    }
+
+    /**
+     * @param jestClient client used to send the requests
+     * @param indexName index written to and searched
+     * @param typeName index type written to and searched
+     * @param mix relative weight of every operation
+     * @param loop how operations are paced
+     * @param rate target number of operations per second over all clients, 0 for an unpaced closed loop
+     * @param clients number of threads sending operations
+     * @param docsPerBulk number of Notes per bulk request
+     * @param noteLength length of the text of every Note
+     * @param searchDeadlineMillis time a search may take in milliseconds, 0 for no deadline
+     * @param loader batches the lookups of get operations, required if the mix has any
+     */
+    LoadGenerator(final JestClient jestClient,
+                  final String indexName,
+                  final String typeName,
+                  final Map<Operation, Integer> mix,
+                  final BenchLoop loop,
+                  final int rate,
+                  final int clients,
+                  final int docsPerBulk,
+                  final int noteLength,
+                  final long searchDeadlineMillis,
+                  final NoteLoader loader) {
+        if (loop == BenchLoop.OPEN && rate <= 0)
+            throw new IllegalArgumentException("An open loop needs a target rate");
+
+        this.jestClient = jestClient;
+        this.indexName = indexName;
+        this.typeName = typeName;
+        this.loop = loop;
+        this.rate = Math.max(0, rate);
+        this.clients = Math.max(1, clients);
+        this.docsPerBulk = Math.max(1, docsPerBulk);
+        this.noteLength = Math.max(1, noteLength);
+        this.searchDeadlineMillis = Math.max(0, searchDeadlineMillis);
+        this.loader = loader;
+
+        List<Operation> weighted = new ArrayList<>();
+        List<Integer> weights = new ArrayList<>();
+        int total = 0;
+        for (Map.Entry<Operation, Integer> entry : mix.entrySet()) {
+            if (entry.getValue() > 0) {
+                total += entry.getValue();
+                weighted.add(entry.getKey());
+                weights.add(total);
+                stats.put(entry.getKey(), new Stats());
+            }
+        }
+        if (total <= 0)
+            throw new IllegalArgumentException("The operation mix is empty");
+        if (stats.containsKey(Operation.GET) && loader == null)
+            throw new IllegalArgumentException("Get operations need a Note loader");
+
+        this.operations = weighted.toArray(new Operation[0]);
+        this.cumulativeWeights = weights.stream().mapToInt(Integer::intValue).toArray();
+
+        // Queries are built once, so that the searches measure the client rather than the query builder
+        this.queries = new String[WORDS.length];
+        for (int i = 0; i < WORDS.length; i++)
+            queries[i] = new SearchSourceBuilder().query(QueryBuilders.termQuery("note", WORDS[i]))
+                    .size(SEARCH_SIZE).toString();
+    }
+
+    /**
+     * @return a load generator configured from the command line arguments
+     */
+    static LoadGenerator fromArgs(final JestClient jestClient) {
+        Map<Operation, Integer> mix = parseMix(Args.Bench.mix);
+        NoteLoader loader = mix.getOrDefault(Operation.GET, 0) > 0 ? NoteLoader.fromArgs(jestClient) : null;
+        return new LoadGenerator(jestClient, Args.indexName, Args.typeName, mix,
+                Args.Bench.loop, Args.Bench.rate, Args.Bench.clients, Args.Bench.docsPerBulk, Args.Bench.noteLength,
+                Args.searchDeadlineMillis, loader);
+    }
+
+    /**
+     * @param mix comma separated weights of the operations, e.g. "index=10,bulk=10,search=80"
+     * @return the weight of every operation named
+     */
+    static Map<Operation, Integer> parseMix(final String mix) {
+        Map<Operation, Integer> weights = new EnumMap<>(Operation.class);
+        for (String part : mix.split(",")) {
+            String[] pair = part.trim().split("=");
+            if (pair.length != 2)
+                throw new IllegalArgumentException("Invalid operation weight \"" + part + "\", expected <operation>=<int>");
+            weights.put(Operation.valueOf(pair[0].trim().toUpperCase(Locale.ROOT)), Integer.parseInt(pair[1].trim()));
+        }
+        return weights;
+    }
+
+    /**
+     * Runs the workload, only recording the operations scheduled after the warmup
+     * @param warmupMillis time operations are sent for before they are recorded
+     * @param durationMillis time operations are recorded for
+     * @throws InterruptedException
+     * @throws InterruptedIOException if interrupted while closing the Note loader
+     */
+    void run(final long warmupMillis, final long durationMillis) throws InterruptedException, InterruptedIOException {
+        final long start = System.nanoTime();
+        final long measureStart = start + TimeUnit.MILLISECONDS.toNanos(warmupMillis);
+        final long end = measureStart + TimeUnit.MILLISECONDS.toNanos(durationMillis);
+        final AtomicLong slots = new AtomicLong();
+
+        Thread[] threads = new Thread[clients];
+        for (int i = 0; i < clients; i++) {
+            final int client = i;
+            threads[i] = new Thread(() -> {
+                Worker worker = new Worker(measureStart);
+                if (loop == BenchLoop.OPEN)
+                    worker.runOpen(start, end, 1e9 / rate, slots);
+                else
+                    worker.runClosed(start, end, rate > 0 ? clients * 1e9 / rate : 0, client);
+            }, "bench-client-" + (i + 1));
+            threads[i].setDaemon(true);
+            threads[i].start();
+        }
+
+        for (Thread thread : threads)
+            thread.join();
+        if (loader != null)
+            loader.close();
+
+        // Operations scheduled before the end but delayed by a backlog are still measured
+        measuredNanos = System.nanoTime() - measureStart;
+    }
+
+    /**
+     * Sends operations from a single thread
+     */
+    private final class Worker {
+        private final long measureStart;
+        private final StringBuilder payload = new StringBuilder();
+        private final Note hit = new Note();
+
+        private Worker(final long measureStart) {
+            this.measureStart = measureStart;
+        }
+
+        /**
+         * Takes the next slot of the shared schedule, whether or not the operations before it have completed
+         */
+        private void runOpen(final long start, final long end, final double intervalNanos, final AtomicLong slots) {
+            while (true) {
+                long intended = start + (long) (slots.getAndIncrement() * intervalNanos);
+                if (intended - end >= 0)
+                    return;
+                parkUntil(intended);
+                execute(intended);
+            }
+        }
+
+        /**
+         * Sends the next operation once the previous one has completed, on a schedule of its own if paced
+         */
+        private void runClosed(final long start, final long end, final double intervalNanos, final int client) {
+            // Clients are staggered over one interval so their schedules do not line up
+            long first = start + (long) (client * intervalNanos / clients);
+            for (long k = 0; ; k++) {
+                long intended = intervalNanos > 0 ? first + (long) (k * intervalNanos) : System.nanoTime();
+                if (intended - end >= 0)
+                    return;
+                parkUntil(intended);
+                execute(intended);
+            }
+        }
+
+        private void execute(final long intended) {
+            Operation operation = pick();
+            long sent = System.nanoTime();
+            boolean succeeded;
+            try {
+                succeeded = perform(operation);
+            } catch (Exception e) {
+                AWSESJestExample.LOG.debug("Bench " + operation + " operation failed: " + e);
+                succeeded = false;
+            }
+            long completed = System.nanoTime();
+
+            if (intended - measureStart >= 0) {
+                Stats operationStats = stats.get(operation);
+                operationStats.serviceTimes.recordValue(completed - sent);
+                operationStats.responseTimes.recordValue(completed - intended);
+                if (!succeeded)
+                    operationStats.errors.increment();
+            }
+        }
+
+        private boolean perform(final Operation operation) throws Exception {
+            switch (operation) {
+                case INDEX:
+                    Note note = note();
+                    return jestClient.execute(new Index.Builder(NoteCodec.encode(note)).id(note.getId())
+                            .index(indexName).type(typeName).build()).isSucceeded();
+                case BULK:
+                    payload.setLength(0);
+                    for (int i = 0; i < docsPerBulk; i++) {
+                        Note bulkNote = note();
+                        NoteCodec.writeSource(NoteCodec.writeIndexAction(payload, bulkNote.getId()), bulkNote)
+                                .append('\n');
+                    }
+                    return jestClient.execute(new NoteBulk(indexName, typeName, payload.toString())).isSucceeded();
+                case SEARCH:
+                    JestResult result = jestClient.execute(SearchRequests.withDeadline(new Search.Builder(
+                            queries[ThreadLocalRandom.current().nextInt(queries.length)])
+                            .addIndex(indexName).addType(typeName), searchDeadlineMillis).build());
+                    // Partial results count as errors, as the searches that timed out on the client do
+                    if (!SearchRequests.isComplete(result))
+                        return false;
+                    // Decoding the hits is part of the client's work
+                    NoteDecoder.forEachHit(result.getJsonString(), hit, n -> { });
+                    return true;
+                case GET:
+                    // Concurrent clients' lookups are sent together, and most random ids are not found
+                    loader.load(Long.toHexString(ThreadLocalRandom.current().nextLong())).join();
+                    return true;
+                default:
+                    throw new IllegalStateException("Unknown operation " + operation);
+            }
+        }
+
+        private Operation pick() {
+            int value = ThreadLocalRandom.current().nextInt(cumulativeWeights[cumulativeWeights.length - 1]);
+            for (int i = 0; i < cumulativeWeights.length; i++) {
+                if (value < cumulativeWeights[i])
+                    return operations[i];
+            }
+            return operations[operations.length - 1];
+        }
+
+        /**
+         * @return a new Note whose text is made of random words
+         */
+        private Note note() {
+            long n = notes.incrementAndGet();
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            StringBuilder text = new StringBuilder(noteLength + 16).append("Note").append(n).append(':');
+            while (text.length() < noteLength)
+                text.append(' ').append(WORDS[random.nextInt(WORDS.length)]);
+            text.setLength(noteLength);
+            return new Note("User" + (n % 1000), text.toString());
+        }
+    }
+
+    private static void parkUntil(final long deadline) {
+        long remaining;
+        while ((remaining = deadline - System.nanoTime()) > 0)
+            LockSupport.parkNanos(remaining);
+    }
+
+    /**
+     * @return the throughput, errors and latency percentiles of every operation and of all of them together
+     */
+    String report() {
+        StringBuilder sb = new StringBuilder();
+        double seconds = measuredNanos / 1e9;
+
+        ConcurrentHistogram serviceTimes = new ConcurrentHistogram(3);
+        ConcurrentHistogram responseTimes = new ConcurrentHistogram(3);
+        long errors = 0;
+        for (Map.Entry<Operation, Stats> entry : stats.entrySet()) {
+            Stats operationStats = entry.getValue();
+            serviceTimes.add(operationStats.serviceTimes);
+            responseTimes.add(operationStats.responseTimes);
+            errors += operationStats.errors.sum();
+            appendStats(sb, entry.getKey().name().toLowerCase(Locale.ROOT), operationStats.serviceTimes,
+                    operationStats.responseTimes, operationStats.errors.sum(), seconds);
+        }
+        appendStats(sb, "total", serviceTimes, responseTimes, errors, seconds);
+
+        return String.format("%s loop, %s, %d clients, %.1f s measured:%n",
+                loop, rate > 0 ? "target " + rate + " ops/sec" : "unpaced", clients, seconds) + sb;
+    }
+
+    private static void appendStats(final StringBuilder sb,
+                                    final String name,
+                                    final ConcurrentHistogram serviceTimes,
+                                    final ConcurrentHistogram responseTimes,
+                                    final long errors,
+                                    final double seconds) {
+        long count = serviceTimes.getTotalCount();
+        sb.append(String.format("%s: %d ops, %.1f ops/sec, %d errors%n", name, count,
+                seconds > 0 ? count / seconds : 0, errors));
+        sb.append("  service time: ").append(HdrMetricsRegistry.describe(serviceTimes)).append(System.lineSeparator());
+        sb.append("  response time: ").append(HdrMetricsRegistry.describe(responseTimes)).append(System.lineSeparator());
+    }
+}
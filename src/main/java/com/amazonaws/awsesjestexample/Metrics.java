@@ -0,0 +1,93 @@
+/*
+ * Copyright 2018 Joarder Kamal. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"). You may
+ * not use this file except in compliance with the License. A copy of the
+ * License is located at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazonaws.awsesjestexample;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Holds the metrics registry the client records into. Metrics are off,
+ * and the client is not instrumented at all, until a registry is set.
+ */
+public final class Metrics {
+    static final String OBJECT_NAME = "com.amazonaws.awsesjestexample:type=Metrics";
+
+    private static volatile MetricsRegistry registry = MetricsRegistry.NOOP;
+
+    private Metrics() {
+    }
+
+    public static MetricsRegistry get() {
+        return registry;
+    }
+
+    /**
+     * Sets the registry; must be called before the Jest client is built for it to be instrumented
+     * @param metricsRegistry registry to record into, or MetricsRegistry.NOOP to disable metrics
+     */
+    public static void set(final MetricsRegistry metricsRegistry) {
+        registry = metricsRegistry;
+    }
+
+    /**
+     * @return true if a registry other than NOOP is set
+     */
+    static boolean isEnabled() {
+        return registry != MetricsRegistry.NOOP;
+    }
+
+    /**
+     * Enables the metrics configured from the command line arguments
+     */
+    static void fromArgs() {
+        if (!Args.metrics && !Args.metricsJmx)
+            return;
+
+        HdrMetricsRegistry hdrRegistry = new HdrMetricsRegistry();
+        set(hdrRegistry);
+
+        if (Args.metricsJmx) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(hdrRegistry, new ObjectName(OBJECT_NAME));
+            } catch (JMException e) {
+                AWSESJestExample.LOG.error("Caught an exception while registering the metrics MBean.\n");
+                e.printStackTrace();
+            }
+        }
+
+        if (Args.metricsReportMillis > 0) {
+            ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "metrics-reporter");
+                thread.setDaemon(true);
+                return thread;
+            });
+            reporter.scheduleAtFixedRate(Metrics::log, Args.metricsReportMillis, Args.metricsReportMillis,
+                    TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Logs the report of the current registry, if metrics are enabled
+     */
+    static void log() {
+        if (isEnabled())
+            AWSESJestExample.LOG.info("Metrics:\n" + registry.report());
+    }
+}
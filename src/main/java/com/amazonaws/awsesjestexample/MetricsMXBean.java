@@ -0,0 +1,38 @@
+/*
+ * Copyright 2018 Joarder Kamal. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"). You may
+ * not use this file except in compliance with the License. A copy of the
+ * License is located at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazonaws.awsesjestexample;
+
+import java.util.Map;
+
+/**
+ * JMX view of the client metrics
+ */
+public interface MetricsMXBean {
+
+    /**
+     * @return latency percentiles in milliseconds, keyed by operation and percentile, e.g. "jest.Bulk.p99"
+     */
+    Map<String, Double> getLatencies();
+
+    Map<String, Long> getCounters();
+
+    Map<String, Long> getGauges();
+
+    /**
+     * @return the same text report that is logged
+     */
+    String getReport();
+}
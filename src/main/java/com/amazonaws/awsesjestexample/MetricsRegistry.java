@@ -0,0 +1,71 @@
+/*
+ * Copyright 2018 Joarder Kamal. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"). You may
+ * not use this file except in compliance with the License. A copy of the
+ * License is located at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazonaws.awsesjestexample;
+
+import java.util.function.LongSupplier;
+
+/**
+ * Receives the latencies, counters and gauges recorded by the client.
+ * Implementations must be thread-safe and cheap to call on the request path;
+ * plug in a different one with Metrics.set to forward them elsewhere.
+ */
+public interface MetricsRegistry {
+
+    /**
+     * Discards everything, used while metrics are disabled
+     */
+    MetricsRegistry NOOP = new MetricsRegistry() {
+        @Override
+        public void recordLatency(final String name, final long nanos) {
+        }
+
+        @Override
+        public void increment(final String name, final long delta) {
+        }
+
+        @Override
+        public void gauge(final String name, final LongSupplier value) {
+        }
+
+        @Override
+        public String report() {
+            return "";
+        }
+    };
+
+    /**
+     * @param name operation the latency belongs to
+     * @param nanos latency in nanoseconds
+     */
+    void recordLatency(String name, long nanos);
+
+    /**
+     * @param name counter to be increased
+     * @param delta amount to add
+     */
+    void increment(String name, long delta);
+
+    /**
+     * @param name gauge to be registered, replacing any previous one of the same name
+     * @param value sampled whenever the gauge is read
+     */
+    void gauge(String name, LongSupplier value);
+
+    /**
+     * @return a human readable dump of all recorded metrics
+     */
+    String report();
+}
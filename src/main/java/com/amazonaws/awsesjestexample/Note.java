@@ -18,7 +18,8 @@ package com.amazonaws.awsesjestexample;
 import io.searchbox.annotations.JestId;
 
 import java.io.Serializable;
-import java.util.Date;
+import java.time.Instant;
+import java.util.concurrent.ThreadLocalRandom;
 
 public class Note implements Serializable {
     private static final long serialVersionUID = -3971912226293959387L;
@@ -28,14 +29,34 @@ public class Note implements Serializable {
 
     private String note;
 
-    private Date createdOn;
+    // Stands for a creation time that is not known, as 0 is the epoch
+    static final long NO_CREATED_ON = Long.MIN_VALUE;
+
+    // Epoch milliseconds, which Elasticsearch date fields accept as is
+    private long createdOn;
 
     private String userName;
 
+    // Used by NoteDecoder, which sets every field it finds itself
+    Note() {
+        this.createdOn = NO_CREATED_ON;
+    }
+
     public Note(final String userName, final String note) {
         this.userName = userName;
         this.note = note;
-        this.createdOn = new Date();
+        this.createdOn = System.currentTimeMillis();
+        this.id = newId();
+    }
+
+    /**
+     * @return a new id, unique across clients, which Notes are indexed under and sorted by
+     *         after createdOn; it starts with the time, so ids created together share a prefix
+     */
+    static String newId() {
+        // Eight base-36 digits of milliseconds last until 2059, so the random part cannot shift into them
+        return Long.toString(System.currentTimeMillis(), 36)
+                + Long.toString(ThreadLocalRandom.current().nextLong() & Long.MAX_VALUE, 36);
     }
 
     public String getId() {
@@ -54,11 +75,11 @@ public class Note implements Serializable {
         this.note = note;
     }
 
-    public Date getCreatedOn() {
+    public long getCreatedOn() {
         return createdOn;
     }
 
-    public void setCreatedOn(Date createdOn) {
+    public void setCreatedOn(long createdOn) {
         this.createdOn = createdOn;
     }
 
@@ -72,7 +93,8 @@ public class Note implements Serializable {
 
     @Override
     public String toString() {
-        return "Note [id=" + id + ", note=" + note + ", createdOn=" + createdOn
+        return "Note [id=" + id + ", note=" + note
+                + ", createdOn=" + (createdOn != NO_CREATED_ON ? Instant.ofEpochMilli(createdOn) : null)
                 + ", userName=" + userName + "]";
     }
 
@@ -0,0 +1,46 @@
+/*
+ * Copyright 2018 Joarder Kamal. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"). You may
+ * not use this file except in compliance with the License. A copy of the
+ * License is located at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+
+package com.amazonaws.awsesjestexample;
+
+import com.google.gson.Gson;
+
+import io.searchbox.core.Bulk;
+
+/**
+ * A bulk request whose NDJSON payload has already been written, e.g. by
+ * NoteCodec. Jest's Bulk renders every action through Gson when the
+ * request is sent; this one hands over the prepared payload as is and
+ * otherwise behaves exactly like Bulk, including its BulkResult.
+ */
+class NoteBulk extends Bulk {
+    private final String payload;
+
+    /**
+     * @param indexName index of the actions that do not name their own
+     * @param typeName index type of the actions that do not name their own
+     * @param payload action and source lines, each terminated by a line break
+     */
+    NoteBulk(final String indexName, final String typeName, final String payload) {
+        super(new Bulk.Builder().defaultIndex(indexName).defaultType(typeName));
+        this.payload = payload;
+    }
+
+    @Override
+    public String getData(final Gson gson) {
+        return payload;
+    }
+}
@@ -0,0 +1,175 @@
+/*
+ * Copyright 2018 Joarder Kamal. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"). You may
+ * not use this file except in compliance with the License. A copy of the
+ * License is located at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+
+package com.amazonaws.awsesjestexample;
+
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * Writes Notes and bulk action lines as JSON straight into a caller-owned
+ * StringBuilder, so a buffer reused across bulk requests takes the whole
+ * NDJSON payload without reflection, date formatting or a String per
+ * document. The output matches what Gson writes for a Note, with the
+ * creation time as epoch milliseconds.
+ */
+final class NoteCodec {
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private NoteCodec() {
+    }
+
+    /**
+     * @return the Note as a JSON object
+     */
+    static String encode(final Note note) {
+        return writeSource(new StringBuilder(estimateSize(note)), note).toString();
+    }
+
+    /**
+     * Appends the Note as a JSON object, leaving out null fields like Gson does, and an unknown creation time
+     * @param out buffer to append to
+     * @param note the Note to be written
+     * @return the buffer
+     */
+    static StringBuilder writeSource(final StringBuilder out, final Note note) {
+        out.append('{');
+        if (note.getId() != null)
+            writeString(out.append("\"id\":"), note.getId()).append(',');
+        if (note.getNote() != null)
+            writeString(out.append("\"note\":"), note.getNote()).append(',');
+        if (note.getCreatedOn() != Note.NO_CREATED_ON)
+            out.append("\"createdOn\":").append(note.getCreatedOn()).append(',');
+        if (note.getUserName() != null)
+            writeString(out.append("\"userName\":"), note.getUserName()).append(',');
+
+        // Every field is followed by a comma, the last one by the closing brace instead
+        if (out.charAt(out.length() - 1) == ',')
+            out.setLength(out.length() - 1);
+        return out.append('}');
+    }
+
+    /**
+     * Appends the action line of a bulk index request, including its line break
+     * @param out buffer to append to
+     * @param id document id, or null to let Elasticsearch generate one
+     * @return the buffer
+     */
+    static StringBuilder writeIndexAction(final StringBuilder out, final String id) {
+        if (id == null)
+            return out.append("{\"index\":{}}\n");
+        return writeString(out.append("{\"index\":{\"_id\":"), id).append("}}\n");
+    }
+
+    /**
+     * Appends the action line of a bulk update request, including its line break
+     * @param out buffer to append to
+     * @param id id of the document to be updated
+     * @param version version the document must have for the update to apply, or -1 to update any version
+     * @return the buffer
+     */
+    static StringBuilder writeUpdateAction(final StringBuilder out, final String id, final long version) {
+        writeString(out.append("{\"update\":{\"_id\":"), id);
+        if (version >= 0)
+            out.append(",\"version\":").append(version);
+        return out.append("}}\n");
+    }
+
+    /**
+     * Appends a JSON value
+     * @param out buffer to append to
+     * @param value a string, number, boolean or null, or a map or collection of those
+     * @return the buffer
+     */
+    static StringBuilder writeValue(final StringBuilder out, final Object value) {
+        if (value == null || value instanceof Number || value instanceof Boolean)
+            return out.append(value);
+
+        if (value instanceof Map) {
+            out.append('{');
+            boolean first = true;
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                if (!first)
+                    out.append(',');
+                first = false;
+                writeValue(writeString(out, String.valueOf(entry.getKey())).append(':'), entry.getValue());
+            }
+            return out.append('}');
+        }
+
+        if (value instanceof Collection) {
+            out.append('[');
+            boolean first = true;
+            for (Object element : (Collection<?>) value) {
+                if (!first)
+                    out.append(',');
+                first = false;
+                writeValue(out, element);
+            }
+            return out.append(']');
+        }
+
+        return writeString(out, value.toString());
+    }
+
+    /**
+     * @return roughly the number of characters the Note takes as JSON, for sizing buffers and batches
+     */
+    static int estimateSize(final Note note) {
+        return 64 + length(note.getId()) + length(note.getNote()) + length(note.getUserName());
+    }
+
+    private static int length(final String value) {
+        return value == null ? 0 : value.length();
+    }
+
+    /**
+     * Appends a JSON string, escaping quotes, backslashes and control characters
+     */
+    static StringBuilder writeString(final StringBuilder out, final String value) {
+        out.append('"');
+        int start = 0;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c >= 0x20 && c != '"' && c != '\\')
+                continue;
+
+            out.append(value, start, i);
+            start = i + 1;
+            switch (c) {
+                case '"':
+                    out.append("\\\"");
+                    break;
+                case '\\':
+                    out.append("\\\\");
+                    break;
+                case '\n':
+                    out.append("\\n");
+                    break;
+                case '\r':
+                    out.append("\\r");
+                    break;
+                case '\t':
+                    out.append("\\t");
+                    break;
+                default:
+                    out.append("\\u").append(HEX[c >> 12 & 0xf]).append(HEX[c >> 8 & 0xf])
+                            .append(HEX[c >> 4 & 0xf]).append(HEX[c & 0xf]);
+            }
+        }
+        return out.append(value, start, value.length()).append('"');
+    }
+}
@@ -0,0 +1,401 @@
+/*
+ * Copyright 2018 Joarder Kamal. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"). You may
+ * not use this file except in compliance with the License. A copy of the
+ * License is located at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazonaws.awsesjestexample;
+
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.time.OffsetDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * Decodes search responses with a streaming JSON reader, binding
+ * hits.hits[]._source straight into Notes. Unlike getSourceAsObjectList
+ * it neither walks a JsonObject tree nor re-serializes every _source, and
+ * it can reuse a single Note instance for all hits. Multi-get responses
+ * are decoded the same way, from docs[]._source, and composite
+ * aggregation responses into pages of bucket keys and counts.
+ */
+final class NoteDecoder {
+    private static final DateTimeFormatter DATE_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ssZ");
+
+    private NoteDecoder() {
+    }
+
+    /**
+     * A page of decoded hits along with what is needed to fetch the next page
+     */
+    static final class Page {
+        final List<Note> notes = new ArrayList<>();
+        int hits = 0;
+        Object[] lastSort;
+        String scrollId;
+    }
+
+    /**
+     * A document of a multi-get response
+     */
+    static final class Doc {
+        String id;
+        long version = -1;
+        Note note;
+        String error;
+    }
+
+    /**
+     * A bucket of a composite aggregation
+     */
+    static final class Bucket {
+        final Map<String, Object> key = new LinkedHashMap<>();
+        long docCount;
+
+        @Override
+        public String toString() {
+            return key + "=" + docCount;
+        }
+    }
+
+    /**
+     * A page of composite aggregation buckets along with the key to fetch the next page after
+     */
+    static final class BucketPage {
+        final List<Bucket> buckets = new ArrayList<>();
+        Map<String, Object> afterKey;
+    }
+
+    /**
+     * @param json search or scroll response body
+     * @return the decoded page, with a new Note per hit
+     * @throws IOException if the response is malformed
+     */
+    static Page decodePage(final String json) throws IOException {
+        Page page = new Page();
+        decode(json, null, page, page.notes::add);
+        return page;
+    }
+
+    /**
+     * Decodes every hit into the same Note instance; the consumer must copy what it keeps
+     * @param json search or scroll response body
+     * @param reusable Note to decode every hit into
+     * @param consumer called once per hit
+     * @return the number of hits decoded
+     * @throws IOException if the response is malformed
+     */
+    static int forEachHit(final String json, final Note reusable, final Consumer<Note> consumer) throws IOException {
+        Page page = new Page();
+        decode(json, reusable, page, consumer);
+        return page.hits;
+    }
+
+    /**
+     * @param json a Note as a JSON object, e.g. the _source of a hit
+     * @return the decoded Note
+     * @throws IOException if the JSON is malformed
+     */
+    static Note decodeSource(final String json) throws IOException {
+        Note note = new Note();
+        try (JsonReader reader = new JsonReader(new StringReader(json))) {
+            readSource(reader, note);
+        }
+        return note;
+    }
+
+    /**
+     * @param json multi-get response body
+     * @return the documents in the order they were asked for, with a null Note if one was not found
+     *         and an error if looking it up failed
+     * @throws IOException if the response is malformed
+     */
+    static List<Doc> decodeDocs(final String json) throws IOException {
+        List<Doc> docs = new ArrayList<>();
+        try (JsonReader reader = new JsonReader(new StringReader(json))) {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                if ("docs".equals(reader.nextName())) {
+                    reader.beginArray();
+                    while (reader.hasNext())
+                        docs.add(readDoc(reader));
+                    reader.endArray();
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+        }
+        return docs;
+    }
+
+    /**
+     * @param json search response body
+     * @param name name of the composite aggregation
+     * @return the buckets of the aggregation, with the key of the last one as after key
+     *         if the response does not name one
+     * @throws IOException if the response is malformed
+     */
+    static BucketPage decodeBuckets(final String json, final String name) throws IOException {
+        BucketPage page = new BucketPage();
+        try (JsonReader reader = new JsonReader(new StringReader(json))) {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                if ("aggregations".equals(reader.nextName())) {
+                    reader.beginObject();
+                    while (reader.hasNext()) {
+                        if (name.equals(reader.nextName()))
+                            readComposite(reader, page);
+                        else
+                            reader.skipValue();
+                    }
+                    reader.endObject();
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+        }
+
+        if (page.afterKey == null && !page.buckets.isEmpty())
+            page.afterKey = page.buckets.get(page.buckets.size() - 1).key;
+        return page;
+    }
+
+    private static void decode(final String json, final Note reusable, final Page page, final Consumer<Note> consumer)
+            throws IOException {
+        try (JsonReader reader = new JsonReader(new StringReader(json))) {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if ("_scroll_id".equals(name)) {
+                    page.scrollId = reader.nextString();
+                } else if ("hits".equals(name) && reader.peek() == JsonToken.BEGIN_OBJECT) {
+                    reader.beginObject();
+                    while (reader.hasNext()) {
+                        if ("hits".equals(reader.nextName())) {
+                            reader.beginArray();
+                            while (reader.hasNext()) {
+                                Note note = reusable != null ? reusable : new Note();
+                                page.lastSort = readHit(reader, note);
+                                page.hits++;
+                                consumer.accept(note);
+                            }
+                            reader.endArray();
+                        } else {
+                            reader.skipValue();
+                        }
+                    }
+                    reader.endObject();
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+        }
+    }
+
+    /**
+     * Reads a single hit into the given Note
+     * @return the sort values of the hit, or null if it has none
+     */
+    private static Object[] readHit(final JsonReader reader, final Note note) throws IOException {
+        Object[] sort = null;
+        note.setId(null);
+        note.setNote(null);
+        note.setUserName(null);
+        note.setCreatedOn(Note.NO_CREATED_ON);
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case "_id":
+                    note.setId(reader.nextString());
+                    break;
+                case "_source":
+                    readSource(reader, note);
+                    break;
+                case "sort":
+                    sort = readSort(reader);
+                    break;
+                default:
+                    reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return sort;
+    }
+
+    private static Doc readDoc(final JsonReader reader) throws IOException {
+        Doc doc = new Doc();
+        boolean found = false;
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case "_id":
+                    doc.id = reader.nextString();
+                    break;
+                case "_version":
+                    doc.version = reader.nextLong();
+                    break;
+                case "found":
+                    found = reader.nextBoolean();
+                    break;
+                case "_source":
+                    doc.note = new Note();
+                    readSource(reader, doc.note);
+                    break;
+                case "error":
+                    doc.error = new JsonParser().parse(reader).toString();
+                    break;
+                default:
+                    reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        if (!found)
+            doc.note = null;
+        else if (doc.note != null)
+            doc.note.setId(doc.id);
+        return doc;
+    }
+
+    private static void readComposite(final JsonReader reader, final BucketPage page) throws IOException {
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case "after_key":
+                    page.afterKey = new LinkedHashMap<>();
+                    readKey(reader, page.afterKey);
+                    break;
+                case "buckets":
+                    reader.beginArray();
+                    while (reader.hasNext()) {
+                        Bucket bucket = new Bucket();
+                        reader.beginObject();
+                        while (reader.hasNext()) {
+                            switch (reader.nextName()) {
+                                case "key":
+                                    readKey(reader, bucket.key);
+                                    break;
+                                case "doc_count":
+                                    bucket.docCount = reader.nextLong();
+                                    break;
+                                default:
+                                    reader.skipValue();
+                            }
+                        }
+                        reader.endObject();
+                        page.buckets.add(bucket);
+                    }
+                    reader.endArray();
+                    break;
+                default:
+                    reader.skipValue();
+            }
+        }
+        reader.endObject();
+    }
+
+    private static void readKey(final JsonReader reader, final Map<String, Object> key) throws IOException {
+        reader.beginObject();
+        while (reader.hasNext())
+            key.put(reader.nextName(), readScalar(reader));
+        reader.endObject();
+    }
+
+    private static void readSource(final JsonReader reader, final Note note) throws IOException {
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (reader.peek() == JsonToken.NULL) {
+                reader.nextNull();
+                continue;
+            }
+            switch (name) {
+                case "id":
+                    // The _id of a hit or document, read before its _source, takes precedence
+                    if (note.getId() == null)
+                        note.setId(reader.nextString());
+                    else
+                        reader.skipValue();
+                    break;
+                case "note":
+                    note.setNote(reader.nextString());
+                    break;
+                case "userName":
+                    note.setUserName(reader.nextString());
+                    break;
+                case "createdOn":
+                    note.setCreatedOn(readDate(reader));
+                    break;
+                default:
+                    reader.skipValue();
+            }
+        }
+        reader.endObject();
+    }
+
+    /**
+     * @return epoch milliseconds of a date written either as such or in the Jest date format
+     */
+    private static long readDate(final JsonReader reader) throws IOException {
+        if (reader.peek() == JsonToken.NUMBER)
+            return reader.nextLong();
+
+        String value = reader.nextString();
+        try {
+            return OffsetDateTime.parse(value, DATE_FORMAT).toInstant().toEpochMilli();
+        } catch (DateTimeParseException e) {
+            return OffsetDateTime.parse(value).toInstant().toEpochMilli();
+        }
+    }
+
+    private static Object[] readSort(final JsonReader reader) throws IOException {
+        List<Object> values = new ArrayList<>(2);
+        reader.beginArray();
+        while (reader.hasNext())
+            values.add(readScalar(reader));
+        reader.endArray();
+        return values.toArray();
+    }
+
+    /**
+     * @return a string, a null, or a number as a Long if it is integral and as a Double otherwise
+     */
+    private static Object readScalar(final JsonReader reader) throws IOException {
+        JsonToken token = reader.peek();
+        if (token == JsonToken.NUMBER) {
+            String number = reader.nextString();
+            return number.indexOf('.') >= 0 || number.indexOf('E') >= 0 || number.indexOf('e') >= 0
+                    ? (Object) Double.valueOf(number) : (Object) Long.valueOf(number);
+        } else if (token == JsonToken.NULL) {
+            reader.nextNull();
+            return null;
+        } else if (token == JsonToken.BOOLEAN) {
+            return reader.nextBoolean();
+        }
+        return reader.nextString();
+    }
+}
@@ -0,0 +1,314 @@
+/*
+ * Copyright 2018 Joarder Kamal. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"). You may
+ * not use this file except in compliance with the License. A copy of the
+ * License is located at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+
+package com.amazonaws.awsesjestexample;
+
+import io.searchbox.client.JestClient;
+import io.searchbox.client.JestResult;
+import io.searchbox.client.JestResultHandler;
+import io.searchbox.core.MultiGet;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Looks Notes up by id in batches (micro-batching). Ids asked for by
+ * concurrent callers are collected for a short window, starting with the
+ * first one, into a single _mget request, and every caller gets a future
+ * of its own Note back. An id asked for more than once in a window is
+ * fetched once and its callers share the Note. Batches are sent with
+ * executeAsync while the dispatcher thread collects the next one; once the
+ * maximum number of batches is in flight, ids keep queueing up and go out
+ * in full batches as soon as a response comes in. Futures are completed on
+ * a callback executor rather than on the I/O reactor.
+ */
+class NoteLoader implements AutoCloseable {
+    private static final long POLL_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+
+    private final JestClient jestClient;
+    private final String indexName;
+    private final String typeName;
+    private final int maxIds;
+    private final long windowNanos;
+    private final Semaphore inFlight;
+    private final int concurrency;
+    private final Executor callbackExecutor;
+
+    private final BlockingQueue<Lookup> queue = new LinkedBlockingQueue<>();
+    private final Thread dispatcher;
+    private final LongAdder lookups = new LongAdder();
+    private final LongAdder batches = new LongAdder();
+
+    // Callers queue ids under the read lock, so none is queued once the dispatcher may have seen closed
+    private final ReadWriteLock closing = new ReentrantReadWriteLock();
+    private volatile boolean closed = false;
+
+    /**
+     * An id asked for by a caller along with the future the caller waits on
+     */
+    private static final class Lookup {
+        private final String id;
+        private final CompletableFuture<Note> future = new CompletableFuture<>();
+
+        private Lookup(final String id) {
+            this.id = id;
+        }
+    }
+
+    /**
+     * @param jestClient client used to send the multi-get requests
+     * @param indexName index the Notes are looked up in
+     * @param typeName index type the Notes are looked up in
+     * @param maxIds maximum number of ids per multi-get request
+     * @param windowMillis time ids are collected for before they are sent, 0 to only batch those already waiting
+     * @param concurrency maximum number of multi-get requests in flight
+     * @param callbackExecutor executor on which the returned futures are completed
+     */
+    NoteLoader(final JestClient jestClient,
+               final String indexName,
+               final String typeName,
+               final int maxIds,
+               final long windowMillis,
+               final int concurrency,
+               final Executor callbackExecutor) {
+        this.jestClient = jestClient;
+        this.indexName = indexName;
+        this.typeName = typeName;
+        this.maxIds = Math.max(1, maxIds);
+        this.windowNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, windowMillis));
+        this.concurrency = Math.max(1, concurrency);
+        this.inFlight = new Semaphore(this.concurrency);
+        this.callbackExecutor = callbackExecutor;
+
+        this.dispatcher = new Thread(this::run, "note-loader-" + indexName);
+        this.dispatcher.setDaemon(true);
+        this.dispatcher.start();
+    }
+
+    /**
+     * @return a Note loader configured from the command line arguments
+     */
+    static NoteLoader fromArgs(final JestClient jestClient) {
+        return new NoteLoader(jestClient, Args.indexName, Args.typeName, Args.mgetMaxIds, Args.mgetWindowMillis,
+                Args.mgetConcurrency, AWSESActions.getCallbackExecutor());
+    }
+
+    /**
+     * Queues an id for the next multi-get request
+     * @param id id of the Note
+     * @return a future of the Note, or of null if there is none with this id; completed exceptionally
+     *         if the request or the lookup of this id failed
+     */
+    CompletableFuture<Note> load(final String id) {
+        Lookup lookup = new Lookup(id);
+
+        closing.readLock().lock();
+        try {
+            if (closed)
+                throw new IllegalStateException("Note loader is already closed.");
+            lookups.increment();
+            queue.add(lookup);
+        } finally {
+            closing.readLock().unlock();
+        }
+        return lookup.future;
+    }
+
+    /**
+     * Queues several ids, which usually end up in the same multi-get request
+     * @param ids ids of the Notes
+     * @return a future of the Notes in the order of the ids, with null for ids that were not found
+     */
+    CompletableFuture<List<Note>> loadAll(final List<String> ids) {
+        List<CompletableFuture<Note>> futures = new ArrayList<>(ids.size());
+        for (String id : ids)
+            futures.add(load(id));
+
+        return CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).thenApply(done -> {
+            List<Note> notes = new ArrayList<>(futures.size());
+            for (CompletableFuture<Note> future : futures)
+                notes.add(future.join());
+            return notes;
+        });
+    }
+
+    /**
+     * Sends the queued ids and waits for the multi-get requests in flight to complete
+     * @throws InterruptedIOException if interrupted while waiting, with the interrupt flag set again
+     */
+    @Override
+    public void close() throws InterruptedIOException {
+        closing.writeLock().lock();
+        try {
+            closed = true;
+        } finally {
+            closing.writeLock().unlock();
+        }
+
+        try {
+            dispatcher.join();
+
+            // Ids queued after an interrupt stopped the dispatcher are never sent
+            List<Lookup> left = new ArrayList<>();
+            queue.drainTo(left);
+            for (Lookup lookup : left)
+                lookup.future.completeExceptionally(new IllegalStateException("Note loader is already closed."));
+
+            inFlight.acquire(concurrency);
+            inFlight.release(concurrency);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            InterruptedIOException interrupted = new InterruptedIOException("Interrupted while closing the Note loader");
+            interrupted.initCause(e);
+            throw interrupted;
+        }
+    }
+
+    /**
+     * @return number of ids asked for
+     */
+    long getLookups() {
+        return lookups.sum();
+    }
+
+    /**
+     * @return number of multi-get requests sent
+     */
+    long getBatches() {
+        return batches.sum();
+    }
+
+    @Override
+    public String toString() {
+        return "NoteLoader[" + getLookups() + " lookups in " + getBatches() + " requests]";
+    }
+
+    /**
+     * Collects queued ids into batches and sends them until closed and drained
+     */
+    private void run() {
+        List<Lookup> batch = new ArrayList<>(maxIds);
+
+        try {
+            while (!closed || !queue.isEmpty()) {
+                Lookup first = queue.poll(POLL_NANOS, TimeUnit.NANOSECONDS);
+                if (first == null)
+                    continue;
+                batch.add(first);
+
+                long deadline = System.nanoTime() + windowNanos;
+                while (batch.size() < maxIds) {
+                    long remaining = deadline - System.nanoTime();
+                    Lookup next = remaining > 0 ? queue.poll(remaining, TimeUnit.NANOSECONDS) : queue.poll();
+                    if (next == null)
+                        break;
+                    batch.add(next);
+                }
+
+                // Ids that queued up while waiting for a free slot still join this batch
+                inFlight.acquire();
+                queue.drainTo(batch, maxIds - batch.size());
+
+                send(batch);
+                batch = new ArrayList<>(maxIds);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            queue.drainTo(batch);
+            for (Lookup lookup : batch)
+                lookup.future.completeExceptionally(e);
+        }
+    }
+
+    private void send(final List<Lookup> batch) {
+        // Callers asking for the same id share a single entry of the request
+        final Map<String, List<CompletableFuture<Note>>> waiting = new LinkedHashMap<>();
+        for (Lookup lookup : batch)
+            waiting.computeIfAbsent(lookup.id, id -> new ArrayList<>(1)).add(lookup.future);
+
+        batches.increment();
+        Metrics.get().increment("mget.requests", 1);
+        Metrics.get().increment("mget.ids", waiting.size());
+
+        try {
+            jestClient.executeAsync(new MultiGet.Builder.ById(indexName, typeName).addId(waiting.keySet()).build(),
+                    new JestResultHandler<JestResult>() {
+                        public void completed(JestResult result) {
+                            inFlight.release();
+                            callbackExecutor.execute(() -> complete(waiting, result));
+                        }
+
+                        public void failed(Exception ex) {
+                            inFlight.release();
+                            callbackExecutor.execute(() -> fail(waiting, ex));
+                        }
+                    });
+        } catch (RuntimeException e) {
+            inFlight.release();
+            fail(waiting, e);
+        }
+    }
+
+    private static void complete(final Map<String, List<CompletableFuture<Note>>> waiting, final JestResult result) {
+        if (result.getResponseCode() / 100 != 2) {
+            fail(waiting, new JestResultException(result));
+            return;
+        }
+
+        try {
+            for (NoteDecoder.Doc doc : NoteDecoder.decodeDocs(result.getJsonString())) {
+                List<CompletableFuture<Note>> futures = waiting.remove(doc.id);
+                if (futures == null)
+                    continue;
+                for (CompletableFuture<Note> future : futures) {
+                    if (doc.error != null)
+                        future.completeExceptionally(new IOException("Failed to get document " + doc.id + ": " + doc.error));
+                    else
+                        future.complete(doc.note);
+                }
+            }
+        } catch (IOException e) {
+            fail(waiting, e);
+            return;
+        }
+
+        // Ids the response left out were not found
+        for (List<CompletableFuture<Note>> futures : waiting.values()) {
+            for (CompletableFuture<Note> future : futures)
+                future.complete(null);
+        }
+    }
+
+    private static void fail(final Map<String, List<CompletableFuture<Note>>> waiting, final Exception ex) {
+        for (List<CompletableFuture<Note>> futures : waiting.values()) {
+            for (CompletableFuture<Note> future : futures)
+                future.completeExceptionally(ex);
+        }
+    }
+}
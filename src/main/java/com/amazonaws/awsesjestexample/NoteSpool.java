@@ -0,0 +1,278 @@
+/*
+ * Copyright 2018 Joarder Kamal. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"). You may
+ * not use this file except in compliance with the License. A copy of the
+ * License is located at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazonaws.awsesjestexample;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A write-ahead spool of documents awaiting indexing, kept in append-only,
+ * memory-mapped segment files. Each record is laid out as
+ * [int length][byte state][UTF-8 source]; the length is written last, so a
+ * record torn by a crash reads as the end of the segment. Records are
+ * marked acknowledged in place once indexed, and a segment is deleted once
+ * it is full and all of its records are acknowledged. Records still pending
+ * when the spool is opened are replayed in the order they were written.
+ * Documents are spooled with their ids, and every record also has a stable
+ * id of its own, so replaying a document that was indexed but not yet
+ * acknowledged overwrites it rather than duplicating it.
+ */
+class NoteSpool implements AutoCloseable {
+    private static final String PREFIX = "spool-";
+    private static final String SUFFIX = ".seg";
+    private static final int HEADER_BYTES = 5;
+    private static final byte PENDING = 1;
+    private static final byte ACKED = 2;
+
+    private final Path directory;
+    private final int segmentBytes;
+    private final List<Segment> segments = new ArrayList<>();
+    private Segment active;
+    private long lastSequence = 0;
+    private long pending = 0;
+
+    /**
+     * A document in the spool
+     */
+    static final class Record {
+        private final Segment segment;
+        private final int offset;
+        private final String source;
+
+        private Record(final Segment segment, final int offset, final String source) {
+            this.segment = segment;
+            this.offset = offset;
+            this.source = source;
+        }
+
+        /**
+         * @return an id unique to this record, stable across restarts
+         */
+        String getId() {
+            return "spool-" + segment.sequence + "-" + offset;
+        }
+
+        String getSource() {
+            return source;
+        }
+    }
+
+    /**
+     * A memory-mapped segment file
+     */
+    private static final class Segment {
+        private final long sequence;
+        private final Path path;
+        private final FileChannel channel;
+        private final MappedByteBuffer buffer;
+        private int writeOffset = 0;
+        private int outstanding = 0;
+        private boolean sealed = false;
+        private boolean dirty = false;
+
+        private Segment(final long sequence, final Path path, final int size) throws IOException {
+            this.sequence = sequence;
+            this.path = path;
+            this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE);
+            this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(size, channel.size()));
+        }
+
+        private int remaining() {
+            return buffer.capacity() - writeOffset;
+        }
+    }
+
+    /**
+     * @param directory directory holding the segment files, created if missing
+     * @param segmentBytes size of a segment file
+     * @throws IOException
+     */
+    NoteSpool(final Path directory, final int segmentBytes) throws IOException {
+        this.directory = Files.createDirectories(directory);
+        this.segmentBytes = Math.max(4096, segmentBytes);
+    }
+
+    /**
+     * @return a spool configured from the command line arguments, or null if spooling is disabled
+     * @throws IOException
+     */
+    static NoteSpool fromArgs() throws IOException {
+        if (Args.spoolDir == null)
+            return null;
+        // A segment is mapped as a whole, and a single mapping is limited to 2 GB
+        long segmentBytes = Args.spoolSegmentMegabytes * 1024L * 1024;
+        if (segmentBytes <= 0 || segmentBytes > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("The spool segment size must be at least 1 and below 2048 MB");
+        return new NoteSpool(Paths.get(Args.spoolDir), (int) segmentBytes);
+    }
+
+    /**
+     * Reads the records left pending by previous runs; must be called before the first append
+     * @return the pending records in the order they were written
+     * @throws IOException
+     */
+    synchronized List<Record> recover() throws IOException {
+        List<Path> paths = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, PREFIX + "*" + SUFFIX)) {
+            stream.forEach(paths::add);
+        }
+        paths.sort(null);
+
+        List<Record> records = new ArrayList<>();
+        for (Path path : paths) {
+            String name = path.getFileName().toString();
+            long sequence = Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length()));
+
+            Segment segment = new Segment(sequence, path, 0);
+            segment.sealed = true;
+            while (segment.remaining() >= HEADER_BYTES) {
+                int length = segment.buffer.getInt(segment.writeOffset);
+                if (length <= 0 || length > segment.remaining() - HEADER_BYTES)
+                    break;
+
+                if (segment.buffer.get(segment.writeOffset + 4) == PENDING) {
+                    byte[] bytes = new byte[length];
+                    ByteBuffer view = segment.buffer.duplicate();
+                    view.position(segment.writeOffset + HEADER_BYTES);
+                    view.get(bytes);
+                    records.add(new Record(segment, segment.writeOffset, new String(bytes, StandardCharsets.UTF_8)));
+                    segment.outstanding++;
+                }
+                segment.writeOffset += HEADER_BYTES + length;
+            }
+
+            segments.add(segment);
+            lastSequence = Math.max(lastSequence, sequence);
+            if (segment.outstanding == 0)
+                delete(segment);
+        }
+
+        pending = records.size();
+        return records;
+    }
+
+    /**
+     * Appends a document to the spool; it is durable once sync() returns
+     * @param source JSON source of the document
+     * @return the spooled record
+     * @throws IOException
+     */
+    synchronized Record append(final String source) throws IOException {
+        byte[] bytes = source.getBytes(StandardCharsets.UTF_8);
+        int size = HEADER_BYTES + bytes.length;
+
+        if (active == null || active.remaining() < size) {
+            if (active != null)
+                seal(active);
+            // Time based, so that record ids are not reused once the segments of earlier runs are gone
+            long sequence = Math.max(lastSequence + 1, System.currentTimeMillis());
+            lastSequence = sequence;
+            active = new Segment(sequence, directory.resolve(String.format("%s%020d%s", PREFIX, sequence, SUFFIX)),
+                    Math.max(segmentBytes, size));
+            segments.add(active);
+        }
+
+        int offset = active.writeOffset;
+        ByteBuffer view = active.buffer.duplicate();
+        view.position(offset + HEADER_BYTES);
+        view.put(bytes);
+        active.buffer.put(offset + 4, PENDING);
+        active.buffer.putInt(offset, bytes.length);
+
+        active.writeOffset += size;
+        active.outstanding++;
+        active.dirty = true;
+        pending++;
+
+        return new Record(active, offset, source);
+    }
+
+    /**
+     * Marks a record as indexed, deleting its segment once all of its records are
+     * @param record record to be acknowledged
+     */
+    synchronized void ack(final Record record) {
+        Segment segment = record.segment;
+        segment.buffer.put(record.offset + 4, ACKED);
+        pending--;
+
+        if (--segment.outstanding == 0 && segment.sealed)
+            delete(segment);
+    }
+
+    /**
+     * Flushes the appended records to disk
+     */
+    synchronized void sync() {
+        for (Segment segment : segments) {
+            if (segment.dirty) {
+                segment.buffer.force();
+                segment.dirty = false;
+            }
+        }
+    }
+
+    /**
+     * @return number of records not yet acknowledged
+     */
+    synchronized long getPending() {
+        return pending;
+    }
+
+    private void seal(final Segment segment) {
+        segment.sealed = true;
+        if (segment.outstanding == 0)
+            delete(segment);
+    }
+
+    private void delete(final Segment segment) {
+        segments.remove(segment);
+        try {
+            segment.channel.close();
+            Files.deleteIfExists(segment.path);
+        } catch (IOException e) {
+            AWSESJestExample.LOG.error("Caught an exception while deleting spool segment "+segment.path+".\n");
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Flushes all records to disk and closes the segment files, keeping the pending ones for the next run
+     * @throws IOException
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        sync();
+        for (Segment segment : segments) {
+            segment.channel.close();
+            if (segment.outstanding == 0)
+                Files.deleteIfExists(segment.path);
+        }
+        segments.clear();
+        active = null;
+    }
+}
@@ -0,0 +1,381 @@
+/*
+ * Copyright 2018 Joarder Kamal. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"). You may
+ * not use this file except in compliance with the License. A copy of the
+ * License is located at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazonaws.awsesjestexample;
+
+import io.searchbox.client.JestClient;
+import io.searchbox.client.JestResult;
+import io.searchbox.core.ClearScroll;
+import io.searchbox.core.Search;
+import io.searchbox.core.SearchScroll;
+import io.searchbox.params.Parameters;
+
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.search.aggregations.bucket.composite.CompositeAggregationBuilder;
+import org.elasticsearch.search.aggregations.bucket.composite.CompositeValuesSourceBuilder;
+import org.elasticsearch.search.aggregations.bucket.composite.DateHistogramValuesSourceBuilder;
+import org.elasticsearch.search.aggregations.bucket.composite.TermsValuesSourceBuilder;
+import org.elasticsearch.search.aggregations.bucket.histogram.DateHistogramInterval;
+import org.elasticsearch.search.builder.SearchSourceBuilder;
+import org.elasticsearch.search.slice.SliceBuilder;
+import org.elasticsearch.search.sort.SortOrder;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Streams query results as a lazy Stream of Notes with bounded memory.
+ * Results are paged either with search_after, one page at a time, or with
+ * a scroll which may be split into slices that are read in parallel. Only
+ * a few pages are held in memory at any time, so arbitrarily large result
+ * sets can be exported. Streams must be closed to release their scrolls.
+ * Aggregations are streamed the same way: the buckets of a composite
+ * aggregation are paged through with its after key, so documents are
+ * counted on the cluster and only a page of buckets is transferred at once.
+ */
+final class NoteStreams {
+    private static final String SORT_FIELD = "createdOn";
+    // Every Note is indexed with a keyword copy of its id, unique and the same on every shard copy,
+    // unlike _doc, a per-shard ordinal that merges and replica reads change
+    private static final String TIE_BREAKER_FIELD = "id";
+    private static final String COMPOSITE_NAME = "composite";
+
+    private NoteStreams() {
+    }
+
+    /**
+     * Streams the results configured from the command line arguments
+     * @return search_after paging for a single slice, otherwise a sliced scroll
+     */
+    static Stream<Note> fromArgs(final JestClient jestClient, final QueryBuilder query) {
+        if (Args.scrollSlices > 1)
+            return scroll(jestClient, Args.indexName, Args.typeName, query, Args.searchPageSize,
+                    Args.scrollSlices, Args.scrollKeepAlive);
+        return searchAfter(jestClient, Args.indexName, Args.typeName, query, Args.searchPageSize,
+                Args.searchDeadlineMillis);
+    }
+
+    /**
+     * Pages through the results sorted by creation time using search_after
+     * @param jestClient client used to send the requests
+     * @param indexName index to search
+     * @param typeName index type to search
+     * @param query query to run
+     * @param pageSize number of hits per request
+     * @param deadlineMillis time every request may take in milliseconds, 0 for no deadline
+     * @return a lazy stream of the matching Notes
+     */
+    static Stream<Note> searchAfter(final JestClient jestClient,
+                                    final String indexName,
+                                    final String typeName,
+                                    final QueryBuilder query,
+                                    final int pageSize,
+                                    final long deadlineMillis) {
+        Iterator<Note> iterator = new PageIterator<Note>() {
+            private Object[] lastSort = null;
+            private boolean exhausted = false;
+
+            @Override
+            List<Note> nextPage() throws IOException {
+                if (exhausted)
+                    return null;
+
+                SearchSourceBuilder source = new SearchSourceBuilder()
+                        .query(query)
+                        .size(pageSize)
+                        .sort(SORT_FIELD, SortOrder.ASC)
+                        .sort(TIE_BREAKER_FIELD, SortOrder.ASC);
+                if (lastSort != null)
+                    source.searchAfter(lastSort);
+
+                JestResult result = checked(jestClient.execute(SearchRequests.withDeadline(
+                        new Search.Builder(source.toString()).addIndex(indexName).addType(typeName),
+                        deadlineMillis).build()));
+
+                NoteDecoder.Page page = NoteDecoder.decodePage(result.getJsonString());
+                exhausted = page.hits < pageSize;
+                lastSort = page.lastSort;
+
+                return page.notes;
+            }
+        };
+
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(iterator,
+                Spliterator.ORDERED | Spliterator.NONNULL), false);
+    }
+
+    /**
+     * Reads the results through a scroll, split into slices read in parallel when slices > 1
+     * @param jestClient client used to send the requests
+     * @param indexName index to search
+     * @param typeName index type to search
+     * @param query query to run
+     * @param pageSize number of hits per request and slice
+     * @param slices number of slices read in parallel
+     * @param keepAlive how long the scroll context is kept alive between pages, e.g. "1m"
+     * @return a lazy, unordered stream of the matching Notes
+     */
+    static Stream<Note> scroll(final JestClient jestClient,
+                               final String indexName,
+                               final String typeName,
+                               final QueryBuilder query,
+                               final int pageSize,
+                               final int slices,
+                               final String keepAlive) {
+        // Two pages per slice are buffered at most, bounding memory use
+        final BlockingQueue<Object> pages = new ArrayBlockingQueue<>(2 * slices);
+        final ExecutorService workers = Executors.newFixedThreadPool(slices, r -> {
+            Thread thread = new Thread(r, "scroll-slice");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        for (int i = 0; i < slices; i++) {
+            final int slice = i;
+            workers.execute(() -> {
+                Object end = SliceEnd.INSTANCE;
+                try {
+                    readSlice(jestClient, indexName, typeName, query, pageSize, slice, slices, keepAlive, pages);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                } catch (Exception e) {
+                    end = e;
+                }
+
+                try {
+                    pages.put(end);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+        }
+        workers.shutdown();
+
+        Iterator<Note> iterator = new PageIterator<Note>() {
+            private int remaining = slices;
+
+            @Override
+            @SuppressWarnings("unchecked")
+            List<Note> nextPage() throws IOException {
+                while (remaining > 0) {
+                    Object page;
+                    try {
+                        page = pages.take();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new IOException("Interrupted while waiting for the next page", e);
+                    }
+
+                    if (page == SliceEnd.INSTANCE)
+                        remaining--;
+                    else if (page instanceof Exception)
+                        throw new IOException("Failed to read a scroll slice", (Exception) page);
+                    else
+                        return (List<Note>) page;
+                }
+                return null;
+            }
+        };
+
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(iterator, Spliterator.NONNULL), false)
+                .onClose(workers::shutdownNow);
+    }
+
+    /**
+     * Counts the Notes per user and time interval configured from the command line arguments
+     * @return a lazy stream of buckets keyed by userName and interval start, in this order
+     */
+    static Stream<NoteDecoder.Bucket> notesPerUserFromArgs(final JestClient jestClient, final QueryBuilder query) {
+        return composite(jestClient, Args.indexName, Args.typeName, query, Arrays.asList(
+                new TermsValuesSourceBuilder("userName").field("userName"),
+                new DateHistogramValuesSourceBuilder("interval").field(SORT_FIELD)
+                        .dateHistogramInterval(new DateHistogramInterval(Args.Report.interval))),
+                Args.Report.bucketsPerPage, Args.searchDeadlineMillis);
+    }
+
+    /**
+     * Pages through the buckets of a composite aggregation using its after key
+     * @param jestClient client used to send the requests
+     * @param indexName index to search
+     * @param typeName index type to search
+     * @param query query selecting the documents to aggregate
+     * @param sources sources of the bucket keys, e.g. a terms and a date histogram source
+     * @param pageSize number of buckets per request
+     * @param deadlineMillis time every request may take in milliseconds, 0 for no deadline
+     * @return a lazy stream of the buckets in the order of their keys
+     */
+    static Stream<NoteDecoder.Bucket> composite(final JestClient jestClient,
+                                                final String indexName,
+                                                final String typeName,
+                                                final QueryBuilder query,
+                                                final List<CompositeValuesSourceBuilder<?>> sources,
+                                                final int pageSize,
+                                                final long deadlineMillis) {
+        Iterator<NoteDecoder.Bucket> iterator = new PageIterator<NoteDecoder.Bucket>() {
+            private Map<String, Object> afterKey = null;
+            private boolean exhausted = false;
+
+            @Override
+            List<NoteDecoder.Bucket> nextPage() throws IOException {
+                if (exhausted)
+                    return null;
+
+                CompositeAggregationBuilder composite = new CompositeAggregationBuilder(COMPOSITE_NAME, sources)
+                        .size(pageSize);
+                if (afterKey != null)
+                    composite.aggregateAfter(afterKey);
+
+                // Only the buckets are of interest, not the hits
+                SearchSourceBuilder source = new SearchSourceBuilder()
+                        .query(query)
+                        .size(0)
+                        .aggregation(composite);
+
+                JestResult result = checked(jestClient.execute(SearchRequests.withDeadline(
+                        new Search.Builder(source.toString()).addIndex(indexName).addType(typeName),
+                        deadlineMillis).build()));
+
+                NoteDecoder.BucketPage page = NoteDecoder.decodeBuckets(result.getJsonString(), COMPOSITE_NAME);
+                exhausted = page.buckets.size() < pageSize || page.afterKey == null;
+                afterKey = page.afterKey;
+
+                return page.buckets;
+            }
+        };
+
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(iterator,
+                Spliterator.ORDERED | Spliterator.NONNULL), false);
+    }
+
+    /**
+     * Reads one slice of a scroll, handing every page over to the consumer
+     */
+    private static void readSlice(final JestClient jestClient,
+                                  final String indexName,
+                                  final String typeName,
+                                  final QueryBuilder query,
+                                  final int pageSize,
+                                  final int slice,
+                                  final int slices,
+                                  final String keepAlive,
+                                  final BlockingQueue<Object> pages) throws IOException, InterruptedException {
+        SearchSourceBuilder source = new SearchSourceBuilder()
+                .query(query)
+                .size(pageSize)
+                .sort("_doc");
+        if (slices > 1)
+            source.slice(new SliceBuilder(slice, slices));
+
+        JestResult result = checked(jestClient.execute(new Search.Builder(source.toString())
+                .addIndex(indexName).addType(typeName)
+                .setParameter(Parameters.SCROLL, keepAlive).build()));
+        NoteDecoder.Page page = NoteDecoder.decodePage(result.getJsonString());
+        String scrollId = page.scrollId;
+
+        try {
+            while (page.hits > 0) {
+                pages.put(page.notes);
+
+                result = checked(jestClient.execute(new SearchScroll.Builder(scrollId, keepAlive).build()));
+                page = NoteDecoder.decodePage(result.getJsonString());
+                if (page.scrollId != null)
+                    scrollId = page.scrollId;
+            }
+        } finally {
+            // Clear the scroll even when the stream was closed early and this thread interrupted
+            boolean interrupted = Thread.interrupted();
+            try {
+                jestClient.execute(new ClearScroll.Builder().addScrollId(scrollId).build());
+            } catch (IOException e) {
+                AWSESJestExample.LOG.debug("Failed to clear scroll: "+e);
+            } finally {
+                if (interrupted)
+                    Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * @return the response if it was successful and complete
+     * @throws IOException if Elasticsearch answered with an error, or with partial results
+     *         which would leave pages with hits or counts missing
+     */
+    private static JestResult checked(final JestResult result) throws IOException {
+        if (!result.isSucceeded())
+            throw new IOException("Search failed (" + result.getResponseCode() + "): " + result.getErrorMessage());
+        String partial = SearchRequests.partialReason(result);
+        if (partial != null)
+            throw new IOException("Search returned partial results: " + partial);
+        return result;
+    }
+
+    /**
+     * Marks the end of a scroll slice
+     */
+    private enum SliceEnd {
+        INSTANCE
+    }
+
+    /**
+     * Iterates over Notes or buckets, fetching the next page only once the current one is used up
+     */
+    private abstract static class PageIterator<T> implements Iterator<T> {
+        private Iterator<T> page = Collections.emptyIterator();
+        private boolean done = false;
+
+        /**
+         * @return the next page of results, or null once all pages have been read
+         */
+        abstract List<T> nextPage() throws IOException;
+
+        @Override
+        public boolean hasNext() {
+            while (!done && !page.hasNext()) {
+                try {
+                    List<T> items = nextPage();
+                    if (items == null)
+                        done = true;
+                    else
+                        page = items.iterator();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+            return !done;
+        }
+
+        @Override
+        public T next() {
+            if (!hasNext())
+                throw new NoSuchElementException();
+            return page.next();
+        }
+    }
+}
@@ -0,0 +1,557 @@
+/*
+ * Copyright 2018 Joarder Kamal. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"). You may
+ * not use this file except in compliance with the License. A copy of the
+ * License is located at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+
+package com.amazonaws.awsesjestexample;
+
+import io.searchbox.client.JestClient;
+import io.searchbox.core.BulkResult;
+import io.searchbox.core.MultiGet;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Function;
+
+/**
+ * Changes Notes in place with bulk requests of _update actions, so a change
+ * costs an action line and the changed fields rather than a rewrite of the
+ * whole document. Updates are batched like BulkIngestor batches documents,
+ * by number of actions and linger time. Partial documents and scripts are
+ * applied to whatever version the document has; read-modify-write updates
+ * use optimistic concurrency instead: the current versions of their
+ * documents are read with one multi-get request per batch, the change is
+ * computed from the current Note and the update only applies if the
+ * document still has that version. Only the items that failed with a
+ * version conflict (409) or a transient error are sent again, after a
+ * jittered backoff, a read-modify-write update with a fresh read. Scripts
+ * apply again every time they are sent, so they are only sent again when
+ * the answer shows they were not applied: a 429 or 5xx of their own item,
+ * or the whole request turned away with a 429 or 503 or never delivered;
+ * after a lost response or a gateway error they fail instead. Batches
+ * are sent through an AsyncJestClient while the flusher thread collects
+ * the next one, up to a maximum number of batches in flight. Futures are
+ * completed on a callback executor rather than on the I/O reactor.
+ */
+class NoteUpdater implements AutoCloseable {
+    private static final long POLL_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+
+    private final AsyncJestClient asyncClient;
+    private final String indexName;
+    private final String typeName;
+    private final int maxActions;
+    private final long lingerMillis;
+    private final Semaphore inFlight;
+    private final int concurrency;
+    private final int maxRetries;
+    private final Backoff backoff;
+    private final Executor callbackExecutor;
+
+    private final BlockingQueue<Update> queue;
+    private final DelayQueue<Update> retries = new DelayQueue<>();
+    private final Thread flusher;
+
+    private final AtomicLong succeeded = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong conflicts = new AtomicLong();
+    private final AtomicLong pending = new AtomicLong();
+
+    // Callers queue updates under the read lock, so none is queued once the flusher may have seen closed
+    private final ReadWriteLock closing = new ReentrantReadWriteLock();
+    private volatile boolean closed = false;
+
+    /**
+     * A change of a single document, along with the future its caller waits on
+     */
+    private static final class Update implements Delayed {
+        private final String id;
+        private final String script;
+        private final Map<String, Object> params;
+        private final Function<Note, Map<String, Object>> change;
+        private final CompletableFuture<Long> future = new CompletableFuture<>();
+        private Map<String, Object> fields;
+        private long version = -1;
+        private int attempts = 0;
+        private long dueNanos = 0;
+
+        /**
+         * @param id id of the document
+         * @param fields partial document, or null
+         * @param script painless script, or null
+         * @param params parameters of the script
+         * @param change computes the partial document from the current Note, or null
+         */
+        private Update(final String id,
+                       final Map<String, Object> fields,
+                       final String script,
+                       final Map<String, Object> params,
+                       final Function<Note, Map<String, Object>> change) {
+            this.id = id;
+            this.fields = fields;
+            this.script = script;
+            this.params = params;
+            this.change = change;
+        }
+
+        @Override
+        public long getDelay(final TimeUnit unit) {
+            return unit.convert(dueNanos - System.nanoTime(), TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public int compareTo(final Delayed other) {
+            return Long.compare(dueNanos, ((Update) other).dueNanos);
+        }
+    }
+
+    /**
+     * @param asyncClient client used to send the requests
+     * @param indexName index of the Notes
+     * @param typeName index type of the Notes
+     * @param maxActions maximum number of updates per bulk request
+     * @param lingerMillis maximum time an update waits for its batch to fill up
+     * @param concurrency maximum number of batches in flight
+     * @param maxRetries maximum number of times a conflicting or failed update is sent again
+     * @param backoff delays between the attempts of an update
+     * @param callbackExecutor executor on which the returned futures are completed
+     */
+    NoteUpdater(final AsyncJestClient asyncClient,
+                final String indexName,
+                final String typeName,
+                final int maxActions,
+                final long lingerMillis,
+                final int concurrency,
+                final int maxRetries,
+                final Backoff backoff,
+                final Executor callbackExecutor) {
+        this.asyncClient = asyncClient;
+        this.indexName = indexName;
+        this.typeName = typeName;
+        this.maxActions = Math.max(1, maxActions);
+        this.lingerMillis = Math.max(0, lingerMillis);
+        this.concurrency = Math.max(1, concurrency);
+        this.inFlight = new Semaphore(this.concurrency);
+        this.maxRetries = Math.max(0, maxRetries);
+        this.backoff = backoff;
+        this.callbackExecutor = callbackExecutor;
+        this.queue = new ArrayBlockingQueue<>(this.maxActions * 2);
+
+        this.flusher = new Thread(this::run, "note-updater-" + indexName);
+        this.flusher.setDaemon(true);
+        this.flusher.start();
+    }
+
+    /**
+     * @return a Note updater configured from the command line arguments
+     */
+    static NoteUpdater fromArgs(final JestClient jestClient) {
+        // A batch has a single request outstanding at a time, its multi-get or its bulk request
+        return new NoteUpdater(new AsyncJestClient(jestClient, Args.updateConcurrency, AWSESActions.getCallbackExecutor()),
+                Args.indexName, Args.typeName, Args.updateActions, Args.updateLingerMillis, Args.updateConcurrency,
+                Args.updateMaxRetries, Backoff.fromArgs(), AWSESActions.getCallbackExecutor());
+    }
+
+    /**
+     * Sets the given fields of a Note, leaving the others as they are
+     * @param id id of the Note
+     * @param fields names and values of the fields to be set
+     * @return a future of the new version of the Note
+     * @throws InterruptedException
+     */
+    CompletableFuture<Long> merge(final String id, final Map<String, Object> fields) throws InterruptedException {
+        return add(new Update(id, fields, null, null, null));
+    }
+
+    /**
+     * Runs a painless script on a Note, e.g. "ctx._source.views = (ctx._source.views ?: 0) + params.n",
+     * which changes counters without reading the Note first
+     * @param id id of the Note
+     * @param script source of the script
+     * @param params parameters of the script
+     * @return a future of the new version of the Note
+     * @throws InterruptedException
+     */
+    CompletableFuture<Long> script(final String id, final String script, final Map<String, Object> params)
+            throws InterruptedException {
+        return add(new Update(id, null, script, params, null));
+    }
+
+    /**
+     * Reads a Note and sets the fields computed from it, provided the Note has not changed in between;
+     * if it has, it is read again and the change computed anew
+     * @param id id of the Note
+     * @param change computes the fields to be set from the current Note, null or nothing to leave it as is
+     * @return a future of the new version of the Note, or of null if there is no Note with this id
+     * @throws InterruptedException
+     */
+    CompletableFuture<Long> modify(final String id, final Function<Note, Map<String, Object>> change)
+            throws InterruptedException {
+        return add(new Update(id, null, null, null, change));
+    }
+
+    private CompletableFuture<Long> add(final Update update) throws InterruptedException {
+        closing.readLock().lock();
+        try {
+            if (closed)
+                throw new IllegalStateException("Note updater is already closed.");
+            pending.incrementAndGet();
+            queue.put(update);
+        } finally {
+            closing.readLock().unlock();
+        }
+        return update.future;
+    }
+
+    /**
+     * Sends all queued updates and waits for them to complete
+     * @throws InterruptedIOException if interrupted while waiting, with the interrupt flag set again
+     */
+    @Override
+    public void close() throws InterruptedIOException {
+        closing.writeLock().lock();
+        try {
+            closed = true;
+        } finally {
+            closing.writeLock().unlock();
+        }
+
+        try {
+            flusher.join();
+
+            // Updates queued after an interrupt stopped the flusher are never sent
+            List<Update> left = new ArrayList<>();
+            queue.drainTo(left);
+            for (Update update : left)
+                fail(update, new IllegalStateException("Note updater is already closed."));
+
+            inFlight.acquire(concurrency);
+            inFlight.release(concurrency);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            InterruptedIOException interrupted = new InterruptedIOException("Interrupted while closing the Note updater");
+            interrupted.initCause(e);
+            throw interrupted;
+        }
+    }
+
+    long getSucceeded() {
+        return succeeded.get();
+    }
+
+    long getFailed() {
+        return failed.get();
+    }
+
+    /**
+     * @return number of times an update was sent again because of a version conflict
+     */
+    long getConflicts() {
+        return conflicts.get();
+    }
+
+    /**
+     * Collects queued updates into batches and sends them until closed and drained
+     */
+    private void run() {
+        List<Update> batch = new ArrayList<>(maxActions);
+
+        try {
+            while (!closed || pending.get() > 0) {
+                long deadline = 0;
+
+                while (batch.size() < maxActions) {
+                    Update update = retries.poll();
+
+                    if (update == null) {
+                        long waitNanos = POLL_NANOS;
+                        if (!batch.isEmpty()) {
+                            // Linger only once the batch has its first update
+                            waitNanos = Math.min(waitNanos, deadline - System.nanoTime());
+                            if (waitNanos <= 0 || (closed && queue.isEmpty()))
+                                break;
+                        } else if (closed && queue.isEmpty() && pending.get() == 0) {
+                            break;
+                        }
+                        update = queue.poll(waitNanos, TimeUnit.NANOSECONDS);
+                    }
+
+                    if (update != null) {
+                        if (batch.isEmpty())
+                            deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(lingerMillis);
+                        batch.add(update);
+                    }
+                }
+
+                if (!batch.isEmpty()) {
+                    inFlight.acquire();
+                    send(batch);
+                    batch = new ArrayList<>(maxActions);
+                }
+            }
+        } catch (InterruptedException e) {
+            AWSESJestExample.LOG.error("Note updater was interrupted with "+pending.get()+" updates pending.");
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Computes the read-modify-write updates of the batch, sends them all in a single bulk request
+     * and releases the batch's in-flight permit once answered
+     * @param batch updates to be sent
+     */
+    private void send(final List<Update> batch) {
+        read(batch).thenCompose(this::write).whenComplete((done, ex) -> {
+            inFlight.release();
+            if (ex != null) {
+                AWSESJestExample.LOG.error("Caught an exception while sending "+batch.size()+" updates.\n");
+                ex.printStackTrace();
+            }
+        });
+    }
+
+    /**
+     * Sends the updates that are ready in a single bulk request
+     * @return a future completed once the response has been handled
+     */
+    private CompletableFuture<Void> write(final List<Update> ready) {
+        if (ready.isEmpty())
+            return CompletableFuture.completedFuture(null);
+
+        StringBuilder payload = new StringBuilder();
+        for (Update update : ready) {
+            NoteCodec.writeUpdateAction(payload, update.id, update.version);
+            if (update.script != null) {
+                NoteCodec.writeString(payload.append("{\"script\":{\"lang\":\"painless\",\"source\":"), update.script);
+                NoteCodec.writeValue(payload.append(",\"params\":"),
+                        update.params != null ? update.params : Collections.emptyMap()).append("}}\n");
+            } else {
+                NoteCodec.writeValue(payload.append("{\"doc\":"), update.fields).append("}\n");
+            }
+        }
+
+        AWSESJestExample.LOG.debug("Sending a bulk request with "+ready.size()+" updates ...");
+
+        return asyncClient.execute(new NoteBulk(indexName, typeName, payload.toString())).handle((result, ex) -> {
+            Throwable cause = ex instanceof CompletionException ? ex.getCause() : ex;
+            if (cause instanceof JestResultException && ((JestResultException) cause).getResult() instanceof BulkResult) {
+                // A rejected request is told apart from one with failed items by its response
+                handleResult(ready, (BulkResult) ((JestResultException) cause).getResult());
+            } else if (cause != null) {
+                AWSESJestExample.LOG.error("Bulk request with "+ready.size()+" updates failed: "+cause);
+                boolean delivered = !LoadBalancingJestClient.isUnreachable(cause);
+                for (Update update : ready) {
+                    if (delivered && update.script != null)
+                        fail(update, new IOException("Script update of document "+update.id
+                                +" may have been applied, not sent again", cause));
+                    else
+                        retryOrFail(update, asException(cause));
+                }
+            } else {
+                handleResult(ready, result);
+            }
+            return null;
+        });
+    }
+
+    /**
+     * Reads the current Notes of the read-modify-write updates of the batch and computes their changes
+     * @return a future of the updates of the batch that are ready to be sent
+     */
+    private CompletableFuture<List<Update>> read(final List<Update> batch) {
+        Set<String> ids = new LinkedHashSet<>();
+        for (Update update : batch) {
+            if (update.change != null)
+                ids.add(update.id);
+        }
+        if (ids.isEmpty())
+            return CompletableFuture.completedFuture(batch);
+
+        MultiGet multiGet = new MultiGet.Builder.ById(indexName, typeName).addId(ids).build();
+        return asyncClient.execute(multiGet).handle((result, ex) -> {
+            Map<String, NoteDecoder.Doc> docs = new HashMap<>();
+            Exception failure = ex != null ? asException(ex instanceof CompletionException ? ex.getCause() : ex) : null;
+            if (failure == null) {
+                try {
+                    for (NoteDecoder.Doc doc : NoteDecoder.decodeDocs(result.getJsonString()))
+                        docs.put(doc.id, doc);
+                } catch (Exception e) {
+                    failure = e;
+                }
+            }
+            if (failure != null) {
+                // Any failure, including a malformed response, is retried rather than leaving the batch pending
+                AWSESJestExample.LOG.error("Failed to read "+ids.size()+" documents to be updated: "+failure);
+            }
+
+            List<Update> ready = new ArrayList<>(batch.size());
+            for (Update update : batch) {
+                if (update.change == null) {
+                    ready.add(update);
+                    continue;
+                }
+
+                NoteDecoder.Doc doc = docs.get(update.id);
+                if (failure != null) {
+                    retryOrFail(update, failure);
+                } else if (doc != null && doc.error != null) {
+                    fail(update, new IOException("Failed to read document "+update.id+": "+doc.error));
+                } else if (doc == null || doc.note == null) {
+                    complete(update, null);
+                } else {
+                    try {
+                        update.fields = update.change.apply(doc.note);
+                    } catch (RuntimeException e) {
+                        fail(update, e);
+                        continue;
+                    }
+                    update.version = doc.version;
+                    if (update.fields == null || update.fields.isEmpty())
+                        complete(update, doc.version);
+                    else
+                        ready.add(update);
+                }
+            }
+            return ready;
+        });
+    }
+
+    /**
+     * Matches the per-item bulk responses to the updates and re-queues the conflicting and retryable ones
+     * @param batch updates sent in the bulk request
+     * @param result response of the bulk request
+     */
+    private void handleResult(final List<Update> batch, final BulkResult result) {
+        List<BulkResult.BulkResultItem> items;
+        try {
+            items = result.getItems();
+        } catch (RuntimeException e) {
+            // An unparsable response must not leave the batch pending forever
+            AWSESJestExample.LOG.error("Caught an exception while parsing a bulk response: "+e);
+            items = Collections.emptyList();
+        }
+
+        if (items.size() != batch.size()) {
+            // The request as a whole was rejected, though a gateway may have given up on a cluster applying it
+            AWSESJestExample.LOG.error("Bulk update request was rejected ("+result.getResponseCode()+"): "
+                    + result.getErrorMessage());
+            JestResultException failure = new JestResultException(result);
+            int status = result.getResponseCode();
+            for (Update update : batch) {
+                if (isRetryable(status) && (update.script == null || isTurnedAway(status)))
+                    retryOrFail(update, failure);
+                else
+                    fail(update, failure);
+            }
+            return;
+        }
+
+        for (int i = 0; i < batch.size(); i++) {
+            Update update = batch.get(i);
+            BulkResult.BulkResultItem resultItem = items.get(i);
+
+            if (resultItem.error == null) {
+                complete(update, resultItem.version != null ? Long.valueOf(resultItem.version) : null);
+            } else if (resultItem.status == 409 || isRetryable(resultItem.status)) {
+                if (resultItem.status == 409) {
+                    conflicts.incrementAndGet();
+                    Metrics.get().increment("update.conflicts", 1);
+                }
+                retryOrFail(update, new IOException("Failed to update document "+update.id+" ("
+                        +resultItem.status+"): "+resultItem.errorReason));
+            } else {
+                AWSESJestExample.LOG.error("Failed to update a document ("+resultItem.status+"): "
+                        + resultItem.errorReason);
+                fail(update, new IOException("Failed to update document "+update.id+" ("
+                        +resultItem.status+"): "+resultItem.errorReason));
+            }
+        }
+    }
+
+    /**
+     * @param update update to be sent again, unless it has run out of attempts
+     * @param cause why the last attempt failed
+     */
+    private void retryOrFail(final Update update, final Exception cause) {
+        if (++update.attempts > maxRetries) {
+            fail(update, cause);
+            return;
+        }
+
+        // A read-modify-write update is computed anew from the Note as it is by then
+        if (update.change != null) {
+            update.fields = null;
+            update.version = -1;
+        }
+        Metrics.get().increment("update.items.retried", 1);
+        update.dueNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(backoff.delayMillis(update.attempts));
+        retries.add(update);
+    }
+
+    private void complete(final Update update, final Long version) {
+        succeeded.incrementAndGet();
+        pending.decrementAndGet();
+        callbackExecutor.execute(() -> update.future.complete(version));
+    }
+
+    private void fail(final Update update, final Exception cause) {
+        AWSESJestExample.LOG.debug("Giving up on the update of document "+update.id+" after "+update.attempts
+                +" retries: "+cause);
+        failed.incrementAndGet();
+        pending.decrementAndGet();
+        callbackExecutor.execute(() -> update.future.completeExceptionally(cause));
+    }
+
+    /**
+     * @return the cause of a failed request, wrapped in an IOException unless it is an Exception
+     */
+    private static Exception asException(final Throwable cause) {
+        return cause instanceof Exception ? (Exception) cause : new IOException(cause);
+    }
+
+    /**
+     * @param status HTTP status of a bulk request or bulk item
+     * @return true if the status indicates a transient failure worth retrying
+     */
+    private static boolean isRetryable(final int status) {
+        return status == 429 || status >= 500;
+    }
+
+    /**
+     * @param status HTTP status of a bulk request as a whole
+     * @return true if the status shows the request was turned away before any of its items were applied,
+     *         unlike a 500, 502 or 504 which may come after they were
+     */
+    private static boolean isTurnedAway(final int status) {
+        return status == 429 || status == 503;
+    }
+}
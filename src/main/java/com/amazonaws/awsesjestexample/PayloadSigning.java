@@ -0,0 +1,28 @@
+/*
+ * Copyright 2018 Joarder Kamal. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"). You may
+ * not use this file except in compliance with the License. A copy of the
+ * License is located at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazonaws.awsesjestexample;
+
+/**
+ * Defines how the request payload takes part in the SigV4 signature
+ */
+public enum PayloadSigning {
+    // Hash the whole payload before sending it
+    FULL,
+    // Sign the request with the UNSIGNED-PAYLOAD marker instead of a payload hash
+    UNSIGNED,
+    // Sign the payload chunk by chunk while it is being streamed (aws-chunked encoding)
+    STREAMING
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright 2018 Joarder Kamal. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"). You may
+ * not use this file except in compliance with the License. A copy of the
+ * License is located at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+
+package com.amazonaws.awsesjestexample;
+
+import com.amazonaws.auth.AWSCredentials;
+import com.amazonaws.auth.AWSCredentialsProvider;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Hands out AWS credentials from memory and refreshes them on a background
+ * thread, so signing never waits for the wrapped provider. Providers such
+ * as the instance profile or STS fetch new credentials inside
+ * getCredentials() once theirs are about to expire, stalling every request
+ * thread that signs meanwhile. The SDK's credentials do not say when they
+ * expire, so the wrapped provider is asked on a fixed period, shorter than
+ * the window in which those providers renew ahead of expiry; the renewal
+ * then happens on the background thread. A failed refresh keeps the
+ * current credentials and is retried with backoff. Only the first call
+ * blocks, fetching the credentials once for all callers.
+ */
+final class RefreshingCredentialsProvider implements AWSCredentialsProvider {
+    private final AWSCredentialsProvider delegate;
+    private final long refreshMillis;
+    private final Backoff backoff;
+    private final ScheduledExecutorService scheduler;
+    private final AtomicReference<AWSCredentials> current = new AtomicReference<>();
+
+    // Consecutive failed refreshes, only used by the refresh thread
+    private int failures = 0;
+
+    /**
+     * @param delegate provider the credentials are fetched from
+     * @param refreshMillis interval at which the credentials are fetched again
+     * @param backoff delays between the attempts of a failed refresh
+     */
+    RefreshingCredentialsProvider(final AWSCredentialsProvider delegate,
+                                  final long refreshMillis,
+                                  final Backoff backoff) {
+        this.delegate = delegate;
+        this.refreshMillis = Math.max(1, refreshMillis);
+        this.backoff = backoff;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "credentials-refresh");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.schedule(this::refreshInBackground, this.refreshMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return a provider refreshing the credentials of the given one in the background,
+     * or null if background refreshes are disabled
+     */
+    static RefreshingCredentialsProvider fromArgs(final AWSCredentialsProvider delegate) {
+        if (Args.credentialsRefreshMillis <= 0)
+            return null;
+        return new RefreshingCredentialsProvider(delegate, Args.credentialsRefreshMillis, Backoff.fromArgs());
+    }
+
+    /**
+     * @return the current credentials, without calling the wrapped provider once they have been fetched
+     */
+    @Override
+    public AWSCredentials getCredentials() {
+        AWSCredentials credentials = current.get();
+        return credentials != null ? credentials : load();
+    }
+
+    /**
+     * Makes the wrapped provider fetch new credentials and waits for them
+     */
+    @Override
+    public void refresh() {
+        delegate.refresh();
+        current.set(fetch());
+    }
+
+    /**
+     * Fetches the first credentials on the caller's thread, as nothing can be signed without them;
+     * failures are thrown like the wrapped provider's
+     */
+    private synchronized AWSCredentials load() {
+        AWSCredentials credentials = current.get();
+        if (credentials == null) {
+            credentials = fetch();
+            current.compareAndSet(null, credentials);
+        }
+        return credentials;
+    }
+
+    private void refreshInBackground() {
+        long delayMillis = refreshMillis;
+
+        try {
+            current.set(fetch());
+            failures = 0;
+        } catch (Throwable e) {
+            // Anything escaping would cancel the refreshes for good
+            failures++;
+            delayMillis = Math.min(refreshMillis, backoff.delayMillis(failures));
+            Metrics.get().increment("aws.credentials.failures", 1);
+            AWSESJestExample.LOG.warn("Failed to refresh the AWS credentials, retrying in "+delayMillis+" ms: "+e);
+        }
+
+        scheduler.schedule(this::refreshInBackground, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private AWSCredentials fetch() {
+        long start = System.nanoTime();
+        try {
+            return delegate.getCredentials();
+        } finally {
+            Metrics.get().recordLatency("aws.credentials", System.nanoTime() - start);
+        }
+    }
+}
@@ -0,0 +1,226 @@
+/*
+ * Copyright 2018 Joarder Kamal. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"). You may
+ * not use this file except in compliance with the License. A copy of the
+ * License is located at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazonaws.awsesjestexample;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A cache of search responses bounded by time to live and by total size,
+ * evicting the least recently used entries first. Responses are kept as
+ * their JSON, which nobody can modify, so every hit can be given a result
+ * of its own. Invalidation is O(1):
+ * every index has a generation that writes to it bump, and an entry is
+ * only served while the generation it was fetched under is current.
+ * Searches over several indices, patterns or _all depend on every write,
+ * and writes whose target index is not known invalidate everything.
+ */
+class SearchCache {
+    // Rough per-entry overhead of the map and entry objects
+    private static final int ENTRY_OVERHEAD_BYTES = 128;
+
+    private final long ttlNanos;
+    private final long maxBytes;
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(64, 0.75f, true);
+    private long bytes = 0;
+
+    private final AtomicLong anyWrite = new AtomicLong();
+    private final AtomicLong fullInvalidation = new AtomicLong();
+    private final ConcurrentMap<String, AtomicLong> generations = new ConcurrentHashMap<>();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder invalidations = new LongAdder();
+
+    /**
+     * The state of an index a search result was fetched under
+     */
+    static final class Version {
+        private final String index;
+        private final long generation;
+        private final long full;
+
+        private Version(final String index, final long generation, final long full) {
+            this.index = index;
+            this.generation = generation;
+            this.full = full;
+        }
+    }
+
+    private static final class Entry {
+        private final String json;
+        private final Version version;
+        private final long expiresNanos;
+        private final long weight;
+
+        private Entry(final String json, final Version version, final long expiresNanos, final long weight) {
+            this.json = json;
+            this.version = version;
+            this.expiresNanos = expiresNanos;
+            this.weight = weight;
+        }
+    }
+
+    /**
+     * @param ttlMillis time a result is served for after being fetched
+     * @param maxBytes approximate maximum memory held by cached results
+     */
+    SearchCache(final long ttlMillis, final long maxBytes) {
+        this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, ttlMillis));
+        this.maxBytes = Math.max(1, maxBytes);
+
+        MetricsRegistry metrics = Metrics.get();
+        metrics.gauge("search-cache.entries", this::getEntries);
+        metrics.gauge("search-cache.bytes", this::getBytes);
+    }
+
+    /**
+     * @return a cache configured from the command line arguments, or null if caching is disabled
+     */
+    static SearchCache fromArgs() {
+        if (Args.searchCacheTtlMillis <= 0)
+            return null;
+        return new SearchCache(Args.searchCacheTtlMillis, Args.searchCacheMaxBytes);
+    }
+
+    /**
+     * Captures the state of the searched indices; must be called before the search is sent
+     * @param index the single searched index, or null for several indices, patterns or _all
+     * @return the version to store the result under
+     */
+    Version version(final String index) {
+        if (index == null)
+            return new Version(null, anyWrite.get(), fullInvalidation.get());
+        return new Version(index, generation(index).get(), fullInvalidation.get());
+    }
+
+    /**
+     * @param key normalized search
+     * @return the JSON of the cached response, or null if there is none or it is expired or invalidated
+     */
+    synchronized String get(final String key) {
+        Entry entry = entries.get(key);
+
+        if (entry != null && (System.nanoTime() - entry.expiresNanos > 0 || !isCurrent(entry.version))) {
+            remove(key);
+            entry = null;
+        }
+
+        if (entry == null) {
+            misses.increment();
+            Metrics.get().increment("search-cache.misses", 1);
+            return null;
+        }
+
+        hits.increment();
+        Metrics.get().increment("search-cache.hits", 1);
+        return entry.json;
+    }
+
+    /**
+     * @param key normalized search
+     * @param version state of the searched indices before the search was sent
+     * @param json JSON of a complete, successful search response
+     */
+    synchronized void put(final String key, final Version version, final String json) {
+        if (!isCurrent(version))
+            return;
+
+        long weight = 2L * (key.length() + json.length()) + ENTRY_OVERHEAD_BYTES;
+        if (weight > maxBytes)
+            return;
+
+        remove(key);
+        entries.put(key, new Entry(json, version, System.nanoTime() + ttlNanos, weight));
+        bytes += weight;
+
+        Iterator<Map.Entry<String, Entry>> eldest = entries.entrySet().iterator();
+        while (bytes > maxBytes && eldest.hasNext()) {
+            bytes -= eldest.next().getValue().weight;
+            eldest.remove();
+            evictions.increment();
+            Metrics.get().increment("search-cache.evictions", 1);
+        }
+    }
+
+    /**
+     * Invalidates the results that may have been changed by a write
+     * @param index the single written index, or null if not known
+     */
+    void invalidate(final String index) {
+        anyWrite.incrementAndGet();
+        if (index == null)
+            fullInvalidation.incrementAndGet();
+        else
+            generation(index).incrementAndGet();
+
+        invalidations.increment();
+        Metrics.get().increment("search-cache.invalidations", 1);
+    }
+
+    long getHits() {
+        return hits.sum();
+    }
+
+    long getMisses() {
+        return misses.sum();
+    }
+
+    long getEvictions() {
+        return evictions.sum();
+    }
+
+    long getInvalidations() {
+        return invalidations.sum();
+    }
+
+    synchronized long getEntries() {
+        return entries.size();
+    }
+
+    synchronized long getBytes() {
+        return bytes;
+    }
+
+    @Override
+    public String toString() {
+        return "SearchCache [hits=" + getHits() + ", misses=" + getMisses() + ", evictions=" + getEvictions()
+                + ", invalidations=" + getInvalidations() + ", entries=" + getEntries() + ", bytes=" + getBytes() + "]";
+    }
+
+    private boolean isCurrent(final Version version) {
+        if (version.index == null)
+            return anyWrite.get() == version.generation;
+        return generation(version.index).get() == version.generation && fullInvalidation.get() == version.full;
+    }
+
+    private AtomicLong generation(final String index) {
+        return generations.computeIfAbsent(index, i -> new AtomicLong());
+    }
+
+    private void remove(final String key) {
+        Entry entry = entries.remove(key);
+        if (entry != null)
+            bytes -= entry.weight;
+    }
+}
@@ -0,0 +1,236 @@
+/*
+ * Copyright 2018 Joarder Kamal. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"). You may
+ * not use this file except in compliance with the License. A copy of the
+ * License is located at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazonaws.awsesjestexample;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import io.searchbox.action.AbstractAction;
+import io.searchbox.action.Action;
+import io.searchbox.client.JestResult;
+import io.searchbox.core.Search;
+import io.searchbox.params.Parameters;
+
+import org.elasticsearch.ElasticsearchParseException;
+import org.elasticsearch.common.unit.TimeValue;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Classifies Jest actions as shareable searches, other reads and writes,
+ * by their type, method and URI, and derives keys for searches so
+ * equivalent queries are recognized as the same request. Searches carry
+ * their deadline as the timeout parameter Elasticsearch understands,
+ * shortened by a margin so its partial results can still reach the client
+ * before the deadline. Such results, and those missing the hits of failed
+ * shards, are told apart from complete ones by partialReason.
+ */
+final class SearchRequests {
+    private static final Gson GSON = new Gson();
+    // Share of a deadline, and its upper bound, left for the partial results of a timed out search to come back
+    private static final long MARGIN_DIVISOR = 5;
+    private static final long MAX_MARGIN_MILLIS = 250;
+    private static final String[] READ_ENDPOINTS = {
+            "_search", "_count", "_mget", "_msearch", "_explain", "_validate", "_field_caps"};
+
+    private SearchRequests() {
+    }
+
+    /**
+     * @return true if the action is a search whose result may be shared, i.e. not the start of a scroll
+     */
+    static boolean isSearch(final Action<?> action, final String uri) {
+        return action instanceof Search && !uri.contains("scroll=");
+    }
+
+    /**
+     * Bounds a search by a deadline, sent as a timeout short of it so Elasticsearch stops searching
+     * and answers with what it found in time to arrive before the deadline
+     * @param search search to be bounded
+     * @param deadlineMillis time the search may take in milliseconds, 0 for no deadline
+     * @return the same builder
+     */
+    static Search.Builder withDeadline(final Search.Builder search, final long deadlineMillis) {
+        if (deadlineMillis > 0) {
+            long timeoutMillis = deadlineMillis - Math.min(MAX_MARGIN_MILLIS, deadlineMillis / MARGIN_DIVISOR);
+            search.setParameter(Parameters.TIMEOUT, timeoutMillis + "ms");
+        }
+        return search;
+    }
+
+    /**
+     * @return the deadline of the action in milliseconds, its timeout parameter plus the margin
+     *         withDeadline took off, or 0 if it has none
+     */
+    static long deadlineMillis(final Action<?> action) {
+        if (!(action instanceof AbstractAction))
+            return 0;
+
+        Collection<Object> timeouts = ((AbstractAction<?>) action).getParameter(Parameters.TIMEOUT);
+        if (timeouts == null || timeouts.isEmpty())
+            return 0;
+        try {
+            long timeoutMillis = TimeValue.parseTimeValue(String.valueOf(timeouts.iterator().next()),
+                    Parameters.TIMEOUT).millis();
+            if (timeoutMillis <= 0)
+                return 0;
+            if (timeoutMillis >= (MARGIN_DIVISOR - 1) * MAX_MARGIN_MILLIS)
+                return timeoutMillis + MAX_MARGIN_MILLIS;
+            return timeoutMillis + timeoutMillis / (MARGIN_DIVISOR - 1);
+        } catch (ElasticsearchParseException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * @return why the results of a successful search are partial, its timeout or the shards that failed,
+     *         or null if every shard answered in time
+     */
+    static String partialReason(final JestResult result) {
+        JsonObject json = result.getJsonObject();
+        if (json == null)
+            return null;
+
+        JsonElement timedOut = json.get("timed_out");
+        if (timedOut != null && timedOut.isJsonPrimitive() && timedOut.getAsBoolean())
+            return "the search timed out";
+
+        JsonElement shards = json.get("_shards");
+        if (shards != null && shards.isJsonObject()) {
+            JsonElement failed = shards.getAsJsonObject().get("failed");
+            if (failed != null && failed.isJsonPrimitive() && failed.getAsInt() > 0)
+                return failed.getAsInt() + " shards failed";
+        }
+        return null;
+    }
+
+    /**
+     * @return true if the search succeeded with the results of every shard
+     */
+    static boolean isComplete(final JestResult result) {
+        return result.isSucceeded() && partialReason(result) == null;
+    }
+
+    /**
+     * @return true if the action cannot change any index
+     */
+    static boolean isRead(final Action<?> action, final String uri) {
+        String method = action.getRestMethodName();
+        if ("GET".equals(method) || "HEAD".equals(method))
+            return true;
+
+        for (String endpoint : READ_ENDPOINTS) {
+            if (hasSegment(uri, endpoint))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return the index a search is limited to, or null if it spans several indices, a pattern or _all
+     */
+    static String singleIndex(final String uri) {
+        String index = firstSegment(uri);
+        if (index.isEmpty() || index.startsWith("_") || index.indexOf(',') >= 0 || index.indexOf('*') >= 0)
+            return null;
+        return index;
+    }
+
+    /**
+     * @return the single index a write changes, or null if it may change others, e.g. a bulk request
+     */
+    static String writtenIndex(final String uri) {
+        if (hasSegment(uri, "_bulk"))
+            return null;
+        return singleIndex(uri);
+    }
+
+    /**
+     * @return true if the path of the URI has the given segment
+     */
+    private static boolean hasSegment(final String uri, final String segment) {
+        int end = uri.indexOf('?');
+        for (String part : (end < 0 ? uri : uri.substring(0, end)).split("/")) {
+            if (part.equals(segment))
+                return true;
+        }
+        return false;
+    }
+
+    private static String firstSegment(final String uri) {
+        int start = uri.startsWith("/") ? 1 : 0;
+        int end = start;
+        while (end < uri.length() && uri.charAt(end) != '/' && uri.charAt(end) != '?')
+            end++;
+        return uri.substring(start, end);
+    }
+
+    /**
+     * @return a key identifying the search, equal for equivalent queries whatever their formatting
+     */
+    static String keyOf(final Action<?> action, final String uri) {
+        String query = action.getData(GSON);
+        StringBuilder key = new StringBuilder(uri.length() + (query == null ? 0 : query.length()) + 1);
+        key.append(uri).append('\n');
+
+        if (query != null) {
+            try {
+                appendNormalized(key, new JsonParser().parse(query));
+            } catch (JsonParseException e) {
+                key.append(query);
+            }
+        }
+        return key.toString();
+    }
+
+    /**
+     * Writes JSON without whitespace and with object keys sorted
+     */
+    private static void appendNormalized(final StringBuilder sb, final JsonElement element) {
+        if (element.isJsonObject()) {
+            Map<String, JsonElement> sorted = new TreeMap<>();
+            for (Map.Entry<String, JsonElement> member : ((JsonObject) element).entrySet())
+                sorted.put(member.getKey(), member.getValue());
+
+            sb.append('{');
+            boolean first = true;
+            for (Map.Entry<String, JsonElement> member : sorted.entrySet()) {
+                if (!first)
+                    sb.append(',');
+                first = false;
+                sb.append(GSON.toJson(member.getKey())).append(':');
+                appendNormalized(sb, member.getValue());
+            }
+            sb.append('}');
+        } else if (element.isJsonArray()) {
+            sb.append('[');
+            JsonArray array = (JsonArray) element;
+            for (int i = 0; i < array.size(); i++) {
+                if (i > 0)
+                    sb.append(',');
+                appendNormalized(sb, array.get(i));
+            }
+            sb.append(']');
+        } else {
+            sb.append(element.toString());
+        }
+    }
+}
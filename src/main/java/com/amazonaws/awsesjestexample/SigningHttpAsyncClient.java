@@ -0,0 +1,115 @@
+/*
+ * Copyright 2018 Joarder Kamal. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"). You may
+ * not use this file except in compliance with the License. A copy of the
+ * License is located at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+
+package com.amazonaws.awsesjestexample;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpException;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpRequestInterceptor;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.concurrent.BasicFuture;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.nio.protocol.HttpAsyncRequestProducer;
+import org.apache.http.nio.protocol.HttpAsyncResponseConsumer;
+import org.apache.http.protocol.HttpContext;
+
+import java.io.IOException;
+import java.util.concurrent.Future;
+
+import static org.apache.http.protocol.HttpCoreContext.HTTP_TARGET_HOST;
+
+/**
+ * An asynchronous HTTP client signing requests before they are handed to
+ * the wrapped client. The wrapped client captures the request entity in its
+ * request producer before the protocol interceptors run, so a signing
+ * interceptor there could not replace the entity, e.g. by the aws-chunked
+ * one of streaming signatures; the body sent would not match the headers.
+ * The signed entity is buffered, since the producer reads it as a stream
+ * while both aws-chunked and gzip-compressed entities can only be written
+ * out, and the Content-Length and Transfer-Encoding headers are left for
+ * the protocol interceptors to set again from it, with the same values.
+ */
+class SigningHttpAsyncClient extends CloseableHttpAsyncClient {
+    private final CloseableHttpAsyncClient asyncClient;
+    private final HttpRequestInterceptor signingInterceptor;
+
+    /**
+     * @param asyncClient client the signed requests are sent with, without a signing interceptor of its own
+     * @param signingInterceptor interceptor signing the requests
+     */
+    SigningHttpAsyncClient(final CloseableHttpAsyncClient asyncClient, final HttpRequestInterceptor signingInterceptor) {
+        this.asyncClient = asyncClient;
+        this.signingInterceptor = signingInterceptor;
+    }
+
+    @Override
+    public boolean isRunning() {
+        return asyncClient.isRunning();
+    }
+
+    @Override
+    public void start() {
+        asyncClient.start();
+    }
+
+    @Override
+    public void close() throws IOException {
+        asyncClient.close();
+    }
+
+    @Override
+    public <T> Future<T> execute(final HttpAsyncRequestProducer requestProducer,
+                                 final HttpAsyncResponseConsumer<T> responseConsumer,
+                                 final HttpContext context,
+                                 final FutureCallback<T> callback) {
+        return asyncClient.execute(requestProducer, responseConsumer, context, callback);
+    }
+
+    @Override
+    public Future<HttpResponse> execute(final HttpHost target,
+                                        final HttpRequest request,
+                                        final HttpContext context,
+                                        final FutureCallback<HttpResponse> callback) {
+        HttpContext signingContext = context != null ? context : HttpClientContext.create();
+        try {
+            sign(target, request, signingContext);
+        } catch (IOException | HttpException | RuntimeException e) {
+            BasicFuture<HttpResponse> future = new BasicFuture<>(callback);
+            future.failed(e);
+            return future;
+        }
+        return super.execute(target, request, signingContext, callback);
+    }
+
+    private void sign(final HttpHost target, final HttpRequest request, final HttpContext context)
+            throws IOException, HttpException {
+        context.setAttribute(HTTP_TARGET_HOST, target);
+        signingInterceptor.process(request, context);
+
+        HttpEntity entity = AWSSignerInterceptor.entityOf(request);
+        if (entity != null) {
+            // With --request-gzip the entity is a GzipCompressingEntity, whose getContent() throws
+            ((HttpEntityEnclosingRequest) request).setEntity(AWSSignerInterceptor.repeatableEntity(entity));
+            request.removeHeaders("Content-Length");
+            request.removeHeaders("Transfer-Encoding");
+        }
+    }
+}
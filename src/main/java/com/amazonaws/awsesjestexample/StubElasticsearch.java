@@ -0,0 +1,742 @@
+/*
+ * Copyright 2018 Joarder Kamal. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"). You may
+ * not use this file except in compliance with the License. A copy of the
+ * License is located at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazonaws.awsesjestexample;
+
+import com.amazonaws.auth.AWSCredentials;
+import com.amazonaws.auth.AWSCredentialsProvider;
+import com.amazonaws.auth.AWSStaticCredentialsProvider;
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.util.SdkHttpUtils;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * A minimal local HTTP endpoint imitating the Elasticsearch APIs this
+ * example uses, so the client side of a request can be measured without a
+ * real cluster. Bulk actions are acknowledged one by one, single documents
+ * are created, searches answer with a fixed page of notes and indices
+ * report default settings and multi-get requests find every
+ * document asked for. Update actions keep a version per document, which
+ * multi-get requests report, and versioned updates of another version fail
+ * with a 409; tests can arrange for conflicts and for bulk responses to be
+ * lost after the actions were applied. When it is given credentials it also checks
+ * every request's SigV4 signature, chunk signatures included, the way the
+ * AWS endpoint does, and rejects the request with a 403 if it does not
+ * match.
+ */
+final class StubElasticsearch implements AutoCloseable {
+    private static final byte[] ITEM = "{\"index\":{\"_index\":\"diary\",\"_type\":\"notes\",\"_id\":\"1\",\"_version\":1,\"status\":201}}".getBytes(StandardCharsets.UTF_8);
+    private static final int SEARCH_HITS = 10;
+
+    private static final String ALGORITHM = "AWS4-HMAC-SHA256";
+    private static final String CHUNK_ALGORITHM = "AWS4-HMAC-SHA256-PAYLOAD";
+    private static final String CHUNK_SIGNATURE = ";chunk-signature=";
+    private static final String EMPTY_SHA256 =
+            "e3b0c44298fc1c149afbf4c8996fb92427ae41e4649b934ca495991b7852b855";
+    private static final String SERVICE_NAME = "es";
+    private static final Duration MAX_CLOCK_SKEW = Duration.ofMinutes(5);
+    private static final DateTimeFormatter DATE_TIME_FORMAT = DateTimeFormatter.ofPattern("yyyyMMdd'T'HHmmss'Z'");
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final AWSCredentials credentials;
+    private final String regionName;
+    private final long latencyMillis;
+    private final byte[] searchResponse;
+
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final AtomicInteger active = new AtomicInteger();
+    private final AtomicInteger maxActive = new AtomicInteger();
+
+    private final Map<String, Long> versions = new ConcurrentHashMap<>();
+    private final AtomicInteger conflicts = new AtomicInteger();
+    private final AtomicInteger drops = new AtomicInteger();
+
+    /**
+     * Starts a stub that accepts any request, signed or not
+     * @param threads number of threads serving requests
+     */
+    StubElasticsearch(final int threads) throws IOException {
+        this(threads, null, null, 0);
+    }
+
+    /**
+     * @param threads number of threads serving requests
+     * @param credentials credentials requests have to be signed with, or null to accept any request
+     * @param regionName AWS region requests have to be signed for
+     * @param latencyMillis time every request takes to be served in milliseconds
+     */
+    StubElasticsearch(final int threads,
+                      final AWSCredentials credentials,
+                      final String regionName,
+                      final long latencyMillis) throws IOException {
+        this.credentials = credentials;
+        this.regionName = regionName;
+        this.latencyMillis = latencyMillis;
+        this.searchResponse = searchResponse(SEARCH_HITS);
+
+        // Otherwise responses, written as headers and body, wait for delayed ACKs
+        if (System.getProperty("sun.net.httpserver.nodelay") == null)
+            System.setProperty("sun.net.httpserver.nodelay", "true");
+
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 1024);
+        AtomicInteger count = new AtomicInteger();
+        executor = Executors.newFixedThreadPool(Math.max(1, threads), r -> {
+            Thread thread = new Thread(r, "stub-elasticsearch-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        server.setExecutor(executor);
+        server.createContext("/", this::handle);
+        server.start();
+    }
+
+    /**
+     * @return a stub configured from the command line arguments, checking signatures made with
+     * the credentials of getCredentialsProvider()
+     */
+    static StubElasticsearch fromArgs() throws IOException {
+        return new StubElasticsearch(Math.max(4, Args.Bench.clients),
+                new BasicAWSCredentials("AKIDSTUBELASTICSEARCH", "c3R1Yi1lbGFzdGljc2VhcmNoLXNlY3JldC1rZXk"),
+                Args.awsRegion, Args.Bench.stubLatencyMillis);
+    }
+
+    /**
+     * @return the URL of the endpoint
+     */
+    String getEndpoint() {
+        return "http://" + server.getAddress().getHostString() + ":" + server.getAddress().getPort();
+    }
+
+    /**
+     * @return a provider of the credentials requests have to be signed with
+     */
+    AWSCredentialsProvider getCredentialsProvider() {
+        return new AWSStaticCredentialsProvider(credentials);
+    }
+
+    /**
+     * @return number of requests received
+     */
+    long getRequests() {
+        return requests.sum();
+    }
+
+    /**
+     * @return number of requests rejected because of their signature
+     */
+    long getRejected() {
+        return rejected.sum();
+    }
+
+    /**
+     * @return highest number of requests served at the same time
+     */
+    int getMaxConcurrentRequests() {
+        return maxActive.get();
+    }
+
+    /**
+     * @return current version of a document, as changed by update actions
+     */
+    long getVersion(final String id) {
+        return versions.getOrDefault(id, 1L);
+    }
+
+    /**
+     * Makes the next versioned update actions fail with a 409, as if another client had updated their
+     * documents just before, which also gives the documents a new version
+     * @param updates number of update actions to fail
+     */
+    void conflictNext(final int updates) {
+        conflicts.addAndGet(updates);
+    }
+
+    /**
+     * Closes the connections of the next bulk requests without answering them, once their actions are applied
+     * @param bulks number of bulk requests to leave unanswered
+     */
+    void dropNext(final int bulks) {
+        drops.addAndGet(bulks);
+    }
+
+    private void handle(final HttpExchange exchange) throws IOException {
+        requests.increment();
+        maxActive.accumulateAndGet(active.incrementAndGet(), Math::max);
+        try {
+            serve(exchange);
+        } finally {
+            active.decrementAndGet();
+        }
+    }
+
+    private void serve(final HttpExchange exchange) throws IOException {
+        byte[] raw = readFully(exchange.getRequestBody());
+        String method = exchange.getRequestMethod();
+        String path = exchange.getRequestURI().getPath();
+
+        try {
+            if (latencyMillis > 0)
+                Thread.sleep(latencyMillis);
+
+            byte[] body;
+            try {
+                body = credentials != null ? verify(exchange, raw) : raw;
+            } catch (SignatureException e) {
+                rejected.increment();
+                AWSESJestExample.LOG.debug("Stub rejected " + method + " " + path + ": " + e.getMessage());
+                respond(exchange, 403, json("{\"message\":\"" + e.getMessage() + "\"}"));
+                return;
+            }
+
+            String encoding = exchange.getRequestHeaders().getFirst("Content-Encoding");
+            if (encoding != null && encoding.contains("gzip"))
+                body = readFully(new GZIPInputStream(new ByteArrayInputStream(body)));
+
+            if (path.endsWith("/_bulk")) {
+                // Bulk requests of updates are applied, others only acknowledged
+                byte[] response = startsWith(body, 0, "{\"update\"")
+                        ? updateResponse(body) : bulkResponse(countActions(body));
+                if (take(drops))
+                    exchange.close();
+                else
+                    respond(exchange, 200, response);
+            } else if (path.endsWith("/_search/scroll")) {
+                respond(exchange, 200, json("DELETE".equals(method) ? "{\"succeeded\":true,\"num_freed\":1}"
+                        : "{\"_scroll_id\":\"stub\",\"took\":1,\"hits\":{\"total\":0,\"max_score\":null,\"hits\":[]}}"));
+            } else if (path.endsWith("/_search")) {
+                respond(exchange, 200, searchResponse);
+            } else if (path.endsWith("/_mget")) {
+                respond(exchange, 200, multiGetResponse(body));
+            } else if (path.endsWith("/_settings") && "GET".equals(method)) {
+                String index = path.substring(1, path.indexOf('/', 1));
+                respond(exchange, 200, json("{\"" + index + "\":{\"settings\":{\"index\":{"
+                        + "\"number_of_shards\":\"5\",\"number_of_replicas\":\"1\"}}}}"));
+            } else if (path.startsWith("/_cluster/health")) {
+                respond(exchange, 200, json("{\"cluster_name\":\"stub\",\"status\":\"green\",\"number_of_nodes\":1}"));
+            } else if (path.startsWith("/_nodes")) {
+                respond(exchange, 200, json("{\"nodes\":{\"stub\":{\"http\":{\"publish_address\":\""
+                        + server.getAddress().getHostString() + ":" + server.getAddress().getPort() + "\"}}}}"));
+            } else if (isDocument(method, path)) {
+                respond(exchange, 201, json("{\"_index\":\"diary\",\"_type\":\"notes\",\"_id\":\""
+                        + Long.toHexString(ThreadLocalRandom.current().nextLong())
+                        + "\",\"_version\":1,\"result\":\"created\",\"_shards\":{\"total\":2,\"successful\":1,\"failed\":0},"
+                        + "\"_seq_no\":0,\"_primary_term\":1}"));
+            } else if ("HEAD".equals(method)) {
+                respond(exchange, 200, null);
+            } else {
+                respond(exchange, 200, json("{\"acknowledged\":true}"));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            exchange.close();
+        }
+    }
+
+    /**
+     * @return true if the request indexes a single document at /{index}/{type} or /{index}/{type}/{id}
+     */
+    private static boolean isDocument(final String method, final String path) {
+        if (!"POST".equals(method) && !"PUT".equals(method))
+            return false;
+        String[] segments = path.substring(1).split("/");
+        return (segments.length == 2 || segments.length == 3) && !segments[segments.length - 1].startsWith("_");
+    }
+
+    /**
+     * Checks the SigV4 signature of a request
+     * @return the request payload, with the aws-chunked encoding removed if it was streamed
+     * @throws SignatureException if the signature is missing, expired or does not match
+     */
+    private byte[] verify(final HttpExchange exchange, final byte[] raw) throws SignatureException, IOException {
+        Headers headers = exchange.getRequestHeaders();
+        String authorization = headers.getFirst("Authorization");
+        if (authorization == null || !authorization.startsWith(ALGORITHM + " "))
+            throw new SignatureException("Missing Authentication Token");
+
+        String credential = null;
+        String signedHeaders = null;
+        String signature = null;
+        for (String part : authorization.substring(ALGORITHM.length() + 1).split(",")) {
+            part = part.trim();
+            if (part.startsWith("Credential="))
+                credential = part.substring("Credential=".length());
+            else if (part.startsWith("SignedHeaders="))
+                signedHeaders = part.substring("SignedHeaders=".length());
+            else if (part.startsWith("Signature="))
+                signature = part.substring("Signature=".length());
+        }
+        if (credential == null || signedHeaders == null || signature == null)
+            throw new SignatureException("Authorization header requires Credential, SignedHeaders and Signature");
+
+        String amzDate = headers.getFirst("X-Amz-Date");
+        if (amzDate == null)
+            throw new SignatureException("Authorization header requires existence of either a 'X-Amz-Date' or a 'Date' header");
+        try {
+            Instant signedAt = LocalDateTime.parse(amzDate, DATE_TIME_FORMAT).toInstant(ZoneOffset.UTC);
+            if (Duration.between(signedAt, Instant.now()).abs().compareTo(MAX_CLOCK_SKEW) > 0)
+                throw new SignatureException("Signature expired: " + amzDate + " is not within 5 minutes of the server time");
+        } catch (DateTimeParseException e) {
+            throw new SignatureException("Invalid X-Amz-Date: " + amzDate);
+        }
+
+        String scope = amzDate.substring(0, 8) + "/" + regionName + "/" + SERVICE_NAME + "/aws4_request";
+        if (!credential.equals(credentials.getAWSAccessKeyId() + "/" + scope)) {
+            if (!credential.startsWith(credentials.getAWSAccessKeyId() + "/"))
+                throw new SignatureException("The security token included in the request is invalid.");
+            throw new SignatureException("Credential should be scoped to " + scope);
+        }
+
+        // Canonical request
+        StringBuilder sb = new StringBuilder(512);
+        sb.append(exchange.getRequestMethod()).append('\n');
+        String path = exchange.getRequestURI().getRawPath();
+        sb.append(path == null || path.isEmpty() ? "/" : SdkHttpUtils.urlEncode(path, true)).append('\n');
+        appendCanonicalQuery(sb, exchange.getRequestURI().getRawQuery());
+        sb.append('\n');
+
+        for (String name : signedHeaders.split(";")) {
+            List<String> values = headers.get(name);
+            if (values == null)
+                throw new SignatureException("Signed header " + name + " is missing");
+            sb.append(name).append(':');
+            for (int i = 0; i < values.size(); i++) {
+                if (i > 0)
+                    sb.append(',');
+                sb.append(values.get(i).trim().replaceAll("\\s+", " "));
+            }
+            sb.append('\n');
+        }
+        sb.append('\n').append(signedHeaders).append('\n');
+
+        String contentSha256 = headers.getFirst("x-amz-content-sha256");
+        String payloadHash = hex(sha256(raw, 0, raw.length));
+        if (contentSha256 == null || ChunkedSigningEntity.STREAMING_PAYLOAD.equals(contentSha256)
+                || "UNSIGNED-PAYLOAD".equals(contentSha256)) {
+            sb.append(contentSha256 != null ? contentSha256 : payloadHash);
+        } else if (contentSha256.equals(payloadHash)) {
+            sb.append(payloadHash);
+        } else {
+            throw new SignatureException("The provided 'x-amz-content-sha256' header does not match what was computed.");
+        }
+
+        byte[] signingKey = signingKey(amzDate.substring(0, 8));
+        String stringToSign = ALGORITHM + "\n" + amzDate + "\n" + scope + "\n"
+                + hex(sha256(sb.toString().getBytes(StandardCharsets.UTF_8)));
+        String expected = hex(hmac(signingKey, stringToSign));
+        if (!MessageDigest.isEqual(expected.getBytes(StandardCharsets.US_ASCII), signature.getBytes(StandardCharsets.US_ASCII)))
+            throw new SignatureException("The request signature we calculated does not match the signature you provided.");
+
+        if (ChunkedSigningEntity.STREAMING_PAYLOAD.equals(contentSha256)) {
+            // The service removes a single aws-chunked encoding, anything else reaches Elasticsearch
+            String encoding = headers.getFirst("Content-Encoding");
+            if (encoding == null || encoding.indexOf(ChunkedSigningEntity.CONTENT_ENCODING)
+                    != encoding.lastIndexOf(ChunkedSigningEntity.CONTENT_ENCODING))
+                throw new SignatureException("Content-Encoding has to name aws-chunked exactly once: " + encoding);
+            return verifyChunks(raw, signingKey, amzDate, scope, signature);
+        }
+        return raw;
+    }
+
+    /**
+     * Checks the signature of every chunk of an aws-chunked payload, each chained to the previous one
+     * @return the decoded payload
+     */
+    private static byte[] verifyChunks(final byte[] raw,
+                                       final byte[] signingKey,
+                                       final String amzDate,
+                                       final String scope,
+                                       final String seedSignature) throws SignatureException {
+        ByteArrayOutputStream payload = new ByteArrayOutputStream(raw.length);
+        String previousSignature = seedSignature;
+        int pos = 0;
+
+        while (true) {
+            int lineEnd = indexOf(raw, pos, (byte) '\r');
+            if (lineEnd < 0 || lineEnd + 1 >= raw.length || raw[lineEnd + 1] != '\n')
+                throw new SignatureException("Malformed aws-chunked payload");
+
+            String header = new String(raw, pos, lineEnd - pos, StandardCharsets.US_ASCII);
+            int separator = header.indexOf(CHUNK_SIGNATURE);
+            if (separator < 0)
+                throw new SignatureException("Chunk is missing its signature");
+
+            int size;
+            try {
+                size = Integer.parseInt(header.substring(0, separator), 16);
+            } catch (NumberFormatException e) {
+                throw new SignatureException("Malformed aws-chunked payload");
+            }
+            int dataStart = lineEnd + 2;
+            if (size < 0 || dataStart + size + 2 > raw.length)
+                throw new SignatureException("Malformed aws-chunked payload");
+
+            String stringToSign = CHUNK_ALGORITHM + "\n" + amzDate + "\n" + scope + "\n" + previousSignature + "\n"
+                    + EMPTY_SHA256 + "\n" + hex(sha256(raw, dataStart, size));
+            String expected = hex(hmac(signingKey, stringToSign));
+            if (!expected.equals(header.substring(separator + CHUNK_SIGNATURE.length())))
+                throw new SignatureException("The chunk signature we calculated does not match the signature you provided.");
+
+            payload.write(raw, dataStart, size);
+            previousSignature = expected;
+            pos = dataStart + size + 2;
+            if (size == 0)
+                return payload.toByteArray();
+        }
+    }
+
+    /**
+     * Appends the sorted, URI-encoded query parameters
+     */
+    private static void appendCanonicalQuery(final StringBuilder sb, final String query)
+            throws UnsupportedEncodingException {
+        if (query == null || query.isEmpty())
+            return;
+
+        List<String[]> params = new ArrayList<>();
+        for (String pair : query.split("&")) {
+            if (pair.isEmpty())
+                continue;
+            int eq = pair.indexOf('=');
+            String name = eq >= 0 ? pair.substring(0, eq) : pair;
+            String value = eq >= 0 ? pair.substring(eq + 1) : "";
+            params.add(new String[] {
+                    SdkHttpUtils.urlEncode(URLDecoder.decode(name, "UTF-8"), false),
+                    SdkHttpUtils.urlEncode(URLDecoder.decode(value, "UTF-8"), false)});
+        }
+        params.sort((p1, p2) -> {
+            int c = p1[0].compareTo(p2[0]);
+            return c != 0 ? c : p1[1].compareTo(p2[1]);
+        });
+
+        for (int i = 0; i < params.size(); i++) {
+            if (i > 0)
+                sb.append('&');
+            sb.append(params.get(i)[0]).append('=').append(params.get(i)[1]);
+        }
+    }
+
+    private byte[] signingKey(final String dateStamp) {
+        byte[] kSecret = ("AWS4" + credentials.getAWSSecretKey()).getBytes(StandardCharsets.UTF_8);
+        byte[] kDate = hmac(kSecret, dateStamp);
+        byte[] kRegion = hmac(kDate, regionName);
+        byte[] kService = hmac(kRegion, SERVICE_NAME);
+        return hmac(kService, "aws4_request");
+    }
+
+    private static byte[] hmac(final byte[] key, final String data) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(key, "HmacSHA256"));
+            return mac.doFinal(data.getBytes(StandardCharsets.UTF_8));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Unable to calculate a request signature", e);
+        }
+    }
+
+    private static byte[] sha256(final byte[] data) {
+        return sha256(data, 0, data.length);
+    }
+
+    private static byte[] sha256(final byte[] data, final int offset, final int length) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(data, offset, length);
+            return digest.digest();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    private static String hex(final byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        CachingAWS4Signer.appendHex(sb, bytes);
+        return sb.toString();
+    }
+
+    private static int indexOf(final byte[] bytes, final int from, final byte b) {
+        for (int i = from; i < bytes.length; i++) {
+            if (bytes[i] == b)
+                return i;
+        }
+        return -1;
+    }
+
+    private static byte[] readFully(final InputStream in) throws IOException {
+        try (InputStream input = in) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[64 * 1024];
+            int n;
+            while ((n = input.read(buffer)) != -1)
+                out.write(buffer, 0, n);
+            return out.toByteArray();
+        }
+    }
+
+    /**
+     * @return the number of actions of a bulk payload; every action but delete is followed by a source line
+     */
+    private static int countActions(final byte[] body) {
+        int actions = 0;
+        boolean source = false;
+        int lineStart = 0;
+        for (int i = 0; i <= body.length; i++) {
+            if (i < body.length && body[i] != '\n')
+                continue;
+            if (i > lineStart) {
+                if (source) {
+                    source = false;
+                } else {
+                    actions++;
+                    source = !startsWith(body, lineStart, "{\"delete\"");
+                }
+            }
+            lineStart = i + 1;
+        }
+        return actions;
+    }
+
+    /**
+     * Applies the update actions of a bulk payload, and acknowledges the others
+     * @return a bulk response with an item per action, a 409 for a versioned update of another version
+     */
+    private byte[] updateResponse(final byte[] body) {
+        StringBuilder sb = new StringBuilder("{\"took\":1,\"errors\":");
+        int errorsAt = sb.length();
+        sb.append("false,\"items\":[");
+        boolean errors = false;
+        boolean source = false;
+        int items = 0;
+        int lineStart = 0;
+        for (int i = 0; i <= body.length; i++) {
+            if (i < body.length && body[i] != '\n')
+                continue;
+            if (i > lineStart) {
+                if (source) {
+                    source = false;
+                } else {
+                    JsonObject line = new JsonParser().parse(new String(body, lineStart, i - lineStart,
+                            StandardCharsets.UTF_8)).getAsJsonObject();
+                    Map.Entry<String, JsonElement> action = line.entrySet().iterator().next();
+                    source = !"delete".equals(action.getKey());
+                    if (items++ > 0)
+                        sb.append(',');
+                    errors |= !appendItem(sb, action.getKey(), action.getValue().getAsJsonObject());
+                }
+            }
+            lineStart = i + 1;
+        }
+        if (errors)
+            sb.replace(errorsAt, errorsAt + "false".length(), "true");
+        return json(sb.append("]}").toString());
+    }
+
+    /**
+     * Applies a bulk action and appends its response item
+     * @return false if the action failed
+     */
+    private boolean appendItem(final StringBuilder sb, final String op, final JsonObject action) {
+        JsonElement idElement = action.get("_id");
+        String id = idElement != null
+                ? idElement.getAsString() : Long.toHexString(ThreadLocalRandom.current().nextLong());
+        JsonElement versionElement = action.get("version");
+        long expected = versionElement != null ? versionElement.getAsLong() : -1;
+
+        long[] outcome = {201, 1};
+        if ("update".equals(op)) {
+            versions.compute(id, (key, current) -> {
+                long version = current != null ? current : 1L;
+                if (expected >= 0 && take(conflicts)) {
+                    // Another client got there first
+                    outcome[0] = 409;
+                    version++;
+                } else if (expected >= 0 && expected != version) {
+                    outcome[0] = 409;
+                } else {
+                    outcome[0] = 200;
+                    version++;
+                }
+                outcome[1] = version;
+                return version;
+            });
+        }
+
+        sb.append("{\"").append(op).append("\":{\"_index\":\"diary\",\"_type\":\"notes\",\"_id\":");
+        NoteCodec.writeString(sb, id);
+        if (outcome[0] == 409) {
+            sb.append(",\"status\":409,\"error\":{\"type\":\"version_conflict_engine_exception\",\"reason\":");
+            NoteCodec.writeString(sb, "[notes][" + id + "]: version conflict, current version [" + outcome[1]
+                    + "] is different than the one provided [" + expected + "]").append("}}}");
+            return false;
+        }
+        sb.append(",\"_version\":").append(outcome[1]).append(",\"status\":").append(outcome[0]).append("}}");
+        return true;
+    }
+
+    /**
+     * @return true if the counter was positive, decrementing it
+     */
+    private static boolean take(final AtomicInteger counter) {
+        return counter.getAndUpdate(n -> Math.max(0, n - 1)) > 0;
+    }
+
+    private static boolean startsWith(final byte[] bytes, final int offset, final String prefix) {
+        if (offset + prefix.length() > bytes.length)
+            return false;
+        for (int i = 0; i < prefix.length(); i++) {
+            if (bytes[offset + i] != prefix.charAt(i))
+                return false;
+        }
+        return true;
+    }
+
+    private static byte[] json(final String json) {
+        return json.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static void respond(final HttpExchange exchange, final int status, final byte[] body) throws IOException {
+        if (body == null) {
+            exchange.sendResponseHeaders(status, -1);
+            exchange.close();
+            return;
+        }
+
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=UTF-8");
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    private static byte[] bulkResponse(final int items) {
+        byte[] head = "{\"took\":1,\"errors\":false,\"items\":[".getBytes(StandardCharsets.UTF_8);
+        byte[] body = new byte[head.length + items * (ITEM.length + 1) + 1];
+        System.arraycopy(head, 0, body, 0, head.length);
+        int pos = head.length;
+        for (int i = 0; i < items; i++) {
+            if (i > 0)
+                body[pos++] = ',';
+            System.arraycopy(ITEM, 0, body, pos, ITEM.length);
+            pos += ITEM.length;
+        }
+        body[pos++] = ']';
+        body[pos++] = '}';
+        return Arrays.copyOf(body, pos);
+    }
+
+    /**
+     * @return a search response of the given number of notes, sorted like search_after pages are
+     */
+    private static byte[] searchResponse(final int hits) {
+        StringBuilder sb = new StringBuilder("{\"took\":1,\"timed_out\":false,\"hits\":{\"total\":")
+                .append(hits).append(",\"max_score\":null,\"hits\":[");
+        long createdOn = 1534204800000L;
+        for (int i = 0; i < hits; i++) {
+            if (i > 0)
+                sb.append(',');
+            Note note = new Note("User" + i, "Note" + i + ": do u see this - " + (createdOn + i));
+            note.setCreatedOn(createdOn + i);
+            sb.append("{\"_index\":\"diary\",\"_type\":\"notes\",\"_id\":\"").append(i)
+                    .append("\",\"_score\":null,\"_source\":");
+            NoteCodec.writeSource(sb, note);
+            sb.append(",\"sort\":[").append(createdOn + i).append(",\"").append(i).append("\"]}");
+        }
+        return json(sb.append("]}}").toString());
+    }
+
+    /**
+     * @return a multi-get response with a note for every id asked for in a request body {"ids":[...]}
+     */
+    private byte[] multiGetResponse(final byte[] body) {
+        JsonArray ids = new JsonParser().parse(new String(body, StandardCharsets.UTF_8))
+                .getAsJsonObject().getAsJsonArray("ids");
+        StringBuilder sb = new StringBuilder("{\"docs\":[");
+        for (int i = 0; i < ids.size(); i++) {
+            String id = ids.get(i).getAsString();
+            if (i > 0)
+                sb.append(',');
+            Note note = new Note("User" + i, "Note " + id + ": do u see this");
+            note.setCreatedOn(1534204800000L + i);
+            sb.append("{\"_index\":\"diary\",\"_type\":\"notes\",\"_id\":");
+            NoteCodec.writeString(sb, id);
+            sb.append(",\"_version\":").append(getVersion(id)).append(",\"found\":true,\"_source\":");
+            NoteCodec.writeSource(sb, note);
+            sb.append('}');
+        }
+        return json(sb.append("]}").toString());
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    @Override
+    public String toString() {
+        return "StubElasticsearch[" + getEndpoint() + ", " + getRequests() + " requests, "
+                + getRejected() + " rejected signatures]";
+    }
+
+    /**
+     * Signals a request whose signature the stub does not accept
+     */
+    private static final class SignatureException extends Exception {
+        private static final long serialVersionUID = 6313452719310829201L;
+
+        private SignatureException(final String message) {
+            super(message);
+        }
+    }
+}
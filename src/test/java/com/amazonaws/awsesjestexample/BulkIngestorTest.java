@@ -0,0 +1,110 @@
+/*
+ * Copyright 2018 Joarder Kamal. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"). You may
+ * not use this file except in compliance with the License. A copy of the
+ * License is located at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+
+
+package com.amazonaws.awsesjestexample;
+
+import io.searchbox.client.JestClient;
+import io.searchbox.client.JestClientFactory;
+import io.searchbox.client.config.HttpClientConfig;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Indexes Notes through a BulkIngestor against the stub while it is being
+ * closed, and checks that every document it accepted is sent.
+ */
+public class BulkIngestorTest {
+    private static final int CALLERS = 4;
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private StubElasticsearch stub;
+    private JestClient jestClient;
+
+    @Before
+    public void setUp() throws IOException {
+        stub = new StubElasticsearch(2);
+        JestClientFactory factory = new JestClientFactory();
+        factory.setHttpClientConfig(new HttpClientConfig.Builder(stub.getEndpoint()).multiThreaded(true)
+                .connTimeout(1000).readTimeout(5000).build());
+        jestClient = factory.getObject();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        jestClient.close();
+        stub.close();
+    }
+
+    @Test
+    public void addsRacingCloseAreSent() throws Exception {
+        assertAddsRacingCloseAreSent(null);
+    }
+
+    @Test
+    public void spooledAddsRacingCloseAreSent() throws Exception {
+        // Spooling widens the gap between checking for close and queueing the document
+        assertAddsRacingCloseAreSent(new NoteSpool(folder.newFolder().toPath(), 1 << 16));
+    }
+
+    private void assertAddsRacingCloseAreSent(final NoteSpool spool) throws Exception {
+        BulkIngestor ingestor = new BulkIngestor(jestClient, "diary", "notes",
+                new AdaptiveBulkController(10, 10, 2, 1000, false), 1 << 20, 5, 3, new Backoff(1, 10), spool);
+        AtomicLong accepted = new AtomicLong();
+        AtomicReference<Throwable> unexpected = new AtomicReference<>();
+
+        Thread[] callers = new Thread[CALLERS];
+        for (int i = 0; i < CALLERS; i++) {
+            final int caller = i;
+            callers[i] = new Thread(() -> {
+                try {
+                    for (int n = 0; ; n++) {
+                        ingestor.add(new Note("User" + caller, "Note " + n));
+                        accepted.incrementAndGet();
+                    }
+                } catch (IllegalStateException e) {
+                    // Closed
+                } catch (Throwable e) {
+                    unexpected.compareAndSet(null, e);
+                }
+            });
+            callers[i].start();
+        }
+
+        Thread.sleep(100);
+        ingestor.close();
+        for (Thread caller : callers)
+            caller.join();
+
+        assertNull(unexpected.get());
+        assertTrue(accepted.get() > 0);
+        assertEquals(0, ingestor.getFailed());
+        assertEquals(accepted.get(), ingestor.getSucceeded());
+    }
+}
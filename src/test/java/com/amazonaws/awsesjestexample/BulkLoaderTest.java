@@ -0,0 +1,93 @@
+/*
+ * Copyright 2018 Joarder Kamal. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"). You may
+ * not use this file except in compliance with the License. A copy of the
+ * License is located at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+
+
+package com.amazonaws.awsesjestexample;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Loads NDJSON and CSV files through a single-threaded pool into a
+ * BulkIngestor whose queue is mostly full, and checks the spooled Notes:
+ * a creation time at the epoch is kept, only a missing one is set to now.
+ */
+public class BulkLoaderTest {
+    private static final int COPIES = 20;
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void ndjsonCreationTimesAtTheEpochAreKept() throws Exception {
+        assertCreationTimes(LoadFormat.NDJSON, "{\"userName\":\"epoch\",\"note\":\"dated\",\"createdOn\":0}",
+                "{\"userName\":\"now\",\"note\":\"undated\"}");
+    }
+
+    @Test
+    public void csvCreationTimesAtTheEpochAreKept() throws Exception {
+        assertCreationTimes(LoadFormat.CSV, "epoch,dated,0", "now,undated,");
+    }
+
+    private void assertCreationTimes(final LoadFormat format, final String dated, final String undated)
+            throws Exception {
+        Path file = folder.newFile().toPath();
+        StringBuilder lines = new StringBuilder();
+        for (int i = 0; i < COPIES; i++)
+            lines.append(dated).append('\n').append(undated).append('\n');
+        Files.write(file, lines.toString().getBytes(StandardCharsets.UTF_8));
+
+        // Requests turned down as a whole leave every Note in the spool, to be read back
+        Path directory = folder.newFolder().toPath();
+        long start = System.currentTimeMillis();
+        BulkIngestor ingestor = new BulkIngestor(new CannedJestClient("{}"), "diary", "notes",
+                new AdaptiveBulkController(1, 1, 1, 1000, false), 1 << 20, 0, 0, new Backoff(1, 10),
+                new NoteSpool(directory, 1 << 16));
+        ForkJoinPool pool = new ForkJoinPool(1);
+        BulkLoader loader = new BulkLoader(ingestor, pool, 1);
+        loader.load(file, format, false);
+        ingestor.close();
+        pool.shutdown();
+
+        assertEquals(2 * COPIES, loader.getParsed());
+        Map<String, Integer> counts = new HashMap<>();
+        NoteSpool spool = new NoteSpool(directory, 1 << 16);
+        List<NoteSpool.Record> records = spool.recover();
+        for (NoteSpool.Record record : records) {
+            Note note = NoteDecoder.decodeSource(record.getSource());
+            if ("epoch".equals(note.getUserName()))
+                assertEquals(0, note.getCreatedOn());
+            else
+                assertTrue(note.toString(), note.getCreatedOn() >= start);
+            counts.merge(note.getUserName(), 1, Integer::sum);
+        }
+        spool.close();
+        assertEquals(Arrays.asList(COPIES, COPIES), Arrays.asList(counts.get("epoch"), counts.get("now")));
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright 2018 Joarder Kamal. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"). You may
+ * not use this file except in compliance with the License. A copy of the
+ * License is located at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+
+
+package com.amazonaws.awsesjestexample;
+
+import io.searchbox.client.JestResult;
+import io.searchbox.client.JestResultHandler;
+import io.searchbox.core.Search;
+import io.searchbox.core.SearchResult;
+import org.junit.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+
+/**
+ * Sends the same search twice through a CachingJestClient, and checks that
+ * only complete results are served from its cache, each hit with a result
+ * of its own.
+ */
+public class CachingJestClientTest {
+    private static final String QUERY = "{\"query\":{\"match_all\":{}}}";
+
+    @Test
+    public void completeResultsAreCached() throws Exception {
+        assertEquals(1, requestsForTwoSearches(NoteStreamsTest.response(false, 0, "", "")));
+    }
+
+    @Test
+    public void timedOutResultsAreNotCached() throws Exception {
+        assertEquals(2, requestsForTwoSearches(NoteStreamsTest.response(true, 0, "", "")));
+    }
+
+    @Test
+    public void resultsMissingFailedShardsAreNotCached() throws Exception {
+        assertEquals(2, requestsForTwoSearches(NoteStreamsTest.response(false, 1, "", "")));
+    }
+
+    @Test
+    public void hitsGetResultsOfTheirOwn() throws Exception {
+        String body = NoteStreamsTest.response(false, 0, "", "");
+        CannedJestClient canned = new CannedJestClient(body);
+        CachingJestClient client = new CachingJestClient(canned, new SearchCache(60000, 1 << 20));
+
+        client.execute(new Search.Builder(QUERY).addIndex("diary").build());
+        SearchResult second = client.execute(new Search.Builder(QUERY).addIndex("diary").build());
+        // A caller changing its result leaves the cached response as it was
+        second.setJsonString("{}");
+        CompletableFuture<JestResult> third = new CompletableFuture<>();
+        client.executeAsync(new Search.Builder(QUERY).addIndex("diary").build(),
+                new JestResultHandler<JestResult>() {
+                    public void completed(JestResult result) {
+                        third.complete(result);
+                    }
+
+                    public void failed(Exception ex) {
+                        third.completeExceptionally(ex);
+                    }
+                });
+
+        assertEquals(1, canned.getRequests());
+        assertNotSame(second, third.get(10, TimeUnit.SECONDS));
+        assertEquals(body, third.get(10, TimeUnit.SECONDS).getJsonString());
+    }
+
+    private static int requestsForTwoSearches(final String body) throws Exception {
+        CannedJestClient canned = new CannedJestClient(body);
+        CachingJestClient client = new CachingJestClient(canned, new SearchCache(60000, 1 << 20));
+        client.execute(new Search.Builder(QUERY).addIndex("diary").build());
+        client.execute(new Search.Builder(QUERY).addIndex("diary").build());
+        return canned.getRequests();
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright 2018 Joarder Kamal. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"). You may
+ * not use this file except in compliance with the License. A copy of the
+ * License is located at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+
+
+package com.amazonaws.awsesjestexample;
+
+import com.google.gson.Gson;
+import io.searchbox.action.Action;
+import io.searchbox.client.JestClient;
+import io.searchbox.client.JestResult;
+import io.searchbox.client.JestResultHandler;
+
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A JestClient answering every action with the same canned response body,
+ * for tests of how responses are interpreted rather than how they are sent.
+ */
+class CannedJestClient implements JestClient {
+    private static final Gson GSON = new Gson();
+
+    private final String body;
+    private final AtomicInteger requests = new AtomicInteger();
+
+    /**
+     * @param body JSON body of every response, answered with status 200
+     */
+    CannedJestClient(final String body) {
+        this.body = body;
+    }
+
+    int getRequests() {
+        return requests.get();
+    }
+
+    @Override
+    public <T extends JestResult> T execute(final Action<T> action) {
+        requests.incrementAndGet();
+        return action.createNewElasticSearchResult(body, 200, "OK", GSON);
+    }
+
+    @Override
+    public <T extends JestResult> void executeAsync(final Action<T> action,
+                                                    final JestResultHandler<? super T> handler) {
+        handler.completed(execute(action));
+    }
+
+    @Override
+    @Deprecated
+    public void shutdownClient() {
+    }
+
+    @Override
+    public void setServers(final Set<String> servers) {
+    }
+
+    @Override
+    public void close() {
+    }
+}
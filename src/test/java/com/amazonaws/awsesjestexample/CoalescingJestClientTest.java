@@ -0,0 +1,88 @@
+/*
+ * Copyright 2018 Joarder Kamal. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"). You may
+ * not use this file except in compliance with the License. A copy of the
+ * License is located at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+
+
+package com.amazonaws.awsesjestexample;
+
+import io.searchbox.action.Action;
+import io.searchbox.client.JestResult;
+import io.searchbox.client.JestResultHandler;
+import io.searchbox.core.Search;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+
+/**
+ * Sends the same search three times through a CoalescingJestClient while
+ * the first is held in flight, and checks that the callers that joined it
+ * get results of their own.
+ */
+public class CoalescingJestClientTest {
+    private static final String QUERY = "{\"query\":{\"match_all\":{}}}";
+
+    @Test
+    public void joinedSearchesGetResultsOfTheirOwn() throws Exception {
+        String body = NoteStreamsTest.response(false, 0, "", "");
+        List<Runnable> held = new ArrayList<>();
+        CannedJestClient canned = new CannedJestClient(body) {
+            @Override
+            public <T extends JestResult> void executeAsync(final Action<T> action,
+                                                            final JestResultHandler<? super T> handler) {
+                held.add(() -> super.executeAsync(action, handler));
+            }
+        };
+        CoalescingJestClient client = new CoalescingJestClient(canned);
+
+        List<String> delivered = Collections.synchronizedList(new ArrayList<>());
+        List<CompletableFuture<JestResult>> results = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            CompletableFuture<JestResult> future = new CompletableFuture<>();
+            JestResultHandler<JestResult> handler = new JestResultHandler<JestResult>() {
+                public void completed(JestResult result) {
+                    // Whoever changes its result, the others keep theirs
+                    delivered.add(result.getJsonString());
+                    result.setJsonString("{}");
+                    future.complete(result);
+                }
+
+                public void failed(Exception ex) {
+                    future.completeExceptionally(ex);
+                }
+            };
+            client.executeAsync(new Search.Builder(QUERY).addIndex("diary").build(), handler);
+            results.add(future);
+        }
+        assertEquals(1, held.size());
+        assertEquals(2, client.getCoalesced());
+        held.get(0).run();
+
+        JestResult leader = results.get(0).get(10, TimeUnit.SECONDS);
+        JestResult first = results.get(1).get(10, TimeUnit.SECONDS);
+        JestResult second = results.get(2).get(10, TimeUnit.SECONDS);
+        assertNotSame(leader, first);
+        assertNotSame(leader, second);
+        assertNotSame(first, second);
+        assertEquals(Collections.nCopies(3, body), delivered);
+        assertEquals(1, canned.getRequests());
+    }
+}
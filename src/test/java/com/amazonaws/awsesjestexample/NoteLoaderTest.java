@@ -0,0 +1,99 @@
+/*
+ * Copyright 2018 Joarder Kamal. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"). You may
+ * not use this file except in compliance with the License. A copy of the
+ * License is located at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+
+package com.amazonaws.awsesjestexample;
+
+import io.searchbox.client.JestClient;
+import io.searchbox.client.JestClientFactory;
+import io.searchbox.client.config.HttpClientConfig;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Looks Notes up through a NoteLoader against the stub while it is being
+ * closed, and checks that every lookup it accepted is completed.
+ */
+public class NoteLoaderTest {
+    private static final int CALLERS = 4;
+
+    private StubElasticsearch stub;
+    private JestClient jestClient;
+
+    @Before
+    public void setUp() throws IOException {
+        stub = new StubElasticsearch(2);
+        JestClientFactory factory = new JestClientFactory();
+        factory.setHttpClientConfig(new HttpClientConfig.Builder(stub.getEndpoint()).multiThreaded(true)
+                .connTimeout(1000).readTimeout(5000).build());
+        jestClient = factory.getObject();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        jestClient.close();
+        stub.close();
+    }
+
+    @Test
+    public void lookupsRacingCloseAreCompleted() throws Exception {
+        NoteLoader loader = new NoteLoader(jestClient, "diary", "notes", 10, 1, 2, Runnable::run);
+        List<CompletableFuture<Note>> futures = Collections.synchronizedList(new ArrayList<>());
+
+        Thread[] callers = new Thread[CALLERS];
+        for (int i = 0; i < CALLERS; i++) {
+            final int caller = i;
+            callers[i] = new Thread(() -> {
+                try {
+                    for (int n = 0; ; n++)
+                        futures.add(loader.load(caller + "-" + n));
+                } catch (IllegalStateException e) {
+                    // Closed
+                }
+            });
+            callers[i].start();
+        }
+
+        Thread.sleep(100);
+        loader.close();
+        for (Thread caller : callers)
+            caller.join();
+
+        int found = 0;
+        for (CompletableFuture<Note> future : futures) {
+            try {
+                assertNotNull(future.get(5, TimeUnit.SECONDS));
+                found++;
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof IllegalStateException);
+            }
+        }
+        assertTrue(found > 0);
+        assertEquals(futures.size(), loader.getLookups());
+    }
+}
@@ -0,0 +1,261 @@
+/*
+ * Copyright 2018 Joarder Kamal. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"). You may
+ * not use this file except in compliance with the License. A copy of the
+ * License is located at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+
+package com.amazonaws.awsesjestexample;
+
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.google.gson.JsonParser;
+import io.searchbox.action.Action;
+import io.searchbox.client.JestClient;
+import io.searchbox.client.JestClientFactory;
+import io.searchbox.client.JestResult;
+import io.searchbox.client.JestResultHandler;
+import io.searchbox.client.config.HttpClientConfig;
+import io.searchbox.core.Bulk;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Indexes through a BulkIngestor with a spool while Elasticsearch is
+ * unreachable or turning the requests down, then restarts it against a
+ * stub and checks the spooled documents are replayed in order and removed
+ * from the spool.
+ */
+public class NoteSpoolTest {
+    private static final int DOCS = 50;
+    private static final int SEGMENT_BYTES = 4096;
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private StubElasticsearch stub;
+
+    @Before
+    public void setUp() throws IOException {
+        stub = new StubElasticsearch(2);
+    }
+
+    @After
+    public void tearDown() {
+        stub.close();
+    }
+
+    @Test
+    public void pendingRecordsAreRecoveredInOrder() throws IOException {
+        Path directory = folder.getRoot().toPath();
+        List<String> sources = new ArrayList<>();
+
+        NoteSpool spool = new NoteSpool(directory, SEGMENT_BYTES);
+        spool.recover();
+        List<NoteSpool.Record> records = new ArrayList<>();
+        for (int i = 0; i < DOCS; i++) {
+            String source = NoteCodec.encode(new Note("User" + i, "Note " + i));
+            sources.add(source);
+            records.add(spool.append(source));
+        }
+        // Acknowledged records are not replayed
+        for (int i = 0; i < DOCS; i += 2)
+            spool.ack(records.get(i));
+        spool.close();
+
+        NoteSpool reopened = new NoteSpool(directory, SEGMENT_BYTES);
+        List<NoteSpool.Record> recovered = reopened.recover();
+        assertEquals(DOCS / 2, recovered.size());
+        for (int i = 0; i < recovered.size(); i++) {
+            assertEquals(sources.get(2 * i + 1), recovered.get(i).getSource());
+            assertEquals(records.get(2 * i + 1).getId(), recovered.get(i).getId());
+        }
+        reopened.close();
+    }
+
+    @Test
+    public void documentsSpooledDuringAnOutageAreReplayed() throws Exception {
+        Path directory = folder.getRoot().toPath();
+        List<String> sources = new ArrayList<>();
+        List<String> ids = new ArrayList<>();
+
+        // Nothing listens on the port of a closed socket
+        String unreachable;
+        try (ServerSocket socket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            unreachable = "http://" + socket.getInetAddress().getHostAddress() + ":" + socket.getLocalPort();
+        }
+
+        RecordingJestClient down = new RecordingJestClient(unreachable);
+        BulkIngestor ingestor = ingestor(down, directory);
+        for (int i = 0; i < DOCS; i++) {
+            Note note = new Note("User" + i, "Note " + i);
+            sources.add(NoteCodec.encode(note));
+            ids.add(note.getId());
+            ingestor.add(note);
+        }
+        ingestor.close();
+        down.close();
+
+        assertEquals(0, ingestor.getSucceeded());
+        assertEquals(DOCS, ingestor.getSpooled());
+        assertEquals(0, stub.getRequests());
+
+        // Restarted once the cluster is back, with nothing new to index
+        RecordingJestClient up = new RecordingJestClient(stub.getEndpoint());
+        BulkIngestor restarted = ingestor(up, directory);
+        restarted.close();
+        up.close();
+
+        assertEquals(DOCS, restarted.getSucceeded());
+        assertEquals(0, restarted.getSpooled());
+        assertEquals(sources, up.getSources());
+        // Replayed under the ids they were first sent with, so nothing indexed before is duplicated
+        assertEquals(ids, up.getIds());
+
+        // Acknowledged segments are gone and nothing is replayed again
+        try (Stream<Path> files = Files.list(directory)) {
+            assertEquals(0, files.count());
+        }
+        NoteSpool spool = new NoteSpool(directory, SEGMENT_BYTES);
+        assertEquals(Collections.emptyList(), spool.recover());
+        spool.close();
+    }
+
+    @Test
+    public void documentsOfRequestsTurnedDownAsAWholeStayInTheSpool() throws Exception {
+        Path directory = folder.getRoot().toPath();
+        List<String> sources = new ArrayList<>();
+
+        // Unsigned requests are answered with 403, which is no verdict on the documents
+        StubElasticsearch signed = new StubElasticsearch(2, new BasicAWSCredentials("AKID", "secret"),
+                "us-east-1", 0);
+        RecordingJestClient forbidden = new RecordingJestClient(signed.getEndpoint());
+        BulkIngestor ingestor = ingestor(forbidden, directory);
+        for (int i = 0; i < DOCS; i++) {
+            Note note = new Note("User" + i, "Note " + i);
+            sources.add(NoteCodec.encode(note));
+            ingestor.add(note);
+        }
+        ingestor.close();
+        forbidden.close();
+        signed.close();
+
+        assertEquals(0, ingestor.getSucceeded());
+        assertEquals(DOCS, ingestor.getSpooled());
+        assertTrue(signed.getRejected() > 0);
+
+        RecordingJestClient up = new RecordingJestClient(stub.getEndpoint());
+        BulkIngestor restarted = ingestor(up, directory);
+        restarted.close();
+        up.close();
+
+        assertEquals(DOCS, restarted.getSucceeded());
+        assertEquals(sources, up.getSources());
+    }
+
+    private static BulkIngestor ingestor(final JestClient jestClient, final Path directory) throws IOException {
+        return new BulkIngestor(jestClient, "diary", "notes",
+                new AdaptiveBulkController(1, 10, 1, 1000, false), 1024 * 1024, 10, 1,
+                new Backoff(1, 10), new NoteSpool(directory, SEGMENT_BYTES));
+    }
+
+    /**
+     * Sends requests to an endpoint, recording the document sources of the bulk requests in the order they are sent
+     */
+    private static final class RecordingJestClient implements JestClient {
+        private final JestClient jestClient;
+        private final List<String> sources = Collections.synchronizedList(new ArrayList<>());
+        private final List<String> ids = Collections.synchronizedList(new ArrayList<>());
+
+        RecordingJestClient(final String endpoint) {
+            JestClientFactory factory = new JestClientFactory();
+            factory.setHttpClientConfig(new HttpClientConfig.Builder(endpoint).multiThreaded(true)
+                    .connTimeout(1000).readTimeout(5000).build());
+            this.jestClient = factory.getObject();
+        }
+
+        List<String> getSources() {
+            return new ArrayList<>(sources);
+        }
+
+        List<String> getIds() {
+            return new ArrayList<>(ids);
+        }
+
+        @Override
+        public <T extends JestResult> T execute(final Action<T> action) throws IOException {
+            T result = jestClient.execute(action);
+            record(action, result);
+            return result;
+        }
+
+        @Override
+        public <T extends JestResult> void executeAsync(final Action<T> action,
+                                                        final JestResultHandler<? super T> handler) {
+            jestClient.executeAsync(action, new JestResultHandler<T>() {
+                @Override
+                public void completed(final T result) {
+                    record(action, result);
+                    handler.completed(result);
+                }
+
+                @Override
+                public void failed(final Exception ex) {
+                    handler.failed(ex);
+                }
+            });
+        }
+
+        private void record(final Action<?> action, final JestResult result) {
+            if (!(action instanceof Bulk) || !result.isSucceeded())
+                return;
+            String[] lines = action.getData(null).split("\n");
+            for (int i = 1; i < lines.length; i += 2) {
+                ids.add(new JsonParser().parse(lines[i - 1]).getAsJsonObject()
+                        .getAsJsonObject("index").get("_id").getAsString());
+                sources.add(lines[i]);
+            }
+        }
+
+        @Override
+        @Deprecated
+        public void shutdownClient() {
+            jestClient.shutdownClient();
+        }
+
+        @Override
+        public void setServers(final Set<String> servers) {
+            jestClient.setServers(servers);
+        }
+
+        @Override
+        public void close() throws IOException {
+            jestClient.close();
+        }
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright 2018 Joarder Kamal. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"). You may
+ * not use this file except in compliance with the License. A copy of the
+ * License is located at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+
+
+package com.amazonaws.awsesjestexample;
+
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.search.aggregations.bucket.composite.CompositeValuesSourceBuilder;
+import org.elasticsearch.search.aggregations.bucket.composite.TermsValuesSourceBuilder;
+import org.junit.Test;
+
+import java.io.UncheckedIOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Pages through canned search responses, and checks that responses which
+ * timed out or lost shards fail the stream rather than ending it early.
+ */
+public class NoteStreamsTest {
+    private static final String HIT = "{\"_index\":\"diary\",\"_type\":\"notes\",\"_id\":\"a\",\"_score\":null,"
+            + "\"_source\":{\"id\":\"a\",\"userName\":\"User1\",\"note\":\"Note\",\"createdOn\":1},\"sort\":[1,\"a\"]}";
+    private static final String BUCKETS = "\"aggregations\":{\"composite\":{\"after_key\":{\"userName\":\"User1\"},"
+            + "\"buckets\":[{\"key\":{\"userName\":\"User1\"},\"doc_count\":10}]}}";
+
+    @Test
+    public void completeHitsAreStreamed() {
+        List<Note> notes = searchAfter(response(false, 0, HIT, "")).collect(Collectors.toList());
+        assertEquals(1, notes.size());
+        assertEquals("a", notes.get(0).getId());
+    }
+
+    @Test
+    public void timedOutHitsFailTheStream() {
+        assertPartial(searchAfter(response(true, 0, HIT, "")), "timed out");
+    }
+
+    @Test
+    public void hitsMissingFailedShardsFailTheStream() {
+        assertPartial(searchAfter(response(false, 2, HIT, "")), "2 shards failed");
+    }
+
+    @Test
+    public void completeBucketsAreStreamed() {
+        List<NoteDecoder.Bucket> buckets = composite(response(false, 0, "", "," + BUCKETS))
+                .collect(Collectors.toList());
+        assertEquals(1, buckets.size());
+        assertEquals(10, buckets.get(0).docCount);
+    }
+
+    @Test
+    public void bucketsMissingFailedShardsFailTheStream() {
+        assertPartial(composite(response(false, 3, "", "," + BUCKETS)), "3 shards failed");
+    }
+
+    @Test
+    public void timedOutBucketsFailTheStream() {
+        assertPartial(composite(response(true, 0, "", "," + BUCKETS)), "timed out");
+    }
+
+    static String response(final boolean timedOut, final int failedShards, final String hits, final String rest) {
+        return "{\"took\":1,\"timed_out\":" + timedOut + ",\"_shards\":{\"total\":5,\"successful\":"
+                + (5 - failedShards) + ",\"skipped\":0,\"failed\":" + failedShards + "},"
+                + "\"hits\":{\"total\":" + (hits.isEmpty() ? 0 : 1) + ",\"max_score\":null,\"hits\":[" + hits + "]}"
+                + rest + "}";
+    }
+
+    private static Stream<Note> searchAfter(final String body) {
+        return NoteStreams.searchAfter(new CannedJestClient(body), "diary", "notes",
+                QueryBuilders.matchAllQuery(), 10, 0);
+    }
+
+    private static Stream<NoteDecoder.Bucket> composite(final String body) {
+        List<CompositeValuesSourceBuilder<?>> sources = Collections.singletonList(
+                new TermsValuesSourceBuilder("userName").field("userName"));
+        return NoteStreams.composite(new CannedJestClient(body), "diary", "notes",
+                QueryBuilders.matchAllQuery(), sources, 10, 0);
+    }
+
+    private static void assertPartial(final Stream<?> stream, final String reason) {
+        try {
+            stream.count();
+            fail("Partial results were streamed as if complete");
+        } catch (UncheckedIOException e) {
+            assertTrue(e.getCause().getMessage(), e.getCause().getMessage().contains("partial results: "));
+            assertTrue(e.getCause().getMessage(), e.getCause().getMessage().contains(reason));
+        }
+    }
+}
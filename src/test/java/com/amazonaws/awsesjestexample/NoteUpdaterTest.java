@@ -0,0 +1,140 @@
+/*
+ * Copyright 2018 Joarder Kamal. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"). You may
+ * not use this file except in compliance with the License. A copy of the
+ * License is located at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+
+package com.amazonaws.awsesjestexample;
+
+import io.searchbox.client.JestClient;
+import io.searchbox.client.JestClientFactory;
+import io.searchbox.client.config.HttpClientConfig;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Updates Notes through a NoteUpdater against a stub that takes a while to
+ * answer, and checks that batches are in flight at the same time rather
+ * than one after the other, that conflicting updates are read again and
+ * retried, and that scripts are not sent again after a lost response.
+ */
+public class NoteUpdaterTest {
+    private static final long LATENCY_MILLIS = 200;
+    private static final int CONCURRENCY = 4;
+    private static final int BATCHES = 8;
+
+    private StubElasticsearch stub;
+    private JestClient jestClient;
+    private ExecutorService callbackExecutor;
+
+    @Before
+    public void setUp() throws IOException {
+        stub = new StubElasticsearch(BATCHES, null, null, LATENCY_MILLIS);
+        JestClientFactory factory = new JestClientFactory();
+        factory.setHttpClientConfig(new HttpClientConfig.Builder(stub.getEndpoint()).multiThreaded(true)
+                .defaultMaxTotalConnectionPerRoute(BATCHES).maxTotalConnection(BATCHES)
+                .connTimeout(1000).readTimeout(5000).build());
+        jestClient = factory.getObject();
+        callbackExecutor = AsyncJestClient.callbackExecutor();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        jestClient.close();
+        stub.close();
+        callbackExecutor.shutdown();
+    }
+
+    @Test
+    public void batchesAreSentConcurrently() throws Exception {
+        // One update per batch, each read and then written
+        NoteUpdater updater = new NoteUpdater(new AsyncJestClient(jestClient, CONCURRENCY, callbackExecutor),
+                "diary", "notes", 1, 0, CONCURRENCY, 0, new Backoff(1, 10), callbackExecutor);
+
+        // Classes are loaded and connections opened before the clock starts
+        updater.merge("warmup", Collections.<String, Object>singletonMap("note", "")).get(10, TimeUnit.SECONDS);
+
+        List<CompletableFuture<Long>> updates = new ArrayList<>();
+        for (int i = 0; i < BATCHES; i++) {
+            updates.add(updater.modify(Integer.toString(i),
+                    note -> Collections.<String, Object>singletonMap("note", note.getNote() + " (edited)")));
+        }
+        updater.close();
+        CompletableFuture.allOf(updates.toArray(new CompletableFuture<?>[0])).get(10, TimeUnit.SECONDS);
+
+        assertEquals(BATCHES + 1, updater.getSucceeded());
+        assertEquals(0, updater.getFailed());
+        assertEquals(2 * BATCHES + 1, stub.getRequests());
+        // Every batch has one request outstanding at a time, its multi-get or its bulk request
+        int overlapping = stub.getMaxConcurrentRequests();
+        assertTrue(overlapping + " requests at once", overlapping > 1 && overlapping <= CONCURRENCY);
+    }
+
+    @Test
+    public void conflictingUpdatesAreReadAgainAndRetried() throws Exception {
+        NoteUpdater updater = new NoteUpdater(new AsyncJestClient(jestClient, CONCURRENCY, callbackExecutor),
+                "diary", "notes", 1, 0, CONCURRENCY, 3, new Backoff(1, 10), callbackExecutor);
+
+        // Another client updates the Note between the first read and the first write
+        stub.conflictNext(1);
+        CompletableFuture<Long> update = updater.modify("7",
+                note -> Collections.<String, Object>singletonMap("note", note.getNote() + " (edited)"));
+        updater.close();
+
+        // Read at version 1, found at version 2 when written, read again and written as version 3
+        assertEquals(Long.valueOf(3), update.get(10, TimeUnit.SECONDS));
+        assertEquals(3, stub.getVersion("7"));
+        assertEquals(1, updater.getConflicts());
+        assertEquals(1, updater.getSucceeded());
+        assertEquals(4, stub.getRequests());
+    }
+
+    @Test
+    public void scriptsAreNotSentAgainAfterALostResponse() throws Exception {
+        // Both updates go in a single batch
+        NoteUpdater updater = new NoteUpdater(new AsyncJestClient(jestClient, CONCURRENCY, callbackExecutor),
+                "diary", "notes", 2, 10000, CONCURRENCY, 3, new Backoff(1, 10), callbackExecutor);
+
+        stub.dropNext(1);
+        CompletableFuture<Long> merge = updater.merge("1", Collections.<String, Object>singletonMap("note", ""));
+        CompletableFuture<Long> script = updater.script("2", "ctx._source.views = (ctx._source.views ?: 0) + 1",
+                Collections.<String, Object>emptyMap());
+        updater.close();
+
+        // Setting fields again changes nothing, so the merge is retried
+        assertEquals(Long.valueOf(3), merge.get(10, TimeUnit.SECONDS));
+        try {
+            script.get(10, TimeUnit.SECONDS);
+            fail("Script was sent again after its response was lost");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause().getMessage(), e.getCause().getMessage().contains("may have been applied"));
+        }
+        // Applied once, by the request whose response was lost
+        assertEquals(2, stub.getVersion("2"));
+        assertEquals(1, updater.getFailed());
+    }
+}
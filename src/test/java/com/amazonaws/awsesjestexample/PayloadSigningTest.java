@@ -0,0 +1,333 @@
+/*
+ * Copyright 2018 Joarder Kamal. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"). You may
+ * not use this file except in compliance with the License. A copy of the
+ * License is located at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+
+package com.amazonaws.awsesjestexample;
+
+import com.amazonaws.auth.AWS4Signer;
+import com.amazonaws.auth.AWSCredentialsProvider;
+import com.amazonaws.auth.AWSStaticCredentialsProvider;
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.google.gson.JsonParser;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpRequestInterceptor;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.InputStreamEntity;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultHttpRequestRetryHandler;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.apache.http.util.EntityUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Sends signed bulk requests to a stub Elasticsearch that checks their SigV4
+ * signatures, including the chained chunk signatures of aws-chunked payloads.
+ */
+public class PayloadSigningTest {
+    private static final String REGION = "us-east-1";
+    private static final int CHUNK_SIZE = 256;
+    private static final int ACTIONS = 20;
+
+    private final BasicAWSCredentials credentials = new BasicAWSCredentials("AKIDTEST", "dGVzdC1zZWNyZXQta2V5");
+    private final AWSCredentialsProvider credentialsProvider = new AWSStaticCredentialsProvider(credentials);
+
+    private StubElasticsearch stub;
+    private byte[] payload;
+
+    @Before
+    public void setUp() throws IOException {
+        stub = new StubElasticsearch(2, credentials, REGION, 0);
+
+        // Several chunks plus a partial one
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < ACTIONS; i++) {
+            NoteCodec.writeIndexAction(sb, "id-" + i);
+            NoteCodec.writeSource(sb, new Note("User" + i, "Note " + i + ": payload signing")).append('\n');
+        }
+        payload = sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    @After
+    public void tearDown() {
+        stub.close();
+    }
+
+    @Test
+    public void sdkSignerIsAccepted() throws IOException {
+        AWS4Signer signer = new AWS4Signer();
+        signer.setServiceName("es");
+        signer.setRegionName(REGION);
+        assertAccepted(new AWSSignerInterceptor("es", signer, credentialsProvider), repeatable());
+    }
+
+    @Test
+    public void fullPayloadSigningIsAccepted() throws IOException {
+        assertAccepted(interceptor(PayloadSigning.FULL), repeatable());
+    }
+
+    @Test
+    public void fullPayloadSigningBuffersStreamedBodies() throws IOException {
+        assertAccepted(interceptor(PayloadSigning.FULL), streamed());
+    }
+
+    @Test
+    public void unsignedPayloadIsAccepted() throws IOException {
+        assertAccepted(interceptor(PayloadSigning.UNSIGNED), repeatable());
+    }
+
+    @Test
+    public void streamingSignaturesAreAccepted() throws IOException {
+        assertAccepted(interceptor(PayloadSigning.STREAMING), repeatable());
+    }
+
+    @Test
+    public void streamingSignaturesOfUnknownLengthAreAccepted() throws IOException {
+        assertAccepted(interceptor(PayloadSigning.STREAMING), streamed());
+    }
+
+    @Test
+    public void asyncFullPayloadSigningIsAccepted() throws Exception {
+        assertAcceptedAsync(interceptor(PayloadSigning.FULL), repeatable());
+    }
+
+    @Test
+    public void asyncUnsignedPayloadIsAccepted() throws Exception {
+        assertAcceptedAsync(interceptor(PayloadSigning.UNSIGNED), repeatable());
+    }
+
+    @Test
+    public void asyncStreamingSignaturesAreAccepted() throws Exception {
+        assertAcceptedAsync(interceptor(PayloadSigning.STREAMING), repeatable());
+    }
+
+    @Test
+    public void asyncStreamingSignaturesOfUnknownLengthAreAccepted() throws Exception {
+        assertAcceptedAsync(interceptor(PayloadSigning.STREAMING), streamed());
+    }
+
+    @Test
+    public void streamingRequestRetriedAfterItWasSentIsAccepted() throws IOException {
+        // The retry runs the interceptors again on the request of the failed attempt
+        try (DroppingProxy proxy = new DroppingProxy(stub);
+             CloseableHttpClient client = HttpClients.custom()
+                     .setRetryHandler(new DefaultHttpRequestRetryHandler(1, true))
+                     .addInterceptorLast(interceptor(PayloadSigning.STREAMING)).build()) {
+            HttpPost post = new HttpPost(proxy.getEndpoint() + "/_bulk");
+            post.setEntity(repeatable());
+
+            try (CloseableHttpResponse response = client.execute(post)) {
+                assertDecoded(response);
+            }
+            assertEquals(2, proxy.getConnections());
+        }
+        assertEquals(1, stub.getRequests());
+        assertEquals(0, stub.getRejected());
+    }
+
+    @Test
+    public void tamperedPayloadIsRejected() throws IOException {
+        HttpRequestInterceptor tamper = (request, context) -> {
+            HttpEntity entity = AWSSignerInterceptor.entityOf(request);
+            if (entity != null) {
+                byte[] body = EntityUtils.toByteArray(entity);
+                body[body.length - 2] ^= 1;
+                ((HttpEntityEnclosingRequest) request).setEntity(new ByteArrayEntity(body, ContentType.APPLICATION_JSON));
+            }
+        };
+
+        try (CloseableHttpClient client = HttpClients.custom()
+                .addInterceptorLast(interceptor(PayloadSigning.FULL))
+                .addInterceptorLast(tamper).build()) {
+            HttpPost post = new HttpPost(stub.getEndpoint() + "/_bulk");
+            post.setEntity(repeatable());
+            try (CloseableHttpResponse response = client.execute(post)) {
+                assertEquals(403, response.getStatusLine().getStatusCode());
+            }
+        }
+        assertEquals(1, stub.getRejected());
+    }
+
+    private AWSSignerInterceptor interceptor(final PayloadSigning payloadSigning) {
+        return new AWSSignerInterceptor("es", new CachingAWS4Signer("es", REGION, payloadSigning, CHUNK_SIZE),
+                credentialsProvider);
+    }
+
+    private ByteArrayEntity repeatable() {
+        return new ByteArrayEntity(payload, ContentType.APPLICATION_JSON);
+    }
+
+    private InputStreamEntity streamed() {
+        return new InputStreamEntity(new ByteArrayInputStream(payload), -1, ContentType.APPLICATION_JSON);
+    }
+
+    private void assertAccepted(final AWSSignerInterceptor interceptor, final HttpEntity entity)
+            throws IOException {
+        HttpPost post = new HttpPost(stub.getEndpoint() + "/_bulk");
+        post.setEntity(entity);
+        assertAccepted(interceptor, post);
+    }
+
+    private void assertAccepted(final AWSSignerInterceptor interceptor, final HttpPost post) throws IOException {
+        try (CloseableHttpClient client = HttpClients.custom().addInterceptorLast(interceptor).build();
+             CloseableHttpResponse response = client.execute(post)) {
+            assertDecoded(response);
+        }
+        assertEquals(0, stub.getRejected());
+    }
+
+    /**
+     * Sends the request through an asynchronous client, whose request producer captures the entity
+     * before any protocol interceptor runs
+     */
+    private void assertAcceptedAsync(final AWSSignerInterceptor interceptor, final HttpEntity entity)
+            throws Exception {
+        HttpPost post = new HttpPost(stub.getEndpoint() + "/_bulk");
+        post.setEntity(entity);
+
+        try (CloseableHttpAsyncClient client = new SigningHttpAsyncClient(HttpAsyncClients.createDefault(), interceptor)) {
+            client.start();
+            assertDecoded(client.execute(post, null).get(5, TimeUnit.SECONDS));
+        }
+        assertEquals(0, stub.getRejected());
+    }
+
+    /**
+     * Checks that the stub accepted the request and decoded every action of the payload from it
+     */
+    private static void assertDecoded(final HttpResponse response) throws IOException {
+        String body = EntityUtils.toString(response.getEntity());
+        assertEquals(body, 200, response.getStatusLine().getStatusCode());
+        assertEquals(body, ACTIONS, new JsonParser().parse(body).getAsJsonObject().getAsJsonArray("items").size());
+    }
+
+    /**
+     * Forwards connections to the stub, except for the first one which is closed once the request
+     * was read, without a response, so that the client retries the request
+     */
+    private static final class DroppingProxy implements AutoCloseable {
+        private final ServerSocket server;
+        private final InetSocketAddress target;
+        private final AtomicInteger connections = new AtomicInteger();
+
+        DroppingProxy(final StubElasticsearch stub) throws IOException {
+            URI endpoint = URI.create(stub.getEndpoint());
+            target = new InetSocketAddress(endpoint.getHost(), endpoint.getPort());
+            server = new ServerSocket(0, 16, InetAddress.getLoopbackAddress());
+
+            Thread acceptor = new Thread(this::accept, "dropping-proxy");
+            acceptor.setDaemon(true);
+            acceptor.start();
+        }
+
+        String getEndpoint() {
+            return "http://" + server.getInetAddress().getHostAddress() + ":" + server.getLocalPort();
+        }
+
+        int getConnections() {
+            return connections.get();
+        }
+
+        private void accept() {
+            try {
+                while (true) {
+                    Socket client = server.accept();
+                    if (connections.incrementAndGet() == 1)
+                        drop(client);
+                    else
+                        forward(client);
+                }
+            } catch (IOException e) {
+                // Closed
+            }
+        }
+
+        private static void drop(final Socket client) throws IOException {
+            try (Socket socket = client) {
+                socket.setSoTimeout(200);
+                InputStream in = socket.getInputStream();
+                byte[] buffer = new byte[8192];
+                try {
+                    while (in.read(buffer) >= 0) {
+                        // Read the whole request
+                    }
+                } catch (SocketTimeoutException e) {
+                    // Sent completely
+                }
+            }
+        }
+
+        private void forward(final Socket client) throws IOException {
+            Socket upstream = new Socket(target.getAddress(), target.getPort());
+            pipe(client, upstream);
+            pipe(upstream, client);
+        }
+
+        private static void pipe(final Socket from, final Socket to) {
+            Thread thread = new Thread(() -> {
+                byte[] buffer = new byte[8192];
+                try {
+                    InputStream in = from.getInputStream();
+                    OutputStream out = to.getOutputStream();
+                    int read;
+                    while ((read = in.read(buffer)) >= 0) {
+                        out.write(buffer, 0, read);
+                        out.flush();
+                    }
+                } catch (IOException e) {
+                    // Either side closed
+                } finally {
+                    try {
+                        from.close();
+                        to.close();
+                    } catch (IOException e) {
+                        // Ignored
+                    }
+                }
+            }, "dropping-proxy-pipe");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        @Override
+        public void close() throws IOException {
+            server.close();
+        }
+    }
+}
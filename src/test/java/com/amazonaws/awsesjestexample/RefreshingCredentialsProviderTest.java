@@ -0,0 +1,114 @@
+/*
+ * Copyright 2018 Joarder Kamal. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"). You may
+ * not use this file except in compliance with the License. A copy of the
+ * License is located at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+
+package com.amazonaws.awsesjestexample;
+
+import com.amazonaws.auth.AWSCredentials;
+import com.amazonaws.auth.AWSCredentialsProvider;
+import com.amazonaws.auth.BasicAWSCredentials;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Wraps a provider that takes a while to fetch credentials and checks that
+ * only the first call waits for it, while the refreshes happen in the
+ * background and survive a provider that throws.
+ */
+public class RefreshingCredentialsProviderTest {
+    private static final long LATENCY_MILLIS = 300;
+    private static final long REFRESH_MILLIS = 50;
+
+    /**
+     * Hands out numbered credentials after sleeping, failing the fetches it is told to with an Error
+     */
+    private static final class SlowProvider implements AWSCredentialsProvider {
+        private final AtomicInteger fetches = new AtomicInteger();
+        private final int failingFetch;
+
+        SlowProvider(final int failingFetch) {
+            this.failingFetch = failingFetch;
+        }
+
+        @Override
+        public AWSCredentials getCredentials() {
+            int fetch = fetches.incrementAndGet();
+            try {
+                Thread.sleep(LATENCY_MILLIS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (fetch == failingFetch)
+                throw new AssertionError("Fetch " + fetch + " failed");
+            return new BasicAWSCredentials("key" + fetch, "secret" + fetch);
+        }
+
+        @Override
+        public void refresh() {
+        }
+    }
+
+    @Test
+    public void onlyTheFirstCallWaitsForTheProvider() throws InterruptedException {
+        SlowProvider delegate = new SlowProvider(0);
+        RefreshingCredentialsProvider provider =
+                new RefreshingCredentialsProvider(delegate, REFRESH_MILLIS, new Backoff(10, 100));
+
+        long start = System.nanoTime();
+        AWSCredentials first = provider.getCredentials();
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= LATENCY_MILLIS);
+        assertEquals("key1", first.getAWSAccessKeyId());
+
+        // Keep signing while the background thread sits in the slow provider
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(4 * LATENCY_MILLIS);
+        long slowestNanos = 0;
+        AWSCredentials latest = first;
+        while (System.nanoTime() < deadline) {
+            long callStart = System.nanoTime();
+            latest = provider.getCredentials();
+            slowestNanos = Math.max(slowestNanos, System.nanoTime() - callStart);
+            Thread.sleep(5);
+        }
+
+        assertTrue("getCredentials() blocked for " + TimeUnit.NANOSECONDS.toMillis(slowestNanos) + " ms",
+                slowestNanos < TimeUnit.MILLISECONDS.toNanos(LATENCY_MILLIS / 2));
+        assertTrue(delegate.fetches.get() > 1);
+        assertNotEquals("key1", latest.getAWSAccessKeyId());
+    }
+
+    @Test
+    public void refreshesContinueAfterTheProviderThrows() throws InterruptedException {
+        // The first background fetch throws an Error, the ones after it succeed
+        SlowProvider delegate = new SlowProvider(2);
+        RefreshingCredentialsProvider provider =
+                new RefreshingCredentialsProvider(delegate, REFRESH_MILLIS, new Backoff(10, 100));
+        assertEquals("key1", provider.getCredentials().getAWSAccessKeyId());
+
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(10 * LATENCY_MILLIS);
+        while (delegate.fetches.get() < 3 && System.nanoTime() < deadline)
+            Thread.sleep(10);
+        while ("key1".equals(provider.getCredentials().getAWSAccessKeyId()) && System.nanoTime() < deadline)
+            Thread.sleep(10);
+
+        assertTrue(delegate.fetches.get() >= 3);
+        assertNotEquals("key1", provider.getCredentials().getAWSAccessKeyId());
+    }
+}
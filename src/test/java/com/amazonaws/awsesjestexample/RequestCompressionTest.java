@@ -0,0 +1,132 @@
+/*
+ * Copyright 2018 Joarder Kamal. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"). You may
+ * not use this file except in compliance with the License. A copy of the
+ * License is located at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+
+package com.amazonaws.awsesjestexample;
+
+import com.amazonaws.auth.AWSStaticCredentialsProvider;
+import com.amazonaws.auth.BasicAWSCredentials;
+import io.searchbox.client.JestClient;
+import io.searchbox.client.JestResultHandler;
+import io.searchbox.core.Bulk;
+import io.searchbox.core.BulkResult;
+import io.searchbox.core.Index;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Sends gzip-compressed bulk requests through the client stack of the
+ * example, with executeAsync and execute, to a stub that checks their
+ * signatures and decompresses them.
+ */
+public class RequestCompressionTest {
+    private static final String REGION = "us-east-1";
+    private static final int ACTIONS = 20;
+
+    private final BasicAWSCredentials credentials = new BasicAWSCredentials("AKIDTEST", "dGVzdC1zZWNyZXQta2V5");
+
+    private StubElasticsearch stub;
+    private JestClient jestClient;
+
+    private String domainEndpoint;
+    private boolean requestGzip;
+    private PayloadSigning payloadSigning;
+    private boolean cachedSigner;
+
+    @Before
+    public void setUp() throws IOException {
+        stub = new StubElasticsearch(2, credentials, REGION, 0);
+
+        domainEndpoint = Args.domainEndpoint;
+        requestGzip = Args.requestGzip;
+        payloadSigning = Args.payloadSigning;
+        cachedSigner = Args.cachedSigner;
+        Args.domainEndpoint = stub.getEndpoint();
+        Args.requestGzip = true;
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        if (jestClient != null)
+            jestClient.close();
+        stub.close();
+
+        Args.domainEndpoint = domainEndpoint;
+        Args.requestGzip = requestGzip;
+        Args.payloadSigning = payloadSigning;
+        Args.cachedSigner = cachedSigner;
+    }
+
+    @Test
+    public void compressedRequestsSignedWithTheSdkAreSent() throws Exception {
+        assertSent();
+    }
+
+    @Test
+    public void compressedRequestsWithUnsignedPayloadsAreSent() throws Exception {
+        Args.payloadSigning = PayloadSigning.UNSIGNED;
+        assertSent();
+    }
+
+    @Test
+    public void compressedRequestsWithFullPayloadSigningAreSent() throws Exception {
+        Args.cachedSigner = true;
+        assertSent();
+    }
+
+    private void assertSent() throws Exception {
+        jestClient = AWSESActions.jestClientBuilder(new AWSStaticCredentialsProvider(credentials));
+        assertNotNull(jestClient);
+
+        CompletableFuture<BulkResult> future = new CompletableFuture<>();
+        jestClient.executeAsync(bulk(), new JestResultHandler<BulkResult>() {
+            @Override
+            public void completed(final BulkResult result) {
+                future.complete(result);
+            }
+
+            @Override
+            public void failed(final Exception ex) {
+                future.completeExceptionally(ex);
+            }
+        });
+        assertAccepted(future.get(5, TimeUnit.SECONDS));
+        assertAccepted(jestClient.execute(bulk()));
+
+        assertEquals(2, stub.getRequests());
+        assertEquals(0, stub.getRejected());
+    }
+
+    private static Bulk bulk() {
+        Bulk.Builder bulk = new Bulk.Builder().defaultIndex("diary").defaultType("notes");
+        for (int i = 0; i < ACTIONS; i++)
+            bulk.addAction(new Index.Builder(new Note("User" + i, "Note " + i + ": compressed")).id("id-" + i).build());
+        return bulk.build();
+    }
+
+    private static void assertAccepted(final BulkResult result) {
+        assertTrue(result.getJsonString(), result.isSucceeded());
+        assertEquals(ACTIONS, result.getItems().size());
+    }
+}